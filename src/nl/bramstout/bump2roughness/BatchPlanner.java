@@ -0,0 +1,289 @@
+/*
+BSD 3-Clause License
+
+Copyright (c) 2020, Bram Stout
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+3. Neither the name of the copyright holder nor the names of its
+   contributors may be used to endorse or promote products derived from
+   this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+
+
+package nl.bramstout.bump2roughness;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import nl.bramstout.bump2roughness.TextureSetJob.Input;
+import nl.bramstout.bump2roughness.TileCoordinator.TileResult;
+
+/**
+ * Reads batch manifests and plans the texture sets in them, so that inputs that are used by
+ * multiple texture sets are only read in and mip mapped once.
+ * 
+ * A manifest is a JSON file with the same keys as a job file:
+ * 
+ * {
+ *   "defaults": { "unitSize": 1.0, "outputMode": "TEXTURE", "maketx": "/usr/local/bin/maketx" },
+ *   "textureSets": [
+ *     {
+ *       "output": "/textures/rock_roughness.tx",
+ *       "base": 0.3,
+ *       "inputs": [
+ *         { "type": "BUMP", "scale": 1.0, "path": "/textures/detail_bump.png" },
+ *         { "type": "NORMAL", "scale": 0.5, "path": "/textures/rock_normal.png", "keepResident": false }
+ *       ]
+ *     }
+ *   ]
+ * }
+ * 
+ * Inputs are the same when they point to the same file and are resized with the same filter.
+ * Shared inputs are kept in memory from the first texture set that reads them, until the last
+ * texture set that needs them has been calculated. After that it's up to the PyramidCache. The texture sets are put in an order where
+ * the next texture set shares as many inputs as possible with the inputs in memory, so that
+ * they don't stay around for long. "keepResident": false turns this off for an input.
+ */
+public class BatchPlanner implements TextureSetJob.ImageSource {
+
+	private static class SharedImage {
+		ImageContainer img = null;
+		// How many texture sets still need it.
+		int users = 0;
+	}
+
+	private Map<String, SharedImage> images = new HashMap<String, SharedImage>();
+	// The keys of the shared images that each texture set uses.
+	private Map<TextureSetJob, List<String>> jobKeys = new IdentityHashMap<TextureSetJob, List<String>>();
+
+	/**
+	 * Reads the texture sets from a manifest.
+	 * 
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 */
+	@SuppressWarnings("unchecked")
+	public static List<TextureSetJob> readManifest(File file) throws IOException {
+		Object root = Json.parse(new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8));
+		if (!(root instanceof Map)) throw new IOException("The manifest should be a JSON object");
+		Map<String, Object> manifest = (Map<String, Object>) root;
+
+		Map<String, Object> defaults = new HashMap<String, Object>();
+		if (manifest.get("defaults") instanceof Map) defaults = (Map<String, Object>) manifest.get("defaults");
+		if (!(manifest.get("textureSets") instanceof List)) throw new IOException("The manifest has no \"textureSets\" array");
+
+		List<TextureSetJob> jobs = new ArrayList<TextureSetJob>();
+		for (Object entry : (List<Object>) manifest.get("textureSets")) {
+			if (!(entry instanceof Map)) throw new IOException("Every texture set should be a JSON object");
+			TextureSetJob job = new TextureSetJob();
+			setAll(job, defaults);
+			setAll(job, (Map<String, Object>) entry);
+			jobs.add(job);
+		}
+		return jobs;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static void setAll(TextureSetJob job, Map<String, Object> values) throws IOException {
+		for (Map.Entry<String, Object> entry : values.entrySet()) {
+			try {
+				if (entry.getKey().equals("inputs")) {
+					if (!(entry.getValue() instanceof List)) throw new IOException("\"inputs\" should be an array");
+					for (Object value : (List<Object>) entry.getValue()) {
+						if (!(value instanceof Map)) throw new IOException("Every input should be a JSON object");
+						Map<String, Object> input = (Map<String, Object>) value;
+						if (!input.containsKey("path")) throw new IOException("Input without a path");
+						Input jobInput = new Input(toString(input.get("path")),
+								input.containsKey("scale") ? Float.parseFloat(toString(input.get("scale"))) : 1.0f,
+								MAPTYPE_OF(input.get("type")));
+						if (input.containsKey("keepResident")) jobInput.keepResident = Boolean.parseBoolean(toString(input.get("keepResident")));
+						job.inputs.add(jobInput);
+					}
+				} else {
+					job.set(entry.getKey(), toString(entry.getValue()));
+				}
+			} catch (IllegalArgumentException ex) {
+				throw new IOException("Invalid value for \"" + entry.getKey() + "\" in the manifest", ex);
+			}
+		}
+	}
+
+	private static Bump2Roughness.MAPTYPE MAPTYPE_OF(Object value) {
+		if (value == null) return Bump2Roughness.MAPTYPE.BUMP;
+		return Bump2Roughness.MAPTYPE.valueOf(toString(value).toUpperCase());
+	}
+
+	/**
+	 * Turns a JSON value into the text that TextureSetJob.set() expects.
+	 * 
+	 * @param value
+	 * @return
+	 */
+	private static String toString(Object value) {
+		if (value instanceof Double) {
+			double number = (Double) value;
+			// Integers shouldn't get a ".0", since Integer.parseInt() doesn't like that.
+			if (number == Math.rint(number) && Math.abs(number) < 1e15) return Long.toString((long) number);
+		}
+		return String.valueOf(value);
+	}
+
+	private static String getKey(File file, Resampler.FILTER filter, boolean eightBit) {
+		String path;
+		try {
+			path = file.getCanonicalPath();
+		} catch (IOException ex) {
+			path = file.getAbsolutePath();
+		}
+		return path + "|" + filter.name() + (eightBit ? "|8" : "");
+	}
+
+	/**
+	 * Splits the jobs up into UDIM tiles, finds the inputs that they share and puts them in the order to run them in.
+	 * 
+	 * @param jobs
+	 * @return
+	 */
+	public synchronized List<TileResult> plan(List<TextureSetJob> jobs) {
+		List<TileResult> tiles = Pipeline.expandTiles(jobs);
+
+		// Count how many texture sets use each input.
+		Map<String, Integer> uses = new HashMap<String, Integer>();
+		Map<TileResult, Set<String>> tileKeys = new IdentityHashMap<TileResult, Set<String>>();
+		for (TileResult tile : tiles) {
+			Set<String> keys = new HashSet<String>();
+			if (tile.job.hasBaseRoughnessTexture()) keys.add(getKey(new File(tile.job.baseRoughness), tile.job.filter, false));
+			for (Input input : tile.job.inputs)
+				if (input.keepResident) keys.add(getKey(new File(input.path), tile.job.filter, tile.job.isEightBit(input)));
+			tileKeys.put(tile, keys);
+			for (String key : keys) {
+				Integer count = uses.get(key);
+				uses.put(key, count == null ? 1 : count + 1);
+			}
+		}
+
+		// Only the inputs used by multiple texture sets are worth keeping around.
+		int shared = 0;
+		int savedReads = 0;
+		for (Map.Entry<String, Integer> entry : uses.entrySet()) {
+			if (entry.getValue() < 2) continue;
+			SharedImage image = new SharedImage();
+			image.users = entry.getValue();
+			images.put(entry.getKey(), image);
+			shared += 1;
+			savedReads += entry.getValue() - 1;
+		}
+		for (TileResult tile : tiles) {
+			List<String> keys = new ArrayList<String>();
+			for (String key : tileKeys.get(tile))
+				if (images.containsKey(key)) keys.add(key);
+			jobKeys.put(tile.job, keys);
+		}
+
+		// Keep picking the texture set that shares the most with the inputs that are in memory at that point.
+		List<TileResult> order = new ArrayList<TileResult>();
+		List<TileResult> remaining = new ArrayList<TileResult>(tiles);
+		Map<String, Integer> remainingUsers = new HashMap<String, Integer>();
+		for (Map.Entry<String, SharedImage> entry : images.entrySet())
+			remainingUsers.put(entry.getKey(), entry.getValue().users);
+		Set<String> resident = new HashSet<String>();
+		int maxResident = 0;
+		while (!remaining.isEmpty()) {
+			int best = 0;
+			int bestShared = -1;
+			for (int i = 0; i < remaining.size(); ++i) {
+				int count = 0;
+				for (String key : jobKeys.get(remaining.get(i).job))
+					if (resident.contains(key)) count += 1;
+				if (count > bestShared) {
+					best = i;
+					bestShared = count;
+				}
+			}
+
+			TileResult next = remaining.remove(best);
+			order.add(next);
+			for (String key : jobKeys.get(next.job)) {
+				resident.add(key);
+				int left = remainingUsers.get(key) - 1;
+				remainingUsers.put(key, left);
+				if (left == 0) resident.remove(key);
+			}
+			maxResident = Math.max(maxResident, resident.size());
+		}
+
+		System.out.println("Planned " + order.size() + " texture sets: " + shared + " inputs are shared, which saves reading "
+				+ savedReads + " images. At most " + maxResident + " shared inputs are in memory between texture sets.");
+		return order;
+	}
+
+	@Override
+	public synchronized ImageContainer get(File file, Resampler.FILTER filter, boolean eightBit, boolean keepResident) throws IOException {
+		SharedImage image = keepResident ? images.get(getKey(file, filter, eightBit)) : null;
+		if (image == null) return PyramidCache.SOURCE.get(file, filter, eightBit, keepResident);
+
+		// The planner holds on to a single reference to it for all of the texture sets.
+		if (image.img == null) image.img = PyramidCache.SOURCE.get(file, filter, eightBit, true);
+		return image.img;
+	}
+
+	@Override
+	public synchronized void release(ImageContainer img) {
+		// Shared images are given back in release(TextureSetJob), once every texture set is done with them.
+		for (SharedImage image : images.values())
+			if (image.img == img) return;
+		PyramidCache.SOURCE.release(img);
+	}
+
+	/**
+	 * Lets the planner know that the texture set doesn't need its inputs anymore.
+	 * Inputs that no other texture set needs anymore are then given back to the PyramidCache.
+	 * 
+	 * @param job
+	 */
+	public synchronized void release(TextureSetJob job) {
+		List<String> keys = jobKeys.remove(job);
+		if (keys == null) return;
+		for (String key : keys) {
+			SharedImage image = images.get(key);
+			image.users -= 1;
+			if (image.users > 0) continue;
+
+			if (image.img != null) PyramidCache.SOURCE.release(image.img);
+			images.remove(key);
+		}
+	}
+
+}
@@ -0,0 +1,446 @@
+/*
+BSD 3-Clause License
+
+Copyright (c) 2020, Bram Stout
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+3. Neither the name of the copyright holder nor the names of its
+   contributors may be used to endorse or promote products derived from
+   this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+
+package nl.bramstout.bump2roughness;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+
+import nl.bramstout.bump2roughness.Bump2Roughness.ConsoleProgressCallback;
+import nl.bramstout.bump2roughness.Bump2Roughness.MAPTYPE;
+import nl.bramstout.bump2roughness.Bump2Roughness.ProgressCallback;
+import nl.bramstout.bump2roughness.Bump2Roughness.Settings;
+import nl.bramstout.bump2roughness.Threading.Task;
+
+/**
+ * Times the different ways of calculating the roughness against each other on a generated map
+ * and checks how much their results differ from getSlope() based reference.
+ */
+public class Benchmark {
+
+	/**
+	 * Usage: benchmark [resolution] [BUMP|DISPLACEMENT|NORMAL] [runs] [approximate samples]
+	 * or: benchmark --corpus [directory] [runs] [approximate samples], to run every map that BenchmarkCorpus wrote into the directory.
+	 * or: benchmark --checkpoint [resolution], to check that a fused job that got stopped gives the same result after resuming.
+	 *
+	 * @param args
+	 * @throws Exception
+	 */
+	public static void main(String[] args) throws Exception {
+		if (args.length > 0 && args[0].equalsIgnoreCase("--checkpoint")) {
+			if (!checkCheckpointResume(args.length > 1 ? Integer.parseInt(args[1]) : 256)) System.exit(1);
+			return;
+		}
+		if (args.length > 1 && args[0].equalsIgnoreCase("--corpus")) {
+			int runs = args.length > 2 ? Integer.parseInt(args[2]) : 3;
+			int approximateSamples = args.length > 3 ? Integer.parseInt(args[3]) : 64;
+			List<File> files = BenchmarkCorpus.list(new File(args[1]));
+			if (files.isEmpty()) throw new Exception("No maps in " + args[1]);
+			for (File file : files)
+				benchmarkFile(file, runs, approximateSamples);
+			return;
+		}
+
+		int resolution = args.length > 0 ? Integer.parseInt(args[0]) : 1024;
+		MAPTYPE mapType = args.length > 1 ? MAPTYPE.valueOf(args[1].toUpperCase()) : MAPTYPE.BUMP;
+		int runs = args.length > 2 ? Integer.parseInt(args[2]) : 3;
+		int approximateSamples = args.length > 3 ? Integer.parseInt(args[3]) : 64;
+
+		ImageContainer img = generateNoise(resolution, 1234);
+
+		Settings settings = new Settings();
+		settings.imgs.add(img);
+		settings.normalisationFactors.add(0.1f);
+		settings.mapType.add(mapType);
+		settings.callback = new ConsoleProgressCallback("");
+
+		System.out.println("Benchmarking " + resolution + "x" + resolution + " " + mapType + " map, best of " + runs + " runs");
+
+		settings.useKernels = false;
+		ImageContainer reference = new ImageContainer(img.width, img.height, img.mipmapLevels);
+		double referenceTime = time(new Bump2Roughness(settings), reference, runs, false);
+
+		settings.useKernels = true;
+		ImageContainer kernels = new ImageContainer(img.width, img.height, img.mipmapLevels);
+		double kernelTime = time(new Bump2Roughness(settings), kernels, runs, false);
+
+		ImageContainer field = new ImageContainer(img.width, img.height, img.mipmapLevels);
+		double fieldTime = time(new Bump2Roughness(settings), field, runs, true);
+
+		settings.halfFloatSlopes = true;
+		ImageContainer halfField = new ImageContainer(img.width, img.height, img.mipmapLevels);
+		double halfFieldTime = time(new Bump2Roughness(settings), halfField, runs, true);
+
+		settings.halfFloatSlopes = false;
+		settings.approximateSamples = approximateSamples;
+		ImageContainer approximate = new ImageContainer(img.width, img.height, img.mipmapLevels);
+		Bump2Roughness approximateSolver = new Bump2Roughness(settings);
+		double approximateTime = time(approximateSolver, approximate, runs, true);
+
+		System.out.println(String.format("getSlope():        %10.1f ms", referenceTime));
+		System.out.println(String.format("SlopeKernels:      %10.1f ms  (%.2fx, max relative error %g)", kernelTime, referenceTime / kernelTime,
+				maxError(reference, kernels)));
+		System.out.println(String.format("SlopeField:        %10.1f ms  (%.2fx, max relative error %g)", fieldTime, referenceTime / fieldTime,
+				maxError(reference, field)));
+		System.out.println(String.format("SlopeField (fp16): %10.1f ms  (%.2fx, max relative error %g)", halfFieldTime,
+				referenceTime / halfFieldTime, maxError(reference, halfField)));
+		System.out.println(String.format("Approximate (%d):  %10.1f ms  (%.2fx)", approximateSamples, approximateTime,
+				referenceTime / approximateTime));
+		for (int level = 1; level < img.mipmapLevels; ++level) {
+			if (approximateSolver.metrics.levels[level].approximateTexels == 0) continue;
+			System.out.println(String.format("  level %2d: estimated error %6.2f%%, actual error %6.2f%%", level,
+					approximateSolver.metrics.getEstimatedError(level) * 100.0, rmsError(reference, approximate, level) * 100.0));
+		}
+	}
+
+	/**
+	 * The result of one way of calculating the roughness.
+	 */
+	static class EngineResult {
+		String name;
+		double time;
+		ImageContainer result;
+
+		public EngineResult(String name, double time, ImageContainer result) {
+			this.name = name;
+			this.time = time;
+			this.result = result;
+		}
+	}
+
+	/**
+	 * Reads in a map and runs it through every way of calculating the roughness. The first one is the getSlope()
+	 * based reference, which the others are compared against. The throughput and the error of every level
+	 * are printed side by side.
+	 *
+	 * @param file
+	 * @param runs
+	 * @param approximateSamples
+	 * @throws Exception
+	 */
+	static void benchmarkFile(File file, int runs, int approximateSamples) throws Exception {
+		MAPTYPE mapType = BenchmarkCorpus.getMapType(file);
+		ImageContainer img = new ImageContainer(file);
+		img.read();
+
+		Settings settings = new Settings();
+		settings.imgs.add(img);
+		settings.normalisationFactors.add(0.1f);
+		settings.mapType.add(mapType);
+		settings.callback = new ConsoleProgressCallback("");
+
+		List<EngineResult> results = new ArrayList<EngineResult>();
+		settings.useKernels = false;
+		results.add(run("getSlope()", settings, runs, false));
+		settings.useKernels = true;
+		results.add(run("SlopeKernels", settings, runs, false));
+		results.add(run("SlopeField", settings, runs, true));
+		settings.halfFloatSlopes = true;
+		results.add(run("SlopeField fp16", settings, runs, true));
+		settings.halfFloatSlopes = false;
+		settings.approximateSamples = approximateSamples;
+		results.add(run("Approximate " + approximateSamples, settings, runs, true));
+		settings.approximateSamples = 0;
+		img.free();
+
+		// Only 8-bit bump and displacement maps that don't need to be resized can be read in as bytes.
+		ImageContainer bytes = new ImageContainer(file);
+		bytes.eightBit = true;
+		bytes.read();
+		if (bytes.bytes != null) {
+			settings.imgs.set(0, bytes);
+			results.add(runFixedPoint("Fixed point", settings, runs));
+		}
+		bytes.free();
+
+		ImageContainer reference = results.get(0).result;
+		double texels = ((double) reference.width) * reference.height;
+		StringBuilder report = new StringBuilder();
+		report.append(String.format("%n%s (%dx%d %s, best of %d runs)%n", file.getName(), reference.width, reference.height, mapType, runs));
+		report.append(String.format("%-16s", ""));
+		for (EngineResult result : results)
+			report.append(String.format("%18s", result.name));
+		report.append(String.format("%n%-16s", "time (ms)"));
+		for (EngineResult result : results)
+			report.append(String.format("%18.1f", result.time));
+		report.append(String.format("%n%-16s", "Mtexels/s"));
+		for (EngineResult result : results)
+			report.append(String.format("%18.2f", texels / result.time / 1000.0));
+		report.append(String.format("%n"));
+		// The errors are relative, the max to the texel and the RMS to the mean of the level.
+		for (int level = 1; level < reference.mipmapLevels; ++level) {
+			report.append(String.format("%-16s", "level " + level + " max"));
+			for (EngineResult result : results)
+				report.append(String.format("%18.3g", maxError(reference, result.result, level)));
+			report.append(String.format("%n%-16s", "level " + level + " rms"));
+			for (EngineResult result : results)
+				report.append(String.format("%18.3g", rmsError(reference, result.result, level)));
+			report.append(String.format("%n"));
+		}
+		System.out.print(report);
+
+		for (EngineResult result : results)
+			result.result.release();
+	}
+
+	private static EngineResult run(String name, Settings settings, int runs, boolean slopeField) throws Exception {
+		Bump2Roughness solver = new Bump2Roughness(settings);
+		ImageContainer img = settings.imgs.get(0);
+		ImageContainer target = new ImageContainer(img.width, img.height, img.mipmapLevels);
+		double time = time(solver, target, runs, slopeField);
+		solver.free();
+		return new EngineResult(name, time, target);
+	}
+
+	private static EngineResult runFixedPoint(String name, Settings settings, int runs) throws Exception {
+		Bump2Roughness solver = new Bump2Roughness(settings);
+		ImageContainer img = settings.imgs.get(0);
+		ImageContainer target = new ImageContainer(img.width, img.height, img.mipmapLevels);
+		double best = Double.MAX_VALUE;
+		for (int run = 0; run < runs; ++run) {
+			for (int level = 0; level < target.mipmapLevels; ++level)
+				Arrays.fill(target.buffers[level].data, 0.0f);
+
+			long start = System.nanoTime();
+			solver.calculateFixedPoint(0, target);
+			best = Math.min(best, (System.nanoTime() - start) / 1000000.0);
+		}
+		solver.free();
+		return new EngineResult(name, best, target);
+	}
+
+	/**
+	 * Runs two fused inputs in one go, and then again with a checkpoint, stopping the job
+	 * every time a new level has been saved and resuming it from the checkpoint.
+	 * Both outputs have to be the same, otherwise the checkpoint got an input added twice or not at all.
+	 *
+	 * @param resolution
+	 * @return Whether the resumed output matches.
+	 * @throws Exception
+	 */
+	static boolean checkCheckpointResume(int resolution) throws Exception {
+		File file = File.createTempFile("bump2roughness", ".checkpoint");
+		file.delete();
+		try {
+			System.out.println("Checking a " + resolution + "x" + resolution + " fused job that gets stopped and resumed from " + file);
+			Bump2Roughness reference = runCheckpointed(resolution, null);
+
+			// Every run adds at least one level, so it has to be done after this many.
+			Bump2Roughness resumed = null;
+			int stops = 0;
+			for (int run = 0; run <= reference.outputImg.mipmapLevels && resumed == null; ++run) {
+				Bump2Roughness solver = runCheckpointed(resolution, file);
+				if (solver.isCancelled()) {
+					stops += 1;
+					solver.free();
+				} else {
+					resumed = solver;
+				}
+			}
+			if (resumed == null) {
+				System.out.println("FAILED, the job never finished");
+				reference.free();
+				return false;
+			}
+
+			float error = maxError(reference.outputImg, resumed.outputImg);
+			reference.free();
+			resumed.free();
+			System.out.println(String.format("Stopped %d times, max relative error after resuming: %g", stops, error));
+			System.out.println(error == 0.0f ? "OK" : "FAILED");
+			return error == 0.0f;
+		} finally {
+			file.delete();
+		}
+	}
+
+	/**
+	 * Runs the job of checkCheckpointResume(). With a checkpoint file, the job gets cancelled
+	 * once a level that wasn't in the checkpoint yet has been added.
+	 *
+	 * @param resolution
+	 * @param file
+	 * @return The solver, with the output still in it.
+	 * @throws Exception
+	 */
+	private static Bump2Roughness runCheckpointed(int resolution, File file) throws Exception {
+		Settings settings = new Settings();
+		settings.roughnessValue = 0.2f;
+		for (int i = 0; i < 2; ++i) {
+			ImageContainer img = generateNoise(resolution, 1234 + i);
+			// Every run needs the generated images again, and they can't be read back from a file.
+			img.keepResident = true;
+			settings.imgs.add(img);
+			settings.normalisationFactors.add(0.1f);
+			settings.mapType.add(MAPTYPE.BUMP);
+		}
+		settings.fusedInputs = 2;
+		settings.callback = new ConsoleProgressCallback("");
+
+		final Bump2Roughness solver = new Bump2Roughness(settings);
+		solver.loadBaseRoughness();
+		if (file != null) {
+			// Opened here rather than through settings.checkpointPath, so that it can save after a millisecond
+			// instead of a whole second. That way a level gets saved as soon as it's done, but the inputs
+			// that finish right after it don't get a save of their own.
+			final Checkpoint checkpoint = Checkpoint.open(file, Checkpoint.getFingerprint(settings, solver.outputImg), solver.outputImg,
+					settings.imgs.size(), 1);
+			final boolean[] doneBefore = new boolean[solver.outputImg.mipmapLevels];
+			for (int level = 0; level < doneBefore.length; ++level)
+				doneBefore[level] = checkpoint.isDone(0, level);
+			solver.checkpoint = checkpoint;
+			settings.callback = new ProgressCallback() {
+
+				@Override
+				public void onProgress(double progress, String status) {
+				}
+
+				@Override
+				public void addProgress(double additionalProgress) {
+					for (int level = 0; level < doneBefore.length; ++level)
+						if (!doneBefore[level] && checkpoint.isDone(0, level)) solver.cancel();
+				}
+
+			};
+		}
+		try {
+			solver.calculateInputs();
+		} catch (CancellationException ex) {
+			if (file == null) throw ex;
+		}
+		return solver;
+	}
+
+	/**
+	 * Runs every level of img 0 and returns the fastest time in milliseconds.
+	 * The result of the last run is left in target.
+	 *
+	 * @param solver
+	 * @param target
+	 * @param runs
+	 * @param slopeField Whether to calculate the slope field of img 0 first, which is included in the time.
+	 * @return
+	 */
+	static double time(final Bump2Roughness solver, final ImageContainer target, int runs, boolean slopeField) {
+		double best = Double.MAX_VALUE;
+		for (int run = 0; run < runs; ++run) {
+			for (int level = 0; level < target.mipmapLevels; ++level)
+				Arrays.fill(target.buffers[level].data, 0.0f);
+
+			long start = System.nanoTime();
+			if (slopeField) solver.createSlopeField(0);
+			Threading.runParallel(target.mipmapLevels, new Task() {
+
+				@Override
+				public void run(int level) {
+					solver.calculateRoughnessForImageForLevel(0, level, target);
+				}
+
+			});
+			best = Math.min(best, (System.nanoTime() - start) / 1000000.0);
+			solver.freeSlopeField(0);
+		}
+		return best;
+	}
+
+	/**
+	 * Returns the root mean square difference between a and b in the given level, relative to the mean value in a.
+	 *
+	 * @param a
+	 * @param b
+	 * @param level
+	 * @return
+	 */
+	static double rmsError(ImageContainer a, ImageContainer b, int level) {
+		float[] dataA = a.buffers[level].data;
+		float[] dataB = b.buffers[level].data;
+		double sum = 0.0;
+		double sumSquaredError = 0.0;
+		for (int i = 0; i < dataA.length; ++i) {
+			sum += dataA[i];
+			sumSquaredError += (dataA[i] - dataB[i]) * (dataA[i] - dataB[i]);
+		}
+		// Levels without any roughness can only be compared absolutely.
+		if (sum <= 0.0) return Math.sqrt(sumSquaredError / dataA.length);
+		return Math.sqrt(sumSquaredError / dataA.length) / (sum / dataA.length);
+	}
+
+	/**
+	 * Returns the largest difference between a and b, relative to the value in a.
+	 *
+	 * @param a
+	 * @param b
+	 * @return
+	 */
+	static float maxError(ImageContainer a, ImageContainer b) {
+		float error = 0.0f;
+		for (int level = 0; level < a.mipmapLevels; ++level)
+			error = Math.max(error, maxError(a, b, level));
+		return error;
+	}
+
+	static float maxError(ImageContainer a, ImageContainer b, int level) {
+		float error = 0.0f;
+		for (int i = 0; i < a.buffers[level].data.length; ++i)
+			error = Math.max(error, Math.abs(a.buffers[level].data[i] - b.buffers[level].data[i]) / Math.max(Math.abs(a.buffers[level].data[i]), 1e-6f));
+		return error;
+	}
+
+	/**
+	 * Creates a square mipmapped image filled with value noise, that's already read in.
+	 *
+	 * @param resolution
+	 * @param seed
+	 * @return
+	 */
+	static ImageContainer generateNoise(int resolution, long seed) {
+		ImageContainer img = new ImageContainer(resolution, resolution, ImageContainer.getMipmapLevels(resolution, resolution));
+
+		float[] heights = BenchmarkCorpus.generateHeights(BenchmarkCorpus.PATTERN.NOISE, resolution, resolution, seed);
+		float[] data = img.buffers[0].data;
+		for (int i = 0; i < heights.length; ++i) {
+			// Use the value for the normal map as well, so that it has a sensible z.
+			data[i * 3] = heights[i];
+			data[i * 3 + 1] = heights[i];
+			data[i * 3 + 2] = 0.75f + heights[i] * 0.25f;
+		}
+
+		img.generateMipmaps();
+		img.read = true;
+		return img;
+	}
+
+}
@@ -0,0 +1,255 @@
+/*
+BSD 3-Clause License
+
+Copyright (c) 2020, Bram Stout
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+3. Neither the name of the copyright holder nor the names of its
+   contributors may be used to endorse or promote products derived from
+   this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+
+package nl.bramstout.bump2roughness;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+
+import nl.bramstout.bump2roughness.Bump2Roughness.MAPTYPE;
+import nl.bramstout.bump2roughness.Threading.Task;
+
+/**
+ * Generates bump, normal and displacement maps to benchmark with, so that everyone benchmarks on the same maps.
+ * The same seed always gives the same maps. Benchmark can then run every map in a directory through each
+ * way of calculating the roughness.
+ * 
+ * The maps are named pattern_maptype_widthxheight.png, so that Benchmark knows what kind of map each one is.
+ */
+public class BenchmarkCorpus {
+
+	public static enum PATTERN {
+		// A few octaves of smooth noise, with a bit of texel level noise on top.
+		NOISE,
+		// Sharp creases, which get steep enough for the slopes to be clamped.
+		RIDGES,
+		// Terraces: large regions with a single height and sharp steps in between.
+		FLAT
+	}
+
+	/**
+	 * Usage: corpus [directory] [--sizes 1024,1000x600] [--patterns NOISE,RIDGES,FLAT] [--seed 1234]
+	 * 
+	 * Sizes that aren't a power of two get resized when they are read in, just like any other input.
+	 * Keep in mind that the benchmark needs a lot of memory for the larger sizes.
+	 *
+	 * @param args
+	 * @throws Exception
+	 */
+	public static void main(String[] args) throws Exception {
+		if (args.length < 1) throw new Exception("No directory given");
+		File directory = new File(args[0]);
+		String sizes = "1024,1000x600";
+		String patterns = "NOISE,RIDGES,FLAT";
+		long seed = 1234;
+		for (int i = 1; i < args.length; i += 2) {
+			if (i + 1 >= args.length) throw new Exception("Missing value for " + args[i]);
+			if (args[i].equalsIgnoreCase("--sizes")) {
+				sizes = args[i + 1];
+			} else if (args[i].equalsIgnoreCase("--patterns")) {
+				patterns = args[i + 1];
+			} else if (args[i].equalsIgnoreCase("--seed")) {
+				seed = Long.parseLong(args[i + 1]);
+			} else {
+				throw new Exception("Unknown argument: " + args[i]);
+			}
+		}
+
+		if (!directory.isDirectory() && !directory.mkdirs()) throw new Exception("Could not create " + directory);
+
+		for (String size : sizes.split(",")) {
+			String[] parts = size.trim().toLowerCase().split("x");
+			int width = Integer.parseInt(parts[0]);
+			int height = parts.length > 1 ? Integer.parseInt(parts[1]) : width;
+			for (String name : patterns.split(",")) {
+				PATTERN pattern = PATTERN.valueOf(name.trim().toUpperCase());
+				float[] heights = generateHeights(pattern, width, height, seed);
+				for (MAPTYPE mapType : MAPTYPE.values()) {
+					File file = new File(directory, getFileName(pattern, mapType, width, height));
+					System.out.println("Writing " + file);
+					ImageIO.write(toImage(heights, width, height, mapType), "png", file);
+				}
+			}
+		}
+	}
+
+	public static String getFileName(PATTERN pattern, MAPTYPE mapType, int width, int height) {
+		return pattern.name().toLowerCase() + "_" + mapType.name().toLowerCase() + "_" + width + "x" + height + ".png";
+	}
+
+	/**
+	 * Returns the map type from the name of a file that main() wrote, or BUMP when it's not in there.
+	 * 
+	 * @param file
+	 * @return
+	 */
+	public static MAPTYPE getMapType(File file) {
+		for (String part : file.getName().toUpperCase().split("[_.]")) {
+			for (MAPTYPE mapType : MAPTYPE.values())
+				if (part.equals(mapType.name())) return mapType;
+		}
+		return MAPTYPE.BUMP;
+	}
+
+	/**
+	 * Returns the PNG files in the directory, sorted by name.
+	 * 
+	 * @param directory
+	 * @return
+	 */
+	public static List<File> list(File directory) {
+		List<File> files = new ArrayList<File>();
+		File[] children = directory.listFiles();
+		if (children == null) return files;
+		for (File child : children)
+			if (child.isFile() && child.getName().toLowerCase().endsWith(".png")) files.add(child);
+		Collections.sort(files);
+		return files;
+	}
+
+	/**
+	 * Returns width * height heights between 0 and 1, row by row.
+	 * 
+	 * @param pattern
+	 * @param width
+	 * @param height
+	 * @param seed
+	 * @return
+	 */
+	public static float[] generateHeights(PATTERN pattern, int width, int height, long seed) {
+		Random random = new Random(seed);
+		float[] heights = new float[width * height];
+		for (int octave = 0; octave < 5; ++octave) {
+			int cells = 4 << octave;
+			float[] grid = new float[cells * cells];
+			for (int i = 0; i < grid.length; ++i)
+				grid[i] = random.nextFloat();
+			addOctave(heights, width, height, grid, cells, 0.5f / (1 << octave), pattern == PATTERN.RIDGES);
+		}
+
+		if (pattern == PATTERN.FLAT) {
+			// Snap it to a few heights, which leaves large parts completely flat.
+			for (int i = 0; i < heights.length; ++i)
+				heights[i] = ((float) Math.floor(heights[i] * 6.0f)) / 6.0f;
+		} else if (pattern == PATTERN.NOISE) {
+			for (int i = 0; i < heights.length; ++i)
+				heights[i] += random.nextFloat() * 0.02f;
+		}
+		return heights;
+	}
+
+	/**
+	 * Adds a grid of cells by cells random values to heights, bilinearly interpolated and wrapping around.
+	 * Ridged octaves fold the values around 0.5, which leaves a crease wherever they cross it.
+	 */
+	private static void addOctave(final float[] heights, final int width, final int height, final float[] grid, final int cells,
+			final float weight, final boolean ridged) {
+		final int threads = Resampler.getThreadCount(height);
+		Threading.runParallel(threads, new Task() {
+
+			@Override
+			public void run(int thread) {
+				for (int y = thread * height / threads; y < (thread + 1) * height / threads; ++y) {
+					float fy = ((float) y) * cells / height;
+					int y0 = (int) fy;
+					float ty = fy - y0;
+					for (int x = 0; x < width; ++x) {
+						float fx = ((float) x) * cells / width;
+						int x0 = (int) fx;
+						float tx = fx - x0;
+						float v00 = grid[y0 * cells + x0];
+						float v10 = grid[y0 * cells + (x0 + 1) % cells];
+						float v01 = grid[((y0 + 1) % cells) * cells + x0];
+						float v11 = grid[((y0 + 1) % cells) * cells + (x0 + 1) % cells];
+						float v = (v00 * (1.0f - tx) + v10 * tx) * (1.0f - ty) + (v01 * (1.0f - tx) + v11 * tx) * ty;
+						if (ridged) v = 1.0f - Math.abs(v * 2.0f - 1.0f);
+						heights[y * width + x] += v * weight;
+					}
+				}
+			}
+
+		});
+	}
+
+	/**
+	 * Turns the heights into an 8-bit RGB image. Bump and displacement maps store the height in every channel,
+	 * normal maps store the normal of the surface that the heights describe.
+	 * 
+	 * @param heights
+	 * @param width
+	 * @param height
+	 * @param mapType
+	 * @return
+	 */
+	public static BufferedImage toImage(final float[] heights, final int width, final int height, final MAPTYPE mapType) {
+		final BufferedImage img = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+		final int threads = Resampler.getThreadCount(height);
+		Threading.runParallel(threads, new Task() {
+
+			@Override
+			public void run(int thread) {
+				int[] row = new int[width];
+				for (int y = thread * height / threads; y < (thread + 1) * height / threads; ++y) {
+					for (int x = 0; x < width; ++x) {
+						float h = heights[y * width + x];
+						if (mapType != MAPTYPE.NORMAL) {
+							int v = toByte(h);
+							row[x] = (v << 16) | (v << 8) | v;
+							continue;
+						}
+						// The slopes in texels, made a bit stronger so that the normals aren't all pointing straight up.
+						float dx = (heights[y * width + (x + 1) % width] - h) * 8.0f;
+						float dy = (heights[((y + 1) % height) * width + x] - h) * 8.0f;
+						float length = (float) Math.sqrt(dx * dx + dy * dy + 1.0f);
+						row[x] = (toByte(-dx / length * 0.5f + 0.5f) << 16) | (toByte(-dy / length * 0.5f + 0.5f) << 8)
+								| toByte(1.0f / length * 0.5f + 0.5f);
+					}
+					img.setRGB(0, y, width, 1, row, 0, width);
+				}
+			}
+
+		});
+		return img;
+	}
+
+	private static int toByte(float value) {
+		return Math.round(Math.min(Math.max(value, 0.0f), 1.0f) * 255.0f);
+	}
+
+}
@@ -0,0 +1,137 @@
+/*
+BSD 3-Clause License
+
+Copyright (c) 2020, Bram Stout
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+3. Neither the name of the copyright holder nor the names of its
+   contributors may be used to endorse or promote products derived from
+   this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+
+package nl.bramstout.bump2roughness;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Hands out the float arrays that back ImageBuffers and takes them back once they aren't needed anymore.
+ * 
+ * The pyramids of a batch of texture sets tend to have the same resolutions, so instead of
+ * allocating new arrays of hundreds of megabytes for every texture set and waiting on the
+ * garbage collector to clean up the old ones, the old arrays get reused. The arrays are
+ * kept per size class, which is their exact length, since the code going through the
+ * buffers uses data.length.
+ */
+public class BufferArena {
+
+	private static HashMap<Integer, ArrayDeque<float[]>> pool = new HashMap<Integer, ArrayDeque<float[]>>();
+	private static long pooledBytes = 0;
+	// The most memory that the arena will hold on to. Arrays given back beyond this are left to the garbage collector.
+	private static long capacity = Runtime.getRuntime().maxMemory() / 2;
+
+	private static long reused = 0;
+	private static long allocated = 0;
+
+	/**
+	 * Returns an array of exactly the given length.
+	 * 
+	 * @param length
+	 * @param clear If true, the array is filled with zeros. Otherwise it may contain anything.
+	 * @return
+	 */
+	public static float[] allocate(int length, boolean clear) {
+		float[] data = take(length);
+		if (data != null) {
+			if (clear) Arrays.fill(data, 0.0f);
+			return data;
+		}
+
+		try {
+			data = new float[length];
+		} catch (OutOfMemoryError ex) {
+			// The memory might be taken up by pooled arrays of other sizes or by cached pyramids that
+			// nobody is using, so let go of those and try again.
+			clear();
+			PyramidCache.clear();
+			data = new float[length];
+		}
+		synchronized (BufferArena.class) {
+			allocated++;
+		}
+		return data;
+	}
+
+	private static synchronized float[] take(int length) {
+		ArrayDeque<float[]> arrays = pool.get(length);
+		if (arrays == null || arrays.isEmpty()) return null;
+		float[] data = arrays.pop();
+		pooledBytes -= ((long) length) * 4;
+		reused++;
+		return data;
+	}
+
+	/**
+	 * Gives an array back to the arena. Whoever gave it back shouldn't use it anymore.
+	 * 
+	 * @param data
+	 */
+	public static synchronized void release(float[] data) {
+		if (data == null) return;
+		long bytes = ((long) data.length) * 4;
+		if (pooledBytes + bytes > capacity) return;
+
+		ArrayDeque<float[]> arrays = pool.get(data.length);
+		if (arrays == null) {
+			arrays = new ArrayDeque<float[]>();
+			pool.put(data.length, arrays);
+		}
+		arrays.push(data);
+		pooledBytes += bytes;
+	}
+
+	/**
+	 * Drops all of the pooled arrays.
+	 */
+	public static synchronized void clear() {
+		pool.clear();
+		pooledBytes = 0;
+	}
+
+	public static synchronized void setCapacity(long bytes) {
+		capacity = bytes;
+		if (pooledBytes > capacity) clear();
+	}
+
+	public static synchronized long getPooledBytes() {
+		return pooledBytes;
+	}
+
+	public static synchronized String getStats() {
+		return "Buffers reused: " + reused + "  allocated: " + allocated + "  pooled: " + (pooledBytes / (1024 * 1024)) + " MB";
+	}
+
+}
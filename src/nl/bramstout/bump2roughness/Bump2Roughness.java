@@ -35,9 +35,15 @@ package nl.bramstout.bump2roughness;
 
 import java.io.BufferedReader;
 import java.io.File;
+import java.io.IOException;
 import java.io.InputStreamReader;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CancellationException;
 
 import nl.bramstout.bump2roughness.ImageBuffer.RGB;
 import nl.bramstout.bump2roughness.Threading.Task;
@@ -63,6 +69,42 @@ public class Bump2Roughness {
 
 	}
 
+	/**
+	 * Progress callback for when there is no UI. It just prints the status to the console.
+	 */
+	public static class ConsoleProgressCallback implements ProgressCallback {
+
+		String prefix;
+
+		public ConsoleProgressCallback(String prefix) {
+			this.prefix = prefix;
+		}
+
+		@Override
+		public void onProgress(double progress, String status) {
+			System.out.println(prefix + "[" + ((int) (progress * 100.0)) + "%] " + status);
+		}
+
+		@Override
+		public void addProgress(double additionalProgress) {
+		}
+
+	}
+
+	public static interface PreviewCallback {
+
+		/**
+		 * Called with a rough version of the final roughness of a mipmap level, so that it can be shown to the user
+		 * while the exact roughness is still being calculated. It's called for the smallest levels first, going up to level 1,
+		 * and again for every image. The buffer is only valid during the call.
+		 * 
+		 * @param level
+		 * @param roughness
+		 */
+		public void onPreview(int level, ImageBuffer roughness);
+
+	}
+
 	public static enum MAPTYPE {
 		DISPLACEMENT, BUMP, NORMAL
 	}
@@ -72,7 +114,16 @@ public class Bump2Roughness {
 	}
 
 	public static enum OUTPUTMODE {
-		TEXTURE, INDIVIDUAL_LEVELS
+		TEXTURE, INDIVIDUAL_LEVELS, DDS, KTX2
+	}
+
+	public static enum OUTPUTPRECISION {
+		// 8-bit PNG files
+		BYTE,
+		// Half float EXR files
+		HALF,
+		// Float EXR files
+		FLOAT
 	}
 
 	public static class Settings {
@@ -81,6 +132,9 @@ public class Bump2Roughness {
 		// If roughnessImg is null, then it uses this float value as the base.
 		float roughnessValue = 0.0f;
 
+		// Where the images came from, so that they can be given back. Null when they were made directly.
+		TextureSetJob.ImageSource imageSource = null;
+
 		// Each of the input image to calculate the roughness for
 		ArrayList<ImageContainer> imgs = new ArrayList<ImageContainer>();
 		// The normalisation factor for each image
@@ -97,14 +151,71 @@ public class Bump2Roughness {
 		String outputPath = "";
 		// What should this algorithm output
 		OUTPUTMODE outputMode = OUTPUTMODE.TEXTURE;
+		// The texel format for the DDS and KTX2 output modes
+		EngineTextureWriter.FORMAT engineFormat = EngineTextureWriter.FORMAT.R8;
+		// How precise the mip map levels are written out, both for the TX/TEX file and the individual levels.
+		OUTPUTPRECISION outputPrecision = OUTPUTPRECISION.BYTE;
 
+		// Left empty to use the maketx or txmake that ToolRegistry finds.
 		String maketxPath = "";
 
+		// How many input images to keep in memory at the same time, so that their roughness
+		// can be added to the output image in one go. Higher values mean less passes over
+		// the output image, but more memory usage. 1 does each image separately.
+		int fusedInputs = 1;
+
+		// Whether to use the row based SlopeKernels instead of calling getSlope() for each texel.
+		// The results are the same apart from rounding, so this is mostly useful for comparing.
+		boolean useKernels = true;
+
+		// Whether to calculate the slopes of level 0 once for each image and let every level read them,
+		// instead of calculating them again for every level. Only used together with useKernels.
+		boolean cacheSlopes = true;
+		// Store those slopes as half floats, which halves the memory they take up.
+		boolean halfFloatSlopes = false;
+
+		// How many of the next input images to read in while the current one is being calculated.
+		// Higher values keep more of the disk and cores busy, but keep more images in memory.
+		int readAhead = 1;
+
+		// When larger than 0, texels with a footprint of more level 0 texels than this are estimated
+		// from this many samples spread out over the footprint, instead of using every texel of it.
+		// This is a lot faster for large maps, which is nice for previews. The estimated error ends
+		// up in the metrics. Only used together with useKernels.
+		int approximateSamples = 0;
+
+		// Whether to find the parts of the images where the slope doesn't change at all, so that
+		// their roughness can be calculated without going through their footprints.
+		// Only used together with useKernels.
+		boolean skipFlatRegions = true;
+
+		// When not empty, the squared roughness added up so far is saved into this file every
+		// checkpointInterval seconds, so that a job that got killed can continue where it was.
+		String checkpointPath = "";
+		int checkpointInterval = 300;
+
+		// Whether to read 8-bit bump and displacement maps in as bytes and calculate their roughness with
+		// integer sums (FixedPointPyramid), instead of as floats. This takes a lot less memory and time for large maps.
+		// Normal maps and maps that need to be resized always use floats.
+		boolean fixedPoint = false;
+
 		ProgressCallback callback;
+		// If not null, this gets previews of the result before the exact roughness has been calculated.
+		PreviewCallback previewCallback = null;
 	}
 
 	// A mip mapped image to store the output in
 	ImageContainer outputImg;
+	// The level 0 slopes of each image, while it is being worked on.
+	SlopeField[] slopeFields;
+	// Which footprints of each image only have a single slope, while it is being worked on.
+	FlatRegions[] flatRegions;
+	JobMetrics metrics;
+	// Where the progress is saved to, if settings.checkpointPath is set.
+	Checkpoint checkpoint = null;
+	// The preview roughness of the images that haven't been added to outputImg yet, per level.
+	private ImageBuffer[] previewSum = null;
+	private volatile boolean cancelled = false;
 
 	Settings settings;
 
@@ -131,6 +242,9 @@ public class Bump2Roughness {
 		}
 
 		outputImg = new ImageContainer((int) imgWidth, (int) imgHeight, settings.imgs.get(0).mipmapLevels);
+		slopeFields = new SlopeField[settings.imgs.size()];
+		flatRegions = new FlatRegions[settings.imgs.size()];
+		metrics = new JobMetrics(outputImg.mipmapLevels);
 	}
 
 	/**
@@ -178,11 +292,10 @@ public class Bump2Roughness {
 		} else {
 			// Bump of Displacement maps:
 
-			float duv;
-			// We assume that if an image does not have a square aspect ratio, through UV mapping
-			// the texels will still end up square which means du = dv and only one value is needed.
 			// Du and Dv is the size of a single texel in world coordinates.
-			duv = settings.unitSize / ((float) settings.imgs.get(index).buffers[level].width);
+			// The image covers the whole UV space, so for non-square images the texels aren't square.
+			float du = settings.unitSize / ((float) settings.imgs.get(index).buffers[level].width);
+			float dv = settings.unitSize / ((float) settings.imgs.get(index).buffers[level].height);
 
 			// Get Dx and Dy
 			float dx = settings.imgs.get(index).buffers[level].getPixel(x + 1, y).r - settings.imgs.get(index).buffers[level].getPixel(x, y).r;
@@ -193,8 +306,8 @@ public class Bump2Roughness {
 			dy *= settings.normalisationFactors.get(index);
 
 			// Calculate the slope
-			float slopeX = dx / duv;
-			float slopeY = dy / duv;
+			float slopeX = dx / du;
+			float slopeY = dy / dv;
 
 			if (settings.mapType.get(index) == MAPTYPE.BUMP) {
 				if (settings.renderer == RENDERER.RENDERMAN) {
@@ -215,67 +328,655 @@ public class Bump2Roughness {
 		}
 	}
 
-	public void calculateRoughnessForImageForLevel(int index, int level) {
-		System.out.println("Calculating img " + index + " level " + level);
+	/**
+	 * Returns the squared roughness for texel (i, j) in the given mipmap level.
+	 * 
+	 * @param index
+	 * @param level
+	 * @param i
+	 * @param j
+	 * @param scaleX The width of a texel in this level in texels of level 0.
+	 * @param scaleY The height of a texel in this level in texels of level 0.
+	 * @return
+	 */
+	public float calculateDeviation(int index, int level, int i, int j, int scaleX, int scaleY) {
+		// Get the slope at the current mip map level
+		float[] meanSlope = getSlope(i, j, index, level);
+
+		float deviation = 0.0f;
+		float count = 0.0f;
+		float[] sampleSlope = null;
+		// For each texel that is in the current mip mapped texel, we calculate the difference between
+		// its slope and meanSlope. Those differences are then averages using RMS (root mean squared).
+		// Basically, RMS = sqrt(a*a + b*b + c*c + d*d + ...)
+		for (int ii = i * scaleX; ii < (i + 1) * scaleX; ++ii) {
+			for (int jj = j * scaleY; jj < (j + 1) * scaleY; ++jj) {
+				// Get the slope
+				sampleSlope = getSlope(ii, jj, index, 0);
+				// Calculate the difference between this slope of meanSlope
+				sampleSlope[0] = sampleSlope[0] - meanSlope[0];
+				sampleSlope[1] = sampleSlope[1] - meanSlope[1];
+				// Square it and add it to deviation
+				deviation += sampleSlope[0] * sampleSlope[0] + sampleSlope[1] * sampleSlope[1];
+				// Also increase count which we use to average the deviations.
+				count += 1.0f;
+			}
+		}
 
-		if (level == 0) return; // The roughness we calculate is for the lost detail in the maps.
-								// At level 0 we haven't lost any details
-		int width = outputImg.buffers[level].width;
-		int height = outputImg.buffers[level].height;
+		// Normalise the averaging using count
+		deviation /= count;
+		// The roughness parameter in shaders are 2x the deviation, so multiply by 2.0
+		deviation *= 2.0f;
 
-		int scaleFactor = (int) Math.pow(2.0, (double) level);
+		// In reality deviation should be square rooted right here. However, when adding multiple roughness values
+		// together, you do it like so roughnessNew = sqrt(roughnessA*roughnessA + roughnessB+roughnessB)
+		// So, it's easier to hold on with the square root and keep everything as a squared value, so that we can
+		// simply add them together and only at the end get the square root of it.
 
-		for (int i = 0; i < width; ++i) {
-			for (int j = 0; j < height; ++j) {
-				// Get the slope at the current mip map level
-				float[] meanSlope = getSlope(i, j, index, level);
+		return deviation;
+	}
 
-				float deviation = 0.0f;
-				float count = 0.0f;
-				float[] sampleSlope = null;
-				// For each texel that is in the current mip mapped texel, we calculate the difference between
-				// its slope and meanSlope. Those differences are then averages using RMS (root mean squared).
-				// Basically, RMS = sqrt(a*a + b*b + c*c + d*d + ...)
-				for (int ii = i * scaleFactor; ii < (i + 1) * scaleFactor; ++ii) {
-					for (int jj = j * scaleFactor; jj < (j + 1) * scaleFactor; ++jj) {
-						// Get the slope
-						sampleSlope = getSlope(ii, jj, index, 0);
-						// Calculate the difference between this slope of meanSlope
-						sampleSlope[0] = sampleSlope[0] - meanSlope[0];
-						sampleSlope[1] = sampleSlope[1] - meanSlope[1];
-						// Square it and add it to deviation
-						deviation += sampleSlope[0] * sampleSlope[0] + sampleSlope[1] * sampleSlope[1];
-						// Also increase count which we use to average the deviations.
-						count += 1.0f;
+	/**
+	 * Returns the width of a texel in the given mipmap level, in texels of level 0.
+	 * 
+	 * @param level
+	 * @return
+	 */
+	public int getScaleFactorX(int level) {
+		return outputImg.width / outputImg.buffers[level].width;
+	}
+
+	/**
+	 * Returns the height of a texel in the given mipmap level, in texels of level 0.
+	 * Once the image is a single texel high, this keeps growing slower than getScaleFactorX().
+	 * 
+	 * @param level
+	 * @return
+	 */
+	public int getScaleFactorY(int level) {
+		return outputImg.height / outputImg.buffers[level].height;
+	}
+
+	/**
+	 * Returns scratch space for the kernel version of calculateDeviation(), or null if the kernels shouldn't be used.
+	 * 
+	 * @param level
+	 * @return
+	 */
+	public SlopeKernels.Scratch createScratch(int level) {
+		if (!settings.useKernels) return null;
+		return new SlopeKernels.Scratch(getScaleFactorX(level), outputImg.buffers[level].width);
+	}
+
+	/**
+	 * Calculates the slopes for n texels starting at (x0, y) in the given mipmap level, into scratch.slopeX and scratch.slopeY.
+	 * This gives the same slopes as getSlope(), but for a whole row at once.
+	 * 
+	 * @param index
+	 * @param level
+	 * @param x0
+	 * @param y
+	 * @param n
+	 * @param scratch
+	 */
+	public void calculateSlopes(int index, int level, int x0, int y, int n, SlopeKernels.Scratch scratch) {
+		ImageBuffer buffer = settings.imgs.get(index).buffers[level];
+		MAPTYPE mapType = settings.mapType.get(index);
+		float strength = settings.normalisationFactors.get(index);
+
+		if (mapType == MAPTYPE.NORMAL) {
+			SlopeKernels.normalSlopes(buffer, x0, y, n, strength, scratch);
+		} else {
+			float du = settings.unitSize / ((float) buffer.width);
+			float dv = settings.unitSize / ((float) buffer.height);
+			float divisor = settings.renderer == RENDERER.RENDERMAN && mapType == MAPTYPE.BUMP ? 20.0f : 1.0f;
+			SlopeKernels.heightSlopes(buffer, x0, y, n, strength, du, dv, divisor, scratch);
+		}
+
+		// The same clamping as in getSlope()
+		if (settings.renderer == RENDERER.ARNOLD && mapType != MAPTYPE.DISPLACEMENT) {
+			SlopeKernels.clamp(scratch.slopeX, n, -1.0f, 1.0f);
+			SlopeKernels.clamp(scratch.slopeY, n, -1.0f, 1.0f);
+		}
+	}
+
+	/**
+	 * Calculates the slopes of row j in the given mipmap level into scratch.meanSlopeX and scratch.meanSlopeY.
+	 * 
+	 * @param index
+	 * @param level
+	 * @param j
+	 * @param scratch
+	 */
+	public void calculateMeanSlopes(int index, int level, int j, SlopeKernels.Scratch scratch) {
+		int width = settings.imgs.get(index).buffers[level].width;
+		calculateSlopes(index, level, 0, j, width, scratch);
+		System.arraycopy(scratch.slopeX, 0, scratch.meanSlopeX, 0, width);
+		System.arraycopy(scratch.slopeY, 0, scratch.meanSlopeY, 0, width);
+	}
+
+	/**
+	 * Returns the squared roughness for the footprint of texel (i, j) given its mean slope,
+	 * going through the footprint row by row.
+	 * 
+	 * @param index
+	 * @param i
+	 * @param j
+	 * @param scaleX
+	 * @param scaleY
+	 * @param meanSlopeX
+	 * @param meanSlopeY
+	 * @param scratch
+	 * @return
+	 */
+	public float calculateFootprintDeviation(int index, int i, int j, int scaleX, int scaleY, float meanSlopeX, float meanSlopeY,
+			SlopeKernels.Scratch scratch) {
+		SlopeField slopeField = slopeFields[index];
+		float deviation = 0.0f;
+		for (int jj = j * scaleY; jj < (j + 1) * scaleY; ++jj) {
+			if (slopeField != null)
+				slopeField.readRow(i * scaleX, jj, scaleX, scratch);
+			else calculateSlopes(index, 0, i * scaleX, jj, scaleX, scratch);
+			deviation += SlopeKernels.squaredDifferenceSum(scratch.slopeX, scratch.slopeY, scaleX, meanSlopeX, meanSlopeY);
+		}
+
+		deviation /= ((float) scaleX) * ((float) scaleY);
+		deviation *= 2.0f;
+
+		return deviation;
+	}
+
+	private static int hash(int a, int b, int c, int d) {
+		int h = a * 0x9E3779B1 ^ b * 0x85EBCA77 ^ c * 0xC2B2AE3D ^ d * 0x27D4EB2F;
+		h ^= h >>> 15;
+		h *= 0x2C1B3C6D;
+		h ^= h >>> 12;
+		h *= 0x297A2D39;
+		h ^= h >>> 15;
+		return h;
+	}
+
+	/**
+	 * Estimates the squared roughness for the footprint of texel (i, j) from about settings.approximateSamples
+	 * of its level 0 texels, instead of all of them.
+	 * 
+	 * The footprint is split up into a grid of equally sized cells and one texel is picked at random in each cell.
+	 * The average of their squared differences is an unbiased estimate of the average over the whole footprint.
+	 * The variance of that estimate is added to counter, so that we know roughly how far off it is.
+	 * 
+	 * @param index
+	 * @param level
+	 * @param i
+	 * @param j
+	 * @param scaleX
+	 * @param scaleY
+	 * @param meanSlopeX
+	 * @param meanSlopeY
+	 * @param counter
+	 * @return
+	 */
+	public float estimateFootprintDeviation(int index, int level, int i, int j, int scaleX, int scaleY, float meanSlopeX, float meanSlopeY,
+			JobMetrics.LevelCounter counter) {
+		// The footprints are powers of 2, so use a power of 2 grid, so that the cells divide it up evenly.
+		int cellsX = Math.min(scaleX, Integer.highestOneBit(Math.max(1, (int) Math.sqrt(settings.approximateSamples))));
+		int cellsY = Math.min(scaleY, Integer.highestOneBit(Math.max(1, settings.approximateSamples / cellsX)));
+		int cellWidth = scaleX / cellsX;
+		int cellHeight = scaleY / cellsY;
+		int samples = cellsX * cellsY;
+
+		SlopeField slopeField = slopeFields[index];
+		double sum = 0.0;
+		double sumSquared = 0.0;
+		for (int cy = 0; cy < cellsY; ++cy) {
+			for (int cx = 0; cx < cellsX; ++cx) {
+				// The same texels get picked every time, so that the results don't change between runs.
+				int h = hash(i, j, level, cy * cellsX + cx);
+				int x = i * scaleX + cx * cellWidth + (h & (cellWidth - 1));
+				int y = j * scaleY + cy * cellHeight + ((h >>> 16) & (cellHeight - 1));
+
+				float slopeX;
+				float slopeY;
+				if (slopeField != null) {
+					slopeX = slopeField.getSlopeX(x, y);
+					slopeY = slopeField.getSlopeY(x, y);
+				} else {
+					float[] slope = getSlope(x, y, index, 0);
+					slopeX = slope[0];
+					slopeY = slope[1];
+				}
+
+				float dx = slopeX - meanSlopeX;
+				float dy = slopeY - meanSlopeY;
+				double d = dx * dx + dy * dy;
+				sum += d;
+				sumSquared += d * d;
+			}
+		}
+
+		double mean = sum / samples;
+		// The variance of the mean of the samples, including the correction for sampling from a limited footprint.
+		// The cells make the actual error smaller than this, so this is on the safe side.
+		double variance = 0.0;
+		if (samples > 1) {
+			double sampleVariance = Math.max(0.0, (sumSquared - sum * mean) / (samples - 1));
+			variance = sampleVariance / samples * (1.0 - ((double) samples) / (((double) scaleX) * ((double) scaleY)));
+		}
+
+		float deviation = (float) (mean * 2.0);
+
+		counter.texels++;
+		counter.approximateTexels++;
+		counter.samples += samples;
+		counter.deviationSum += deviation;
+		// The deviation gets multiplied by 2, so the variance by 4.
+		counter.varianceSum += variance * 4.0;
+
+		return deviation;
+	}
+
+	/**
+	 * Returns the squared roughness for the footprint of texel (i, j), either exactly or estimated,
+	 * depending on settings.approximateSamples, and keeps track of it in counter.
+	 * 
+	 * @param index
+	 * @param level
+	 * @param i
+	 * @param j
+	 * @param scaleX
+	 * @param scaleY
+	 * @param meanSlopeX
+	 * @param meanSlopeY
+	 * @param scratch
+	 * @param counter
+	 * @return
+	 */
+	public float calculateTexelDeviation(int index, int level, int i, int j, int scaleX, int scaleY, float meanSlopeX, float meanSlopeY,
+			SlopeKernels.Scratch scratch, JobMetrics.LevelCounter counter) {
+		FlatRegions regions = flatRegions[index];
+		if (regions != null && regions.isFlat(level, i, j)) {
+			float deviation = regions.getDeviation(level, i, j, meanSlopeX, meanSlopeY);
+			counter.texels++;
+			counter.flatTexels++;
+			counter.skippedSamples += scaleX * scaleY;
+			counter.deviationSum += deviation;
+			return deviation;
+		}
+
+		if (settings.approximateSamples > 0 && ((long) scaleX) * scaleY > settings.approximateSamples)
+			return estimateFootprintDeviation(index, level, i, j, scaleX, scaleY, meanSlopeX, meanSlopeY, counter);
+
+		float deviation;
+		if (regions != null) {
+			// Parts of the footprint might still be flat.
+			deviation = calculateFlatFootprintSum(index, regions, level, i, j, meanSlopeX, meanSlopeY, scratch, counter);
+			deviation /= ((float) scaleX) * ((float) scaleY);
+			deviation *= 2.0f;
+		} else {
+			deviation = calculateFootprintDeviation(index, i, j, scaleX, scaleY, meanSlopeX, meanSlopeY, scratch);
+			counter.samples += scaleX * scaleY;
+		}
+		counter.texels++;
+		counter.deviationSum += deviation;
+		return deviation;
+	}
+
+	// Footprints at most this wide are gone through row by row, instead of looking for flat parts in them.
+	private static final int FLAT_LEAF_SIZE = 32;
+
+	/**
+	 * Returns the sum of |s - m|^2 over the footprint of texel (i, j). The footprint is split up into the
+	 * footprints of the texels of the level before it, and those that are flat are handled in one go.
+	 * Footprints wider than FLAT_LEAF_SIZE are summed up in a different order than calculateFootprintDeviation()
+	 * does, so the result is the same within float rounding, but not to the last bit.
+	 * 
+	 * @param index
+	 * @param regions
+	 * @param level
+	 * @param i
+	 * @param j
+	 * @param meanSlopeX
+	 * @param meanSlopeY
+	 * @param scratch
+	 * @param counter
+	 * @return
+	 */
+	private float calculateFlatFootprintSum(int index, FlatRegions regions, int level, int i, int j, float meanSlopeX, float meanSlopeY,
+			SlopeKernels.Scratch scratch, JobMetrics.LevelCounter counter) {
+		int scaleX = regions.widths[0] / regions.widths[level];
+		int scaleY = regions.heights[0] / regions.heights[level];
+
+		if (regions.isFlat(level, i, j)) {
+			counter.skippedSamples += scaleX * scaleY;
+			return regions.getSquaredDifference(level, i, j, meanSlopeX, meanSlopeY) * (((float) scaleX) * ((float) scaleY));
+		}
+
+		if (level == 1 || scaleX <= FLAT_LEAF_SIZE) {
+			SlopeField slopeField = slopeFields[index];
+			float sum = 0.0f;
+			for (int jj = j * scaleY; jj < (j + 1) * scaleY; ++jj) {
+				if (slopeField != null)
+					slopeField.readRow(i * scaleX, jj, scaleX, scratch);
+				else calculateSlopes(index, 0, i * scaleX, jj, scaleX, scratch);
+				sum += SlopeKernels.squaredDifferenceSum(scratch.slopeX, scratch.slopeY, scaleX, meanSlopeX, meanSlopeY);
+			}
+			counter.samples += scaleX * scaleY;
+			return sum;
+		}
+
+		int countX = regions.widths[level - 1] > regions.widths[level] ? 2 : 1;
+		int countY = regions.heights[level - 1] > regions.heights[level] ? 2 : 1;
+		float sum = 0.0f;
+		for (int jj = j * countY; jj < (j + 1) * countY; ++jj)
+			for (int ii = i * countX; ii < (i + 1) * countX; ++ii)
+				sum += calculateFlatFootprintSum(index, regions, level - 1, ii, jj, meanSlopeX, meanSlopeY, scratch, counter);
+		return sum;
+	}
+
+	/**
+	 * The same as calculateDeviation(), but it goes through the footprint row by row using SlopeKernels.
+	 * If scratch is null, it falls back to calculateDeviation().
+	 * 
+	 * @param index
+	 * @param level
+	 * @param i
+	 * @param j
+	 * @param scaleX
+	 * @param scaleY
+	 * @param scratch
+	 * @param counter
+	 * @return
+	 */
+	public float calculateDeviation(int index, int level, int i, int j, int scaleX, int scaleY, SlopeKernels.Scratch scratch,
+			JobMetrics.LevelCounter counter) {
+		if (scratch == null) {
+			float deviation = calculateDeviation(index, level, i, j, scaleX, scaleY);
+			counter.texels++;
+			counter.samples += scaleX * scaleY;
+			counter.deviationSum += deviation;
+			return deviation;
+		}
+
+		float[] meanSlope = getSlope(i, j, index, level);
+		return calculateTexelDeviation(index, level, i, j, scaleX, scaleY, meanSlope[0], meanSlope[1], scratch, counter);
+	}
+
+	/**
+	 * Calculates the level 0 slopes of the given image into slopeFields, if the settings ask for it.
+	 * The image has to be read in already.
+	 * 
+	 * @param index
+	 */
+	public void createSlopeField(final int index) {
+		if (!settings.useKernels || !settings.cacheSlopes) return;
+
+		final ImageBuffer buffer = settings.imgs.get(index).buffers[0];
+		final SlopeField slopeField = new SlopeField(buffer.width, buffer.height, settings.halfFloatSlopes);
+		final int threads = Math.max(1, Math.min(buffer.height, Runtime.getRuntime().availableProcessors()));
+
+		Threading.runParallel(threads, new Task() {
+
+			@Override
+			public void run(int thread) {
+				SlopeKernels.Scratch scratch = new SlopeKernels.Scratch(buffer.width, 0);
+				for (int y = thread * buffer.height / threads; y < (thread + 1) * buffer.height / threads; ++y) {
+					calculateSlopes(index, 0, 0, y, buffer.width, scratch);
+					slopeField.setRow(y, scratch.slopeX, scratch.slopeY);
+				}
+			}
+
+		});
+
+		slopeFields[index] = slopeField;
+	}
+
+	public void freeSlopeField(int index) {
+		if (slopeFields[index] != null) {
+			slopeFields[index].release();
+			slopeFields[index] = null;
+		}
+	}
+
+	/**
+	 * Finds the flat regions of the given image into flatRegions, if the settings ask for it.
+	 * The image has to be read in already and createSlopeField() should have been called first.
+	 * 
+	 * @param index
+	 */
+	public void createFlatRegions(final int index) {
+		if (!settings.useKernels || !settings.skipFlatRegions || outputImg.mipmapLevels < 2) return;
+
+		final ImageBuffer buffer = settings.imgs.get(index).buffers[0];
+		final FlatRegions regions = new FlatRegions(buffer.width, buffer.height, outputImg.mipmapLevels);
+		final SlopeField slopeField = slopeFields[index];
+
+		// Each thread gets its own rows of level 1.
+		final int rowsPerTexel = regions.heights[0] / regions.heights[1];
+		final int threads = Math.max(1, Math.min(regions.heights[1], Runtime.getRuntime().availableProcessors()));
+		Threading.runParallel(threads, new Task() {
+
+			@Override
+			public void run(int thread) {
+				SlopeKernels.Scratch scratch = new SlopeKernels.Scratch(buffer.width, 0);
+				for (int j = thread * regions.heights[1] / threads; j < (thread + 1) * regions.heights[1] / threads; ++j) {
+					for (int y = j * rowsPerTexel; y < (j + 1) * rowsPerTexel; ++y) {
+						if (slopeField != null)
+							slopeField.readRow(0, y, buffer.width, scratch);
+						else calculateSlopes(index, 0, 0, y, buffer.width, scratch);
+						regions.addRow(y, scratch.slopeX, scratch.slopeY);
+					}
+				}
+			}
+
+		});
+
+		regions.generateLevels();
+		flatRegions[index] = regions;
+	}
+
+	/**
+	 * Creates everything that the levels of the given image share: the slope field and the flat regions.
+	 * 
+	 * @param index
+	 */
+	public void prepareSlopes(int index) {
+		if (isFixedPoint(index)) return;
+		createSlopeField(index);
+		createFlatRegions(index);
+	}
+
+	public void freeSlopes(int index) {
+		freeSlopeField(index);
+		flatRegions[index] = null;
+	}
+
+	/**
+	 * Stops calculating the roughness as soon as possible. calculateRoughness() and writeOutput()
+	 * then throw a CancellationException.
+	 */
+	public void cancel() {
+		cancelled = true;
+	}
+
+	public boolean isCancelled() {
+		return cancelled;
+	}
+
+	private void checkCancelled() {
+		if (cancelled) throw new CancellationException("Cancelled");
+	}
+
+	/**
+	 * Calculates the sums of the level 0 slopes of the given image for every level.
+	 * The image has to be read in already.
+	 * 
+	 * @param index
+	 * @return
+	 */
+	public MomentPyramid createMomentPyramid(final int index) {
+		final ImageBuffer buffer = settings.imgs.get(index).buffers[0];
+		final MomentPyramid moments = new MomentPyramid(buffer.width, buffer.height, outputImg.mipmapLevels);
+		final SlopeField slopeField = slopeFields[index];
+		if (moments.mipmapLevels < 2) return moments;
+
+		// Each thread gets its own rows of level 1, so that they don't write to the same sums.
+		final int rowsPerTexel = moments.heights[0] / moments.heights[1];
+		final int threads = Math.max(1, Math.min(moments.heights[1], Runtime.getRuntime().availableProcessors()));
+		Threading.runParallel(threads, new Task() {
+
+			@Override
+			public void run(int thread) {
+				SlopeKernels.Scratch scratch = new SlopeKernels.Scratch(buffer.width, 0);
+				for (int j = thread * moments.heights[1] / threads; j < (thread + 1) * moments.heights[1] / threads; ++j) {
+					for (int y = j * rowsPerTexel; y < (j + 1) * rowsPerTexel; ++y) {
+						if (slopeField != null)
+							slopeField.readRow(0, y, buffer.width, scratch);
+						else calculateSlopes(index, 0, 0, y, buffer.width, scratch);
+						moments.addRow(y, scratch.slopeX, scratch.slopeY);
 					}
 				}
+			}
+
+		});
+
+		moments.generateLevels();
+		return moments;
+	}
+
+	/**
+	 * Quickly calculates the roughness of the given image using a MomentPyramid and gives it to the preview callback,
+	 * from the smallest level up to level 1. The image has to be read in already.
+	 * 
+	 * @param index
+	 */
+	public void calculatePreview(int index) {
+		if (settings.previewCallback == null || cancelled || outputImg.mipmapLevels < 2) return;
+
+		MomentPyramid moments = createMomentPyramid(index);
+		if (previewSum == null) previewSum = new ImageBuffer[outputImg.mipmapLevels];
+
+		for (int level = outputImg.mipmapLevels - 1; level >= 1; --level) {
+			if (cancelled) return;
+
+			int width = outputImg.buffers[level].width;
+			int height = outputImg.buffers[level].height;
+			int scaleX = getScaleFactorX(level);
+			int scaleY = getScaleFactorY(level);
+			if (previewSum[level] == null) previewSum[level] = new ImageBuffer(width, height);
+			float[] sum = previewSum[level].data;
+
+			SlopeKernels.Scratch scratch = new SlopeKernels.Scratch(0, width);
+			for (int j = 0; j < height; ++j) {
+				calculateMeanSlopes(index, level, j, scratch);
+				int dataIndex = j * width * 3;
+				for (int i = 0; i < width; ++i, dataIndex += 3) {
+					float deviation = moments.getDeviation(level, i, j, scratch.meanSlopeX[i], scratch.meanSlopeY[i], scaleX * scaleY);
+					sum[dataIndex] += deviation;
+					sum[dataIndex + 1] += deviation;
+					sum[dataIndex + 2] += deviation;
+				}
+			}
+
+			// Add it to what is already in the output image and finalise it, the same as finaliseLevel().
+			float[] output = outputImg.buffers[level].data;
+			ImageBuffer preview = new ImageBuffer(width, height, BufferArena.allocate(output.length, false));
+			for (int i = 0; i < output.length; ++i)
+				preview.data[i] = Math.min(Math.max((float) Math.sqrt(output[i] + sum[i]), 0.0f), 1.0f);
+			settings.previewCallback.onPreview(level, preview);
+			preview.release();
+		}
+	}
+
+	/**
+	 * Throws away the preview roughness, once the exact roughness of the images has been added to outputImg.
+	 */
+	private void clearPreview() {
+		if (previewSum == null) return;
+		for (ImageBuffer buffer : previewSum)
+			if (buffer != null) buffer.release();
+		previewSum = null;
+	}
 
-				// Normalise the averaging using count
-				deviation /= count;
-				// The roughness parameter in shaders are 2x the deviation, so multiply by 2.0
-				deviation *= 2.0f;
+	public void calculateRoughnessForImageForLevel(int index, int level) {
+		calculateRoughnessForImageForLevel(index, level, outputImg);
+	}
 
-				// In reality deviation should be square rooted right here. However, when adding multiple roughness values
-				// together, you do it like so roughnessNew = sqrt(roughnessA*roughnessA + roughnessB+roughnessB)
-				// So, it's easier to hold on with the square root and keep everything as a squared value, so that we can
-				// simply add them together and only at the end get the square root of it.
+	/**
+	 * Calculates the squared roughness for the given image and mipmap level and adds it to target.
+	 * 
+	 * @param index
+	 * @param level
+	 * @param target
+	 */
+	public void calculateRoughnessForImageForLevel(int index, int level, ImageContainer target) {
+		System.out.println("Calculating img " + index + " level " + level);
 
-				// Add the deviation to the buffer and store the new value.
-				RGB val = outputImg.buffers[level].getPixel(i, j);
-				val.r += deviation;
-				val.g += deviation;
-				val.b += deviation;
+		if (level == 0) return; // The roughness we calculate is for the lost detail in the maps.
+								// At level 0 we haven't lost any details
+		ImageBuffer buffer = target.buffers[level];
+		int width = buffer.width;
+		int height = buffer.height;
+
+		int scaleX = getScaleFactorX(level);
+		int scaleY = getScaleFactorY(level);
+		SlopeKernels.Scratch scratch = createScratch(level);
+		JobMetrics.LevelCounter counter = new JobMetrics.LevelCounter();
+
+		if (scratch == null) {
+			for (int i = 0; i < width && !cancelled; ++i) {
+				for (int j = 0; j < height; ++j) {
+					float deviation = calculateDeviation(index, level, i, j, scaleX, scaleY, null, counter);
+
+					// Add the deviation to the buffer and store the new value.
+					RGB val = buffer.getPixel(i, j);
+					val.r += deviation;
+					val.g += deviation;
+					val.b += deviation;
+
+					buffer.setPixel(i, j, val);
+				}
+			}
+			metrics.add(level, counter);
+			return;
+		}
 
-				outputImg.buffers[level].setPixel(i, j, val);
+		// Go through it row by row, so that the mean slopes can be calculated for a whole row at once
+		// and the buffer can be accessed directly.
+		for (int j = 0; j < height && !cancelled; ++j) {
+			calculateMeanSlopes(index, level, j, scratch);
+
+			int dataIndex = buffer.getIndex(0, j);
+			for (int i = 0; i < width; ++i, dataIndex += 3) {
+				float deviation = calculateTexelDeviation(index, level, i, j, scaleX, scaleY, scratch.meanSlopeX[i], scratch.meanSlopeY[i],
+						scratch, counter);
+				buffer.data[dataIndex] += deviation;
+				buffer.data[dataIndex + 1] += deviation;
+				buffer.data[dataIndex + 2] += deviation;
 			}
 		}
+		metrics.add(level, counter);
 	}
 
 	public void calculateRoughnessForImage(int index) {
+		calculateRoughnessForImage(index, outputImg);
+	}
+
+	public void calculateRoughnessForImage(final int index, final ImageContainer target) {
 		settings.callback.onProgress((((float) index) / ((float) settings.imgs.size())) * 0.6 + 0.05, "Reading img " + index);
 
 		// Read the current image into memory.
 		settings.imgs.get(index).read();
+		if (isFixedPoint(index)) {
+			settings.callback.onProgress((((float) index) / ((float) settings.imgs.size())) * 0.6 + 0.05, "Calculating roughness for img " + index);
+			calculateFixedPoint(index, target);
+			settings.imgs.get(index).free();
+			return;
+		}
+		prepareSlopes(index);
+
+		if (settings.previewCallback != null) {
+			settings.callback.onProgress((((float) index) / ((float) settings.imgs.size())) * 0.6 + 0.05, "Calculating preview for img " + index);
+			calculatePreview(index);
+		}
 
 		settings.callback.onProgress((((float) index) / ((float) settings.imgs.size())) * 0.6 + 0.05, "Calculating roughness for img " + index);
 
@@ -288,7 +989,15 @@ public class Bump2Roughness {
 
 			@Override
 			public void run(int i) {
-				calculateRoughnessForImageForLevel(index, i);
+				// The checkpoint only keeps track of outputImg, and not of contributions.
+				boolean useCheckpoint = checkpoint != null && target == outputImg;
+				if (useCheckpoint && checkpoint.isDone(index, i)) {
+					if (i > 0) System.out.println("Img " + index + " level " + i + " is already in the checkpoint");
+				} else {
+					if (useCheckpoint) checkpoint.begin(i);
+					calculateRoughnessForImageForLevel(index, i, target);
+					if (useCheckpoint && !cancelled) checkpoint.finish(index, i);
+				}
 
 				float progressLevels = 1.0f / ((float) (settings.imgs.get(index).mipmapLevels * settings.imgs.size()));
 				settings.callback.addProgress(progressLevels * 0.6);
@@ -298,28 +1007,192 @@ public class Bump2Roughness {
 		// Free the memory used for this image.
 		// Doing a read-free thing here, means that we don't need as much memory
 		// as when we read all of the textures into memory at the beginning.
+		freeSlopes(index);
+		settings.imgs.get(index).free();
+		clearPreview();
+	}
+
+	/**
+	 * Returns whether the given image was read in as bytes, so that its roughness is calculated with calculateFixedPoint().
+	 * 
+	 * @param index
+	 * @return
+	 */
+	public boolean isFixedPoint(int index) {
+		return settings.imgs.get(index).bytes != null;
+	}
+
+	/**
+	 * Calculates the squared roughness of an image that was read in as bytes and adds it to target.
+	 * The levels are done one after the other, since every level is made from the one before it.
+	 * 
+	 * @param index
+	 * @param target
+	 */
+	public void calculateFixedPoint(int index, ImageContainer target) {
+		ImageContainer img = settings.imgs.get(index);
+		MAPTYPE mapType = settings.mapType.get(index);
+		// The same as what getSlope() does to the slopes.
+		float divisor = settings.renderer == RENDERER.RENDERMAN && mapType == MAPTYPE.BUMP ? 20.0f : 1.0f;
+		boolean clamp = settings.renderer == RENDERER.ARNOLD && mapType != MAPTYPE.DISPLACEMENT;
+		FixedPointPyramid pyramid = new FixedPointPyramid(img, settings.normalisationFactors.get(index), settings.unitSize, divisor, clamp);
+
+		boolean useCheckpoint = checkpoint != null && target == outputImg;
+		float progressLevels = 1.0f / ((float) (img.mipmapLevels * settings.imgs.size()));
+		settings.callback.addProgress(progressLevels * 0.6); // Level 0 has nothing to add.
+		for (int level = 1; level < img.mipmapLevels && !cancelled; ++level) {
+			pyramid.nextLevel();
+			if (useCheckpoint && checkpoint.isDone(index, level)) {
+				System.out.println("Img " + index + " level " + level + " is already in the checkpoint");
+			} else {
+				System.out.println("Calculating img " + index + " level " + level + " in fixed point");
+				if (useCheckpoint) checkpoint.begin(level);
+				addFixedPointLevel(pyramid, level, target.buffers[level]);
+				if (useCheckpoint && !cancelled) checkpoint.finish(index, level);
+			}
+			settings.callback.addProgress(progressLevels * 0.6);
+		}
+	}
+
+	private void addFixedPointLevel(final FixedPointPyramid pyramid, final int level, final ImageBuffer buffer) {
+		final int threads = Resampler.getThreadCount(buffer.height);
+		Threading.runParallel(threads, new Task() {
+
+			@Override
+			public void run(int thread) {
+				JobMetrics.LevelCounter counter = new JobMetrics.LevelCounter();
+				for (int j = thread * buffer.height / threads; j < (thread + 1) * buffer.height / threads && !cancelled; ++j) {
+					int dataIndex = buffer.getIndex(0, j);
+					for (int i = 0; i < buffer.width; ++i, dataIndex += 3) {
+						float deviation = pyramid.getDeviation(i, j);
+						buffer.data[dataIndex] += deviation;
+						buffer.data[dataIndex + 1] += deviation;
+						buffer.data[dataIndex + 2] += deviation;
+						counter.texels++;
+						counter.deviationSum += deviation;
+					}
+				}
+				metrics.add(level, counter);
+			}
+
+		});
+	}
+
+	/**
+	 * Calculates the squared roughness that the given image adds, without touching the output image.
+	 * This is used to keep the results of each image around, so that they don't need to be recalculated
+	 * when only some of the images change.
+	 * 
+	 * @param index
+	 * @return
+	 */
+	public ImageContainer calculateContribution(int index) {
+		ImageContainer contribution = new ImageContainer(outputImg.width, outputImg.height, outputImg.mipmapLevels);
+		calculateRoughnessForImage(index, contribution);
+		return contribution;
+	}
+
+	/**
+	 * Updates a result from calculateContribution() after the image has changed.
+	 * 
+	 * The new image is compared against previous, the level 0 buffer of the image that the contribution
+	 * was calculated for. Only the texels of which the footprint contains a changed tile are recalculated,
+	 * everything else is kept as is. When an artist only touches up a small part of a map, this is a lot faster.
+	 * 
+	 * @param index
+	 * @param contribution
+	 * @param previous
+	 */
+	public void updateContribution(final int index, final ImageContainer contribution, ImageBuffer previous) {
+		settings.imgs.get(index).read();
+
+		final DirtyRegion dirty = new DirtyRegion(previous, settings.imgs.get(index).buffers[0], DirtyRegion.TILE_SIZE);
+		System.out.println("Img " + index + ": " + ((int) (dirty.getDirtyFraction() * 100.0f)) + "% of the tiles changed");
+
+		if (!dirty.isEmpty()) {
+			prepareSlopes(index);
+
+			Threading.runParallel(settings.imgs.get(index).mipmapLevels, new Task() {
+
+				@Override
+				public void run(int level) {
+					if (level == 0) return;
+
+					ImageBuffer buffer = contribution.buffers[level];
+					int scaleX = getScaleFactorX(level);
+					int scaleY = getScaleFactorY(level);
+					SlopeKernels.Scratch scratch = createScratch(level);
+					JobMetrics.LevelCounter counter = new JobMetrics.LevelCounter();
+
+					for (int i = 0; i < buffer.width; ++i) {
+						for (int j = 0; j < buffer.height; ++j) {
+							// The mean slope reads the next texel in this level as well, so the footprint
+							// that this texel depends on is two texels wide.
+							if (!dirty.isDirty(i * scaleX, j * scaleY, (i + 2) * scaleX, (j + 2) * scaleY)) continue;
+
+							float deviation = calculateDeviation(index, level, i, j, scaleX, scaleY, scratch, counter);
+							buffer.setPixel(i, j, new RGB(deviation));
+						}
+					}
+					metrics.add(level, counter);
+				}
+
+			});
+
+			freeSlopes(index);
+		}
+
 		settings.imgs.get(index).free();
 	}
 
+	/**
+	 * Adds a result from calculateContribution() or calculateBaseContribution() to the output image.
+	 * 
+	 * @param contribution
+	 */
+	public void addContribution(ImageContainer contribution) {
+		for (int level = 0; level < outputImg.mipmapLevels; ++level) {
+			float[] src = contribution.buffers[level].data;
+			float[] dst = outputImg.buffers[level].data;
+			for (int i = 0; i < dst.length; ++i)
+				dst[i] += src[i];
+		}
+	}
+
 	/**
 	 * Put the base roughness value or texture into the output image.
 	 */
 	public void fillOutputWithBaseRoughness() {
+		fillWithBaseRoughness(outputImg);
+	}
+
+	/**
+	 * Returns the squared base roughness in its own image.
+	 * 
+	 * @return
+	 */
+	public ImageContainer calculateBaseContribution() {
+		ImageContainer contribution = new ImageContainer(outputImg.width, outputImg.height, outputImg.mipmapLevels);
+		fillWithBaseRoughness(contribution);
+		return contribution;
+	}
+
+	public void fillWithBaseRoughness(ImageContainer target) {
 		if (settings.roughnessImg == null) {
 			// It's a single value, so just go through each mip map level's buffer and set it to the roughness value.
 			// We square it, since you need to square roughness values first before you can add them together.
-			for (int i = 0; i < outputImg.mipmapLevels; ++i) {
-				Arrays.fill(outputImg.buffers[i].data, settings.roughnessValue * settings.roughnessValue);
+			for (int i = 0; i < target.mipmapLevels; ++i) {
+				Arrays.fill(target.buffers[i].data, settings.roughnessValue * settings.roughnessValue);
 			}
 		} else {
 			settings.roughnessImg.read();
 			
 			// We have a roughness image to use as a base, so just copy the values over.
-			for (int level = 0; level < outputImg.mipmapLevels; ++level) {
-				for (int i = 0; i < outputImg.buffers[level].data.length; ++i) {
+			for (int level = 0; level < target.mipmapLevels; ++level) {
+				for (int i = 0; i < target.buffers[level].data.length; ++i) {
 					float val = settings.roughnessImg.buffers[level].data[i];
 					val = val * val;
-					outputImg.buffers[level].data[i] = val;
+					target.buffers[level].data[i] = val;
 				}
 			}
 			
@@ -328,66 +1201,425 @@ public class Bump2Roughness {
 	}
 
 	/**
-	 * Goes through the values and square root it. Additionally, clip it to (0.0, 1.0)
+	 * Turns the summed up squared roughness of a level into the final roughness: square root it and clip it to (0.0, 1.0).
+	 * For level 0, this also does the constant colour fix, so that every level only needs a single pass.
+	 * The rows are split up into bands that run on multiple threads.
+	 * 
+	 * Level 0 reads the final values of level 1, so level 1 needs to be finalised first.
 	 * 
 	 * @param level
 	 */
-	public void normaliseOutput(int level) {
-		for (int i = 0; i < outputImg.buffers[level].data.length; ++i) {
-			float val = outputImg.buffers[level].data[i];
-			val = (float) Math.sqrt(val);
-			val = Math.min(Math.max(val, 0.0f), 1.0f);
-			outputImg.buffers[level].data[i] = val;
-		}
+	public void finaliseLevel(int level) {
+		final ImageBuffer buffer = outputImg.buffers[level];
+		final ImageBuffer level1 = level == 0 && needsConstantColorFix() ? outputImg.buffers[1] : null;
+		// Without a base roughness texture, all three channels are the same, so they only need to be calculated once.
+		final boolean singleChannel = settings.roughnessImg == null;
+		final int threads = Resampler.getThreadCount(buffer.height);
+
+		Threading.runParallel(threads, new Task() {
+
+			@Override
+			public void run(int thread) {
+				float[] data = buffer.data;
+				for (int j = thread * buffer.height / threads; j < (thread + 1) * buffer.height / threads; ++j) {
+					int dataIndex = buffer.getIndex(0, j);
+					if (!singleChannel) {
+						for (int k = dataIndex; k < dataIndex + buffer.width * 3; ++k)
+							data[k] = finaliseValue(data[k]);
+						continue;
+					}
+
+					for (int i = 0; i < buffer.width; ++i, dataIndex += 3) {
+						float val = finaliseValue(data[dataIndex]);
+						if (level1 != null) {
+							// (i / 2, j / 2) is always inside of level 1, even when level 0 is a single texel wide or high,
+							// so there is no need to wrap it.
+							float l1Val = level1.data[level1.getIndex(i / 2, j / 2)];
+							l1Val = fastCbrt(l1Val); // Gamma the l1Val to bring up the small changes in bump
+							// Mix between the two with the original value having a 97.5% weight
+							val = val * 0.975f + l1Val * 0.025f;
+						}
+						data[dataIndex] = val;
+						data[dataIndex + 1] = val;
+						data[dataIndex + 2] = val;
+					}
+				}
+			}
+
+		});
+	}
+
+	private static float finaliseValue(float val) {
+		return Math.min(Math.max((float) Math.sqrt(val), 0.0f), 1.0f);
 	}
 
-	public void maketxConstantColorFix() {
-		// If we use a solid roughness value as the base instead of a texture,
-		// then maketx is going to optimise the image and just put in a constant
-		// colour which means that this whole 'putting the roughness from displacement
-		// maps in the mip map of a texture' wouldn't work.
-		//
-		// To fix this, we simply need to make the highest level of the not a constant colour.
-		// So, we mix it with the roughness from level 1.
+	/**
+	 * Returns the cube root of a value between 0 and 1, from a guess made from its bits and two Newton steps.
+	 * 
+	 * @param x
+	 * @return
+	 */
+	static float fastCbrt(float x) {
+		if (x <= 0.0f) return 0.0f;
+		// Dividing the exponent by three gets us close already.
+		float y = Float.intBitsToFloat(Float.floatToRawIntBits(x) / 3 + 709921077);
+		y = (2.0f * y + x / (y * y)) * (1.0f / 3.0f);
+		y = (2.0f * y + x / (y * y)) * (1.0f / 3.0f);
+		return y;
+	}
 
+	/**
+	 * If we use a solid roughness value as the base instead of a texture,
+	 * then maketx is going to optimise the image and just put in a constant
+	 * colour which means that this whole 'putting the roughness from displacement
+	 * maps in the mip map of a texture' wouldn't work.
+	 * 
+	 * To fix this, we simply need to make the highest level of the not a constant colour.
+	 * So, we mix it with the roughness from level 1.
+	 * 
+	 * @return
+	 */
+	private boolean needsConstantColorFix() {
 		// If we have an image as the base roughness, there is no need to do this.
-		if (settings.roughnessImg != null) return;
-
-		for (int i = 0; i < outputImg.buffers[0].width; ++i) {
-			for (int j = 0; j < outputImg.buffers[0].height; ++j) {
-				float val = outputImg.buffers[0].getPixel(i, j).r;
-				float l1Val = outputImg.buffers[1].getPixel(i / 2, j / 2).r;
-				l1Val = (float) Math.pow(l1Val, 0.333); // Gamma the l1Val to bring up the small changes in bump
-				// Mix between the two with the original value having a 97.5% weight
-				float nVal = val * 0.975f + l1Val * 0.025f;
-				outputImg.buffers[0].setPixel(i, j, new RGB(nVal, nVal, nVal));
+		if (settings.roughnessImg != null || outputImg.mipmapLevels < 2) return false;
+		// DDS and KTX2 files are written by us with all of the levels, so nothing gets optimised away.
+		if (settings.outputMode == OUTPUTMODE.DDS || settings.outputMode == OUTPUTMODE.KTX2) return false;
+		return true;
+	}
+
+	/**
+	 * Calculates the squared roughness for multiple images at once and adds it to target.
+	 * For each texel, the roughness of all images is summed up first, so that target is
+	 * only read and written once, instead of once per image.
+	 * 
+	 * @param indices
+	 * @param level
+	 * @param target
+	 */
+	public void calculateRoughnessForImagesForLevel(int[] indices, int level, ImageContainer target) {
+		System.out.println("Calculating imgs " + Arrays.toString(indices) + " level " + level);
+
+		if (level == 0) return;
+
+		ImageBuffer buffer = target.buffers[level];
+		int scaleX = getScaleFactorX(level);
+		int scaleY = getScaleFactorY(level);
+
+		// Every image needs its own mean slopes, so give them each their own scratch space.
+		SlopeKernels.Scratch[] scratches = new SlopeKernels.Scratch[indices.length];
+		for (int k = 0; k < indices.length; ++k)
+			scratches[k] = createScratch(level);
+		JobMetrics.LevelCounter counter = new JobMetrics.LevelCounter();
+
+		// Go through it row by row, since that is how the buffers are laid out in memory.
+		for (int j = 0; j < buffer.height && !cancelled; ++j) {
+			if (settings.useKernels) {
+				for (int k = 0; k < indices.length; ++k)
+					calculateMeanSlopes(indices[k], level, j, scratches[k]);
+			}
+
+			int dataIndex = buffer.getIndex(0, j);
+			for (int i = 0; i < buffer.width; ++i, dataIndex += 3) {
+				float deviation = 0.0f;
+				for (int k = 0; k < indices.length; ++k) {
+					if (scratches[k] == null)
+						deviation += calculateDeviation(indices[k], level, i, j, scaleX, scaleY, null, counter);
+					else deviation += calculateTexelDeviation(indices[k], level, i, j, scaleX, scaleY, scratches[k].meanSlopeX[i],
+							scratches[k].meanSlopeY[i], scratches[k], counter);
+				}
+
+				buffer.data[dataIndex] += deviation;
+				buffer.data[dataIndex + 1] += deviation;
+				buffer.data[dataIndex + 2] += deviation;
 			}
 		}
+		metrics.add(level, counter);
 	}
 
-	public void calculateRoughness() {
+	public void calculateRoughnessForImages(final int[] allIndices, final ImageContainer target) throws IOException {
+		float progress = (((float) allIndices[0]) / ((float) settings.imgs.size())) * 0.6f + 0.05f;
+		settings.callback.onProgress(progress, "Reading imgs " + Arrays.toString(allIndices));
+		List<ImageContainer> imgs = new ArrayList<ImageContainer>();
+		for (int index : allIndices)
+			imgs.add(settings.imgs.get(index));
+		// Read them all at the same time.
+		Ingest.read(imgs, imgs.size(), new Ingest.Listener() {
+
+			@Override
+			public void onRead(int i) {
+				prepareSlopes(allIndices[i]);
+			}
+
+		});
+
+		// The images that were read in as bytes can't be fused with the others, so they are done on their own first.
+		int[] floatIndices = new int[allIndices.length];
+		int count = 0;
+		for (int index : allIndices) {
+			if (isFixedPoint(index)) {
+				settings.callback.onProgress(progress, "Calculating roughness for img " + index);
+				calculateFixedPoint(index, target);
+				settings.imgs.get(index).free();
+			} else {
+				floatIndices[count++] = index;
+			}
+		}
+		if (count == 0) return;
+		final int[] indices = Arrays.copyOf(floatIndices, count);
+
+		if (settings.previewCallback != null) {
+			settings.callback.onProgress(progress, "Calculating preview for imgs " + Arrays.toString(indices));
+			for (int index : indices)
+				calculatePreview(index);
+		}
+
+		settings.callback.onProgress(progress, "Calculating roughness for imgs " + Arrays.toString(indices));
+
+		Threading.runParallel(settings.imgs.get(indices[0]).mipmapLevels, new Task() {
+
+			@Override
+			public void run(int i) {
+				if (checkpoint != null && target == outputImg) {
+					// Only the images that haven't been added to this level yet.
+					int[] remaining = new int[indices.length];
+					int count = 0;
+					for (int index : indices)
+						if (!checkpoint.isDone(index, i)) remaining[count++] = index;
+					if (count > 0) {
+						checkpoint.begin(i);
+						calculateRoughnessForImagesForLevel(Arrays.copyOf(remaining, count), i, target);
+						if (!cancelled) checkpoint.finish(remaining, count, i);
+					}
+				} else {
+					calculateRoughnessForImagesForLevel(indices, i, target);
+				}
+
+				float progressLevels = ((float) indices.length) / ((float) (settings.imgs.get(indices[0]).mipmapLevels * settings.imgs.size()));
+				settings.callback.addProgress(progressLevels * 0.6);
+			}
+
+		});
+
+		for (int index : indices) {
+			freeSlopes(index);
+			settings.imgs.get(index).free();
+		}
+		clearPreview();
+	}
+
+	public void calculateRoughness() throws IOException {
+		loadBaseRoughness();
+		calculateInputs();
+	}
+
+	public void loadBaseRoughness() {
 		settings.callback.onProgress(0.0, "Loading base roughness");
 		fillOutputWithBaseRoughness();
 
-		settings.callback.onProgress(0.05, "Calculating roughnesses");
+		if (!settings.checkpointPath.isEmpty()) {
+			try {
+				checkpoint = Checkpoint.open(new File(settings.checkpointPath), Checkpoint.getFingerprint(settings, outputImg), outputImg,
+						settings.imgs.size(), settings.checkpointInterval * 1000L);
+			} catch (IOException ex) {
+				// We can still do the job, it just can't be resumed.
+				ex.printStackTrace();
+				System.out.println("Could not open checkpoint " + settings.checkpointPath);
+			}
+		}
+	}
+
+	/**
+	 * Returns the indices of the input images that still need to be added to the output.
+	 * That is all of them, unless some were already done in the checkpoint.
+	 * 
+	 * @return
+	 */
+	private List<Integer> getRemainingInputs() {
+		List<Integer> remaining = new ArrayList<Integer>();
+		for (int i = 0; i < settings.imgs.size(); ++i)
+			if (checkpoint == null || !checkpoint.isDone(i)) remaining.add(i);
+		return remaining;
+	}
+
+	private List<ImageContainer> getImages(List<Integer> indices) {
+		List<ImageContainer> imgs = new ArrayList<ImageContainer>();
+		for (int index : indices)
+			imgs.add(settings.imgs.get(index));
+		return imgs;
+	}
+
+	/**
+	 * Reads all of the input images into memory up front. calculateInputs() normally reads
+	 * them one by one, right before they are needed, so this is only useful when something else
+	 * is still busy and the reading can happen in the mean time.
+	 */
+	public void readInputs() throws IOException {
+		checkCancelled();
+		List<ImageContainer> imgs = getImages(getRemainingInputs());
+		Ingest.read(imgs, imgs.size(), new Ingest.Listener() {
+
+			@Override
+			public void onRead(int index) {
+			}
+
+		});
+	}
+
+	/**
+	 * Frees any input images that are still in memory, for when a job stops half way.
+	 */
+	public void freeInputs() {
 		for (int i = 0; i < settings.imgs.size(); ++i) {
-			calculateRoughnessForImage(i);
+			freeSlopes(i);
+			settings.imgs.get(i).free();
+		}
+		if (settings.roughnessImg != null) settings.roughnessImg.free();
+	}
+
+	/**
+	 * Adds the roughness of every input onto the base roughness and finalises the output.
+	 */
+	public void calculateInputs() throws IOException {
+		settings.callback.onProgress(0.05, "Calculating roughnesses");
+		if (settings.fusedInputs > 1) {
+			for (int i = 0; i < settings.imgs.size(); i += settings.fusedInputs) {
+				int[] indices = new int[Math.min(settings.fusedInputs, settings.imgs.size() - i)];
+				boolean done = true;
+				for (int j = 0; j < indices.length; ++j) {
+					indices[j] = i + j;
+					done = done && checkpoint != null && checkpoint.isDone(i + j);
+				}
+				checkCancelled();
+				if (!done) calculateRoughnessForImages(indices, outputImg);
+			}
+		} else {
+			// The next images are read in while the current one is being calculated,
+			// and they are calculated in the order that they finish reading in.
+			final List<Integer> remaining = getRemainingInputs();
+			Ingest.read(getImages(remaining), settings.readAhead, new Ingest.Listener() {
+
+				@Override
+				public void onRead(int index) {
+					checkCancelled();
+					calculateRoughnessForImage(remaining.get(index));
+				}
+
+			});
 		}
 
+		checkCancelled();
+		finaliseOutput();
+	}
+
+	/**
+	 * Turns the summed up squared roughness values into the final roughness values.
+	 */
+	public void finaliseOutput() {
+		metrics.print();
+
 		settings.callback.onProgress(0.65, "Cleaning up roughness textures");
-		for (int i = 0; i < outputImg.mipmapLevels; ++i)
-			normaliseOutput(i);
+		// Level 0 last, since it needs the final values of level 1.
+		for (int i = 1; i < outputImg.mipmapLevels; ++i)
+			finaliseLevel(i);
+		finaliseLevel(0);
+	}
+
+	/**
+	 * Gives the memory of the output image back to the BufferArena. Call this once the output has been written,
+	 * so that the next texture set can reuse it.
+	 */
+	public void free() {
+		outputImg.release();
+		releaseInputs();
+		if (checkpoint != null) {
+			checkpoint.close();
+			checkpoint = null;
+		}
+	}
+
+	/**
+	 * Gives the input images back to where they came from, so that a cache can decide whether to keep them.
+	 * Only does anything the first time.
+	 */
+	public void releaseInputs() {
+		TextureSetJob.ImageSource source = settings.imageSource;
+		if (source == null) return;
+		settings.imageSource = null;
+		for (ImageContainer img : settings.imgs)
+			source.release(img);
+		if (settings.roughnessImg != null) source.release(settings.roughnessImg);
+	}
+
+	// Added to the name of files that are still being written.
+	static final String TEMP_SUFFIX = ".b2rtmp";
+
+	/**
+	 * Returns a path next to the given file to write to, before moving it in place.
+	 * The extension is kept the same, since maketx and txmake look at it to figure out the format.
+	 * 
+	 * @param file
+	 * @return
+	 */
+	static File getTempPath(File file) {
+		String name = file.getName();
+		int index = name.lastIndexOf('.');
+		if (index > 0)
+			name = name.substring(0, index) + TEMP_SUFFIX + name.substring(index);
+		else name = name + TEMP_SUFFIX;
+		return new File(file.getAbsoluteFile().getParentFile(), name);
+	}
 
-		maketxConstantColorFix();
+	/**
+	 * Moves the file in place, replacing the old file in one go if the file system supports it.
+	 * 
+	 * @param from
+	 * @param to
+	 * @throws IOException
+	 */
+	static void moveAtomically(File from, File to) throws IOException {
+		try {
+			Files.move(from.toPath(), to.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		} catch (AtomicMoveNotSupportedException ex) {
+			Files.move(from.toPath(), to.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
 	}
 
 	public void writeOutput() throws Exception {
+		checkCancelled();
 		settings.callback.onProgress(0.70, "Writing texture");
 
-		// Writes out each mip map level to it's own png file.
-		String[] filenames = outputImg.write(new File(settings.outputPath + ".png"));
+		String extension = settings.outputPrecision == OUTPUTPRECISION.BYTE ? ".png" : ".exr";
+		boolean halfFloat = settings.outputPrecision == OUTPUTPRECISION.HALF;
+
+		if (settings.outputMode == OUTPUTMODE.INDIVIDUAL_LEVELS) {
+			// Write the levels out under a temporary name first and then move them in place,
+			// so that anything reading the images never sees a half written file.
+			String[] filenames = outputImg.write(new File(settings.outputPath + TEMP_SUFFIX + extension), halfFloat);
+			for (int level = 0; level < filenames.length; ++level) {
+				moveAtomically(new File(filenames[level]), new File(settings.outputPath + "_" + level + extension));
+			}
+		} else if (settings.outputMode == OUTPUTMODE.DDS || settings.outputMode == OUTPUTMODE.KTX2) {
+			// The whole mip chain goes into one file, so that engines don't have to generate their own.
+			File outputFile = new File(settings.outputPath);
+			File tempFile = getTempPath(outputFile);
+			System.out.println("Saving to file " + outputFile + " as " + settings.engineFormat);
+			try {
+				if (settings.outputMode == OUTPUTMODE.DDS)
+					EngineTextureWriter.writeDDS(outputImg, settings.engineFormat, tempFile);
+				else EngineTextureWriter.writeKTX2(outputImg, settings.engineFormat, tempFile);
+			} catch (IOException ex) {
+				tempFile.delete();
+				throw ex;
+			}
+			moveAtomically(tempFile, outputFile);
+		} else {
+			// Check the tool before writing anything out.
+			ToolRegistry.Tool tool = settings.maketxPath.isEmpty() ? ToolRegistry.getMakeTX() : ToolRegistry.getTool(settings.maketxPath);
+			if (tool == null) throw new Exception("Cannot find maketx or txmake" + (settings.maketxPath.isEmpty() ? "" : ": " + settings.maketxPath));
+
+			// Writes out each mip map level to it's own png or exr file.
+			String[] filenames = outputImg.write(new File(settings.outputPath + extension), halfFloat);
 
-		if (settings.outputMode == OUTPUTMODE.TEXTURE) {
 			settings.callback.onProgress(0.90, "Generating TX/TEX file");
 
 			// If we want to create a tx file, then generate the appropriate command and call
@@ -396,11 +1628,20 @@ public class Bump2Roughness {
 
 			System.out.println("Creating tx file");
 
+			// maketx and txmake write the file in multiple steps, so let them write to a temporary file
+			// that we move in place once it's done. Renders reading the texture at the same time will
+			// then either get the old or the new file.
+			File outputFile = new File(settings.outputPath);
+			String tempOutputPath = getTempPath(outputFile).getPath();
+
 			String command = "";
-			if (new File(settings.maketxPath).getName().contains("txmake")) {
+			if (tool.isTXMake()) {
 				// We are talking about the Renderman txmake and not the Arnold/OIIO maketx.
 
-				command = settings.maketxPath + " -verbose -mode periodic -byte";
+				command = tool.path + " -verbose -mode periodic";
+				if (settings.outputPrecision == OUTPUTPRECISION.BYTE) command += " -byte";
+				else if (settings.outputPrecision == OUTPUTPRECISION.HALF) command += " -half";
+				else command += " -float";
 
 				command += " -usermipmap ";
 
@@ -408,14 +1649,17 @@ public class Bump2Roughness {
 					command += " " + filenames[level];
 				}
 
-				command += " " + settings.outputPath;
+				command += " " + tempOutputPath;
 			} else {
 				// We are talking about the Arnold/OIIO maketx
 				// TODO: For some reason, Arnold's maketx doesn't work? It crashes for me. So, try to fix that.
 
-				command = settings.maketxPath + " -v -wrap periodic";
+				command = tool.path + " -v -wrap periodic";
 				if (settings.renderer == RENDERER.ARNOLD) command += " --oiio";
 				if (settings.renderer == RENDERER.RENDERMAN) command += " --prman";
+				// Keep the precision of the levels, instead of letting maketx pick.
+				if (settings.outputPrecision == OUTPUTPRECISION.HALF) command += " -d half";
+				if (settings.outputPrecision == OUTPUTPRECISION.FLOAT) command += " -d float";
 
 				for (int level = 1; level < outputImg.mipmapLevels; ++level) {
 					command += " --mipimage " + filenames[level];
@@ -423,7 +1667,7 @@ public class Bump2Roughness {
 
 				command += " " + filenames[0]; // Add in the first level as the base image
 
-				command += " -o " + settings.outputPath;
+				command += " -o " + tempOutputPath;
 			}
 
 			System.out.println(command);
@@ -440,12 +1684,22 @@ public class Bump2Roughness {
 				new File(fname).delete();
 			}
 			
-			if(exitCode != 0)
+			if(exitCode != 0) {
+				new File(tempOutputPath).delete();
 				throw new Exception("maketx/txmake exitted with code " + exitCode);
+			}
+
+			moveAtomically(new File(tempOutputPath), outputFile);
 		}
 
 		System.out.println("Done writing output");
 
+		// The output is safely written, so there's nothing to resume anymore.
+		if (checkpoint != null) {
+			checkpoint.delete();
+			checkpoint = null;
+		}
+
 		settings.callback.onProgress(1.0, "Done writing output");
 	}
 
@@ -0,0 +1,379 @@
+/*
+BSD 3-Clause License
+
+Copyright (c) 2020, Bram Stout
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+3. Neither the name of the copyright holder nor the names of its
+   contributors may be used to endorse or promote products derived from
+   this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+
+
+package nl.bramstout.bump2roughness;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import nl.bramstout.bump2roughness.Bump2Roughness.Settings;
+
+/**
+ * Saves the squared roughness that has been added to the output image so far into a scratch file,
+ * so that a job that got killed half way can continue where it was instead of starting over.
+ * 
+ * Every mipmap level has its own slot in the file, with which inputs have been added to it.
+ * The levels of an image are calculated at the same time, but a level is never touched by two
+ * inputs at once, so a level can be saved as soon as its input is done with it, while the other
+ * levels are still being calculated. Level 0 only ever holds the base roughness, so it isn't saved.
+ * 
+ * The file is little endian:
+ *   64 byte header: "B2RCKPT1", fingerprint (long), inputs, width, height, mipmap levels (ints), zeros.
+ *   For every level from 1: one byte per input (1 if it has been added, padded to 8 bytes),
+ *   followed by the three floats of every texel.
+ * 
+ * The fingerprint covers the settings and input files, so a checkpoint of a different job,
+ * or of inputs that have changed since, is ignored.
+ */
+public class Checkpoint {
+
+	private static final byte[] MAGIC = "B2RCKPT1".getBytes(StandardCharsets.US_ASCII);
+	private static final int HEADER_SIZE = 64;
+	// How many floats to convert to bytes at a time when writing a level.
+	private static final int CHUNK_SIZE = 1024 * 1024;
+
+	private File file;
+	private FileChannel channel;
+	private ImageContainer output;
+	private int inputs;
+	private long interval;
+	private long lastSave;
+
+	// Which inputs have been added to each level of the output, and which of those have been saved.
+	private boolean[][] done;
+	private boolean[][] saved;
+	// The levels that an input is being added to right now.
+	private boolean[] busy;
+	private long[] offsets;
+
+	private Checkpoint() {
+	}
+
+	/**
+	 * Opens the checkpoint file, or creates it if there isn't a usable one. The levels
+	 * that were saved in it are loaded into output, which should contain the base roughness.
+	 * 
+	 * @param file
+	 * @param fingerprint
+	 * @param output
+	 * @param inputs
+	 * @param interval At least this many milliseconds go by between saves.
+	 * @return
+	 * @throws IOException
+	 */
+	public static Checkpoint open(File file, long fingerprint, ImageContainer output, int inputs, long interval) throws IOException {
+		Checkpoint checkpoint = new Checkpoint();
+		checkpoint.file = file;
+		checkpoint.output = output;
+		checkpoint.inputs = inputs;
+		checkpoint.interval = interval;
+		checkpoint.lastSave = System.currentTimeMillis();
+		checkpoint.done = new boolean[output.mipmapLevels][inputs];
+		checkpoint.saved = new boolean[output.mipmapLevels][inputs];
+		checkpoint.busy = new boolean[output.mipmapLevels];
+
+		checkpoint.offsets = new long[output.mipmapLevels + 1];
+		long offset = HEADER_SIZE;
+		for (int level = 1; level < output.mipmapLevels; ++level) {
+			checkpoint.offsets[level] = offset;
+			offset += getStateSize(inputs) + ((long) output.buffers[level].data.length) * 4;
+		}
+		checkpoint.offsets[output.mipmapLevels] = offset;
+
+		// Nothing has to be done for level 0.
+		for (int i = 0; i < inputs; ++i) {
+			checkpoint.done[0][i] = true;
+			checkpoint.saved[0][i] = true;
+		}
+
+		File parent = file.getAbsoluteFile().getParentFile();
+		if (parent != null) parent.mkdirs();
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		checkpoint.channel = raf.getChannel();
+		try {
+			if (checkpoint.matches(fingerprint)) {
+				checkpoint.load();
+			} else {
+				if (raf.length() > 0) System.out.println("Checkpoint " + file + " is for a different job, starting over");
+				// Clear out the old states, the data gets overwritten anyway.
+				raf.setLength(0);
+				raf.setLength(offset);
+				ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+				header.put(MAGIC);
+				header.putLong(fingerprint);
+				header.putInt(inputs);
+				header.putInt(output.width);
+				header.putInt(output.height);
+				header.putInt(output.mipmapLevels);
+				header.position(0);
+				checkpoint.write(header, 0);
+			}
+		} catch (IOException ex) {
+			raf.close();
+			throw ex;
+		}
+		return checkpoint;
+	}
+
+	private static int getStateSize(int inputs) {
+		return (inputs + 7) / 8 * 8;
+	}
+
+	private boolean matches(long fingerprint) throws IOException {
+		if (channel.size() != offsets[output.mipmapLevels]) return false;
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		read(header, 0);
+		header.position(0);
+		for (int i = 0; i < MAGIC.length; ++i)
+			if (header.get() != MAGIC[i]) return false;
+		return header.getLong() == fingerprint && header.getInt() == inputs && header.getInt() == output.width
+				&& header.getInt() == output.height && header.getInt() == output.mipmapLevels;
+	}
+
+	private void load() throws IOException {
+		int levels = 0;
+		for (int level = 1; level < output.mipmapLevels; ++level) {
+			ByteBuffer state = ByteBuffer.allocate(getStateSize(inputs));
+			read(state, offsets[level]);
+			boolean any = false;
+			for (int i = 0; i < inputs; ++i) {
+				done[level][i] = state.get(i) != 0;
+				saved[level][i] = done[level][i];
+				any = any || done[level][i];
+			}
+			// Without any inputs, the level is just the base roughness, which is already in output.
+			if (!any) continue;
+
+			float[] data = output.buffers[level].data;
+			ByteBuffer bytes = ByteBuffer.allocateDirect(CHUNK_SIZE * 4).order(ByteOrder.LITTLE_ENDIAN);
+			long position = offsets[level] + getStateSize(inputs);
+			for (int start = 0; start < data.length; start += CHUNK_SIZE) {
+				int length = Math.min(CHUNK_SIZE, data.length - start);
+				bytes.clear();
+				bytes.limit(length * 4);
+				read(bytes, position);
+				bytes.position(0);
+				bytes.asFloatBuffer().get(data, start, length);
+				position += length * 4;
+			}
+			levels++;
+		}
+		System.out.println("Resuming from checkpoint " + file + " with " + levels + " levels that were already started");
+	}
+
+	/**
+	 * Returns true if the input has already been added to the level.
+	 * 
+	 * @param input
+	 * @param level
+	 * @return
+	 */
+	public synchronized boolean isDone(int input, int level) {
+		return done[level][input];
+	}
+
+	/**
+	 * Returns true if the input has already been added to every level.
+	 * 
+	 * @param input
+	 * @return
+	 */
+	public synchronized boolean isDone(int input) {
+		for (int level = 0; level < done.length; ++level)
+			if (!done[level][input]) return false;
+		return true;
+	}
+
+	/**
+	 * Call this before adding an input to the level, so that it doesn't get saved half way.
+	 * 
+	 * @param level
+	 */
+	public synchronized void begin(int level) {
+		busy[level] = true;
+	}
+
+	/**
+	 * Call this once the input has been added to the level. If it has been long enough
+	 * since the last save, every level that has changed and isn't busy is saved.
+	 * 
+	 * @param input
+	 * @param level
+	 */
+	public synchronized void finish(int input, int level) {
+		finish(new int[] { input }, 1, level);
+	}
+
+	/**
+	 * Same as finish(int, int), but for when several inputs got added to the level
+	 * in one go. They all have to be marked as done before the level can be saved,
+	 * otherwise a checkpoint could have data that already contains inputs that it
+	 * still thinks have to be added, and those would get added twice on resume.
+	 * 
+	 * @param indices
+	 * @param count
+	 * @param level
+	 */
+	public synchronized void finish(int[] indices, int count, int level) {
+		for (int k = 0; k < count; ++k)
+			done[level][indices[k]] = true;
+		busy[level] = false;
+		if (System.currentTimeMillis() - lastSave < interval) return;
+
+		try {
+			save();
+		} catch (IOException ex) {
+			// Not being able to checkpoint shouldn't stop the job itself.
+			ex.printStackTrace();
+			System.out.println("Could not write checkpoint " + file);
+		}
+		lastSave = System.currentTimeMillis();
+	}
+
+	private void save() throws IOException {
+		long startTime = System.currentTimeMillis();
+		int levels = 0;
+		for (int level = 1; level < output.mipmapLevels; ++level) {
+			if (busy[level] || Arrays.equals(done[level], saved[level])) continue;
+
+			// Clear the state first, so that a level that was only half written is recalculated
+			// instead of being used.
+			ByteBuffer state = ByteBuffer.allocate(getStateSize(inputs));
+			write(state, offsets[level]);
+			channel.force(false);
+
+			float[] data = output.buffers[level].data;
+			ByteBuffer bytes = ByteBuffer.allocateDirect(CHUNK_SIZE * 4).order(ByteOrder.LITTLE_ENDIAN);
+			FloatBuffer floats = bytes.asFloatBuffer();
+			long position = offsets[level] + getStateSize(inputs);
+			for (int start = 0; start < data.length; start += CHUNK_SIZE) {
+				int length = Math.min(CHUNK_SIZE, data.length - start);
+				floats.clear();
+				floats.put(data, start, length);
+				bytes.clear();
+				bytes.limit(length * 4);
+				write(bytes, position);
+				position += length * 4;
+			}
+			channel.force(false);
+
+			state.clear();
+			for (int i = 0; i < inputs; ++i)
+				state.put(i, (byte) (done[level][i] ? 1 : 0));
+			write(state, offsets[level]);
+			channel.force(false);
+
+			System.arraycopy(done[level], 0, saved[level], 0, inputs);
+			levels++;
+		}
+		if (levels > 0) System.out.println("Saved " + levels + " levels to checkpoint " + file + " in "
+				+ (System.currentTimeMillis() - startTime) + " ms");
+	}
+
+	private void write(ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining())
+			position += channel.write(buffer, position);
+	}
+
+	private void read(ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			int read = channel.read(buffer, position);
+			if (read < 0) throw new IOException("Checkpoint " + file + " ended early");
+			position += read;
+		}
+	}
+
+	/**
+	 * Closes the file, leaving it in place to resume from.
+	 */
+	public synchronized void close() {
+		try {
+			channel.close();
+		} catch (IOException ex) {
+			ex.printStackTrace();
+		}
+	}
+
+	/**
+	 * Closes and removes the file, for once the output has been written.
+	 */
+	public synchronized void delete() {
+		close();
+		file.delete();
+	}
+
+	/**
+	 * Returns a hash of everything that goes into the squared roughness that gets added up,
+	 * so that a checkpoint isn't used for a different job.
+	 * 
+	 * @param settings
+	 * @param output
+	 * @return
+	 */
+	public static long getFingerprint(Settings settings, ImageContainer output) {
+		StringBuilder sb = new StringBuilder();
+		sb.append(output.width).append('x').append(output.height).append('x').append(output.mipmapLevels).append('\n');
+		if (settings.roughnessImg != null) appendFile(sb, settings.roughnessImg);
+		else sb.append(settings.roughnessValue).append('\n');
+		for (int i = 0; i < settings.imgs.size(); ++i) {
+			appendFile(sb, settings.imgs.get(i));
+			sb.append(settings.normalisationFactors.get(i)).append('|').append(settings.mapType.get(i)).append('\n');
+		}
+		sb.append(settings.unitSize).append('|').append(settings.renderer).append('|').append(settings.useKernels).append('|')
+				.append(settings.cacheSlopes).append('|').append(settings.halfFloatSlopes).append('|').append(settings.approximateSamples)
+				.append('|').append(settings.skipFlatRegions).append('|').append(settings.fixedPoint);
+
+		// 64-bit FNV-1a
+		long hash = 0xcbf29ce484222325L;
+		for (byte b : sb.toString().getBytes(StandardCharsets.UTF_8)) {
+			hash ^= b & 0xFF;
+			hash *= 0x100000001b3L;
+		}
+		return hash;
+	}
+
+	private static void appendFile(StringBuilder sb, ImageContainer img) {
+		File file = img.imgFile == null ? null : img.imgFile.getAbsoluteFile();
+		sb.append(file).append('|').append(file == null ? 0 : file.length()).append('|').append(file == null ? 0 : file.lastModified())
+				.append('|').append(img.filter).append('\n');
+	}
+
+}
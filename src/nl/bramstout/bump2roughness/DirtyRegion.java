@@ -0,0 +1,144 @@
+/*
+BSD 3-Clause License
+
+Copyright (c) 2020, Bram Stout
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+3. Neither the name of the copyright holder nor the names of its
+   contributors may be used to endorse or promote products derived from
+   this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+
+package nl.bramstout.bump2roughness;
+
+/**
+ * Keeps track of which tiles of an image have changed between two versions of it.
+ *
+ * The image is split up into tiles of TILE_SIZE by TILE_SIZE texels. A summed area table
+ * of the changed tiles is kept, so that checking whether any tile in a region has changed
+ * is the same amount of work no matter how big the region is.
+ */
+public class DirtyRegion {
+
+	public static final int TILE_SIZE = 32;
+
+	int width;
+	int height;
+	int tileSize;
+	int tilesX;
+	int tilesY;
+	int dirtyTiles = 0;
+	// Summed area table with (tilesX + 1) * (tilesY + 1) entries, where the first row and column are 0.
+	private int[] table;
+
+	/**
+	 * Compares the two images and marks the tiles that have any texel that changed.
+	 *
+	 * @param previous
+	 * @param current
+	 * @param tileSize
+	 */
+	public DirtyRegion(ImageBuffer previous, ImageBuffer current, int tileSize) {
+		this.width = current.width;
+		this.height = current.height;
+		this.tileSize = tileSize;
+		tilesX = (width + tileSize - 1) / tileSize;
+		tilesY = (height + tileSize - 1) / tileSize;
+
+		boolean[] dirty = new boolean[tilesX * tilesY];
+		if (previous == null || previous.width != current.width || previous.height != current.height) {
+			// We can't compare them, so everything has changed.
+			for (int i = 0; i < dirty.length; ++i)
+				dirty[i] = true;
+		} else {
+			for (int y = 0; y < height; ++y) {
+				int rowOffset = (y / tileSize) * tilesX;
+				for (int x = 0; x < width; ++x) {
+					int tile = rowOffset + x / tileSize;
+					if (dirty[tile]) continue;
+
+					int index = (y * width + x) * 3;
+					if (previous.data[index] != current.data[index] || previous.data[index + 1] != current.data[index + 1]
+							|| previous.data[index + 2] != current.data[index + 2])
+						dirty[tile] = true;
+				}
+			}
+		}
+
+		table = new int[(tilesX + 1) * (tilesY + 1)];
+		for (int ty = 0; ty < tilesY; ++ty) {
+			for (int tx = 0; tx < tilesX; ++tx) {
+				int value = dirty[ty * tilesX + tx] ? 1 : 0;
+				dirtyTiles += value;
+				table[(ty + 1) * (tilesX + 1) + tx + 1] = value + table[ty * (tilesX + 1) + tx + 1] + table[(ty + 1) * (tilesX + 1) + tx]
+						- table[ty * (tilesX + 1) + tx];
+			}
+		}
+	}
+
+	public boolean isEmpty() {
+		return dirtyTiles == 0;
+	}
+
+	public float getDirtyFraction() {
+		return ((float) dirtyTiles) / ((float) (tilesX * tilesY));
+	}
+
+	/**
+	 * Returns whether anything changed in the texels from (x0, y0) up to but not including (x1, y1).
+	 * The region may go past the right and bottom edges, in which case it wraps around, just like ImageBuffer.getPixel().
+	 *
+	 * @param x0
+	 * @param y0
+	 * @param x1
+	 * @param y1
+	 * @return
+	 */
+	public boolean isDirty(int x0, int y0, int x1, int y1) {
+		if (dirtyTiles == 0) return false;
+
+		// Split the region up at the edges, so that we only have to deal with regions within the image.
+		if (x1 - x0 >= width) {
+			x0 = 0;
+			x1 = width;
+		}
+		if (y1 - y0 >= height) {
+			y0 = 0;
+			y1 = height;
+		}
+		if (x1 > width) return isDirty(x0, y0, width, y1) || isDirty(0, y0, x1 - width, y1);
+		if (y1 > height) return isDirty(x0, y0, x1, height) || isDirty(x0, 0, x1, y1 - height);
+
+		int tx0 = x0 / tileSize;
+		int ty0 = y0 / tileSize;
+		int tx1 = (x1 - 1) / tileSize + 1;
+		int ty1 = (y1 - 1) / tileSize + 1;
+
+		int count = table[ty1 * (tilesX + 1) + tx1] - table[ty0 * (tilesX + 1) + tx1] - table[ty1 * (tilesX + 1) + tx0]
+				+ table[ty0 * (tilesX + 1) + tx0];
+		return count > 0;
+	}
+
+}
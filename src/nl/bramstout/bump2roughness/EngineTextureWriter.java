@@ -0,0 +1,380 @@
+/*
+BSD 3-Clause License
+
+Copyright (c) 2020, Bram Stout
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+3. Neither the name of the copyright holder nor the names of its
+   contributors may be used to endorse or promote products derived from
+   this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+
+
+package nl.bramstout.bump2roughness;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+
+import nl.bramstout.bump2roughness.Threading.Task;
+
+/**
+ * Writes the roughness texture with all of its mip map levels into a single DDS or KTX2 file,
+ * so that game engines can load our mip maps as they are instead of generating their own.
+ * 
+ * Only the first channel is written, since the roughness is the same in all three.
+ */
+public class EngineTextureWriter {
+
+	public static enum FORMAT {
+		// 8 bits per texel
+		R8,
+		// 16 bits per texel
+		R16,
+		// Block compressed, 4 bits per texel
+		BC4
+	}
+
+	// DXGI_FORMAT values
+	private static final int DXGI_FORMAT_R16_UNORM = 56;
+	private static final int DXGI_FORMAT_R8_UNORM = 61;
+	private static final int DXGI_FORMAT_BC4_UNORM = 80;
+
+	// VkFormat values
+	private static final int VK_FORMAT_R8_UNORM = 9;
+	private static final int VK_FORMAT_R16_UNORM = 70;
+	private static final int VK_FORMAT_BC4_UNORM_BLOCK = 139;
+
+	// khr_df.h colour models
+	private static final int KHR_DF_MODEL_RGBSDA = 1;
+	private static final int KHR_DF_MODEL_BC4 = 131;
+
+	private static final byte[] KTX2_IDENTIFIER = { (byte) 0xAB, 'K', 'T', 'X', ' ', '2', '0', (byte) 0xBB, '\r', '\n', 0x1A, '\n' };
+
+	/**
+	 * Encodes every mip map level of img.
+	 * 
+	 * @param img
+	 * @param format
+	 * @return
+	 */
+	public static byte[][] encodeLevels(final ImageContainer img, final FORMAT format) {
+		final byte[][] levels = new byte[img.mipmapLevels][];
+		Threading.runParallel(img.mipmapLevels, new Task() {
+
+			@Override
+			public void run(int level) {
+				levels[level] = encodeLevel(img.buffers[level], format);
+			}
+
+		});
+		return levels;
+	}
+
+	/**
+	 * Encodes the first channel of buffer in the given format. Rows are stored without any padding.
+	 * 
+	 * @param buffer
+	 * @param format
+	 * @return
+	 */
+	public static byte[] encodeLevel(ImageBuffer buffer, FORMAT format) {
+		int width = buffer.width;
+		int height = buffer.height;
+		if (format == FORMAT.R8) {
+			byte[] data = new byte[width * height];
+			for (int i = 0; i < data.length; ++i)
+				data[i] = (byte) quantise(buffer.data[i * 3], 255.0f);
+			return data;
+		} else if (format == FORMAT.R16) {
+			byte[] data = new byte[width * height * 2];
+			for (int i = 0; i < width * height; ++i) {
+				int value = quantise(buffer.data[i * 3], 65535.0f);
+				data[i * 2] = (byte) value;
+				data[i * 2 + 1] = (byte) (value >> 8);
+			}
+			return data;
+		}
+
+		int blocksX = (width + 3) / 4;
+		int blocksY = (height + 3) / 4;
+		byte[] data = new byte[blocksX * blocksY * 8];
+		float[] block = new float[16];
+		for (int by = 0; by < blocksY; ++by) {
+			for (int bx = 0; bx < blocksX; ++bx) {
+				// Levels smaller than a block just repeat their edge texels.
+				for (int k = 0; k < 16; ++k) {
+					int x = Math.min(bx * 4 + (k & 3), width - 1);
+					int y = Math.min(by * 4 + (k >> 2), height - 1);
+					block[k] = buffer.data[buffer.getIndex(x, y)];
+				}
+				encodeBC4Block(block, data, (by * blocksX + bx) * 8);
+			}
+		}
+		return data;
+	}
+
+	private static int quantise(float value, float max) {
+		return (int) (Math.min(Math.max(value, 0.0f), 1.0f) * max + 0.5f);
+	}
+
+	/**
+	 * Writes a BC4 block for 16 values, in rows of four, to dst at offset.
+	 * 
+	 * It uses the lowest and highest value as the end points, in the mode with
+	 * six values in between them, and then picks the closest value for each texel.
+	 * 
+	 * @param values
+	 * @param dst
+	 * @param offset
+	 */
+	static void encodeBC4Block(float[] values, byte[] dst, int offset) {
+		float min = 1.0f;
+		float max = 0.0f;
+		for (int k = 0; k < 16; ++k) {
+			min = Math.min(min, values[k]);
+			max = Math.max(max, values[k]);
+		}
+		int red0 = quantise(max, 255.0f);
+		int red1 = quantise(min, 255.0f);
+
+		// Same order as the decoder: red0, red1 and then the values going from red0 to red1.
+		float[] palette = new float[8];
+		palette[0] = red0;
+		palette[1] = red1;
+		if (red0 > red1) {
+			for (int k = 1; k < 7; ++k)
+				palette[k + 1] = ((7 - k) * red0 + k * red1) / 7.0f;
+		} else {
+			// All values quantise to the same value, which then is red0.
+			for (int k = 2; k < 8; ++k)
+				palette[k] = red0;
+		}
+
+		long indices = 0;
+		for (int k = 0; k < 16; ++k) {
+			float value = Math.min(Math.max(values[k], 0.0f), 1.0f) * 255.0f;
+			int best = 0;
+			float bestError = Float.MAX_VALUE;
+			for (int p = 0; p < 8; ++p) {
+				float error = Math.abs(palette[p] - value);
+				if (error < bestError) {
+					bestError = error;
+					best = p;
+				}
+			}
+			indices |= ((long) best) << (k * 3);
+		}
+
+		dst[offset] = (byte) red0;
+		dst[offset + 1] = (byte) red1;
+		for (int k = 0; k < 6; ++k)
+			dst[offset + 2 + k] = (byte) (indices >> (k * 8));
+	}
+
+	/**
+	 * Returns how many bytes a block of texels takes up: 1x1 for R8 and R16 and 4x4 for BC4.
+	 * 
+	 * @param format
+	 * @return
+	 */
+	private static int getBlockSize(FORMAT format) {
+		if (format == FORMAT.R16) return 2;
+		if (format == FORMAT.BC4) return 8;
+		return 1;
+	}
+
+	/**
+	 * Writes img as a DDS file with a DX10 header.
+	 * 
+	 * @param img
+	 * @param format
+	 * @param file
+	 * @throws IOException
+	 */
+	public static void writeDDS(ImageContainer img, FORMAT format, File file) throws IOException {
+		byte[][] levels = encodeLevels(img, format);
+
+		ByteBuffer header = ByteBuffer.allocate(4 + 124 + 20).order(ByteOrder.LITTLE_ENDIAN);
+		header.putInt(0x20534444); // "DDS "
+
+		// DDS_HEADER
+		header.putInt(124);
+		// CAPS | HEIGHT | WIDTH | PIXELFORMAT | MIPMAPCOUNT, and either PITCH or LINEARSIZE
+		header.putInt(0x1 | 0x2 | 0x4 | 0x1000 | 0x20000 | (format == FORMAT.BC4 ? 0x80000 : 0x8));
+		header.putInt(img.height);
+		header.putInt(img.width);
+		header.putInt(format == FORMAT.BC4 ? levels[0].length : img.width * getBlockSize(format));
+		header.putInt(0); // depth
+		header.putInt(img.mipmapLevels);
+		for (int i = 0; i < 11; ++i)
+			header.putInt(0);
+		// DDS_PIXELFORMAT, which just points to the DX10 header
+		header.putInt(32);
+		header.putInt(0x4); // FOURCC
+		header.putInt(0x30315844); // "DX10"
+		for (int i = 0; i < 5; ++i)
+			header.putInt(0);
+		header.putInt(0x8 | 0x1000 | 0x400000); // COMPLEX | TEXTURE | MIPMAP
+		for (int i = 0; i < 4; ++i)
+			header.putInt(0);
+
+		// DDS_HEADER_DXT10
+		if (format == FORMAT.R8) header.putInt(DXGI_FORMAT_R8_UNORM);
+		else if (format == FORMAT.R16) header.putInt(DXGI_FORMAT_R16_UNORM);
+		else header.putInt(DXGI_FORMAT_BC4_UNORM);
+		header.putInt(3); // TEXTURE2D
+		header.putInt(0);
+		header.putInt(1); // array size
+		header.putInt(0);
+
+		try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file))) {
+			out.write(header.array());
+			// DDS stores the largest level first.
+			for (byte[] level : levels)
+				out.write(level);
+		}
+	}
+
+	/**
+	 * Writes img as a KTX2 file, without supercompression.
+	 * 
+	 * @param img
+	 * @param format
+	 * @param file
+	 * @throws IOException
+	 */
+	public static void writeKTX2(ImageContainer img, FORMAT format, File file) throws IOException {
+		byte[][] levels = encodeLevels(img, format);
+		int blockSize = getBlockSize(format);
+
+		byte[] dfd = createDataFormatDescriptor(format);
+		byte[] kvd = createKeyValue("KTXwriter", "Bump2Roughness");
+
+		int headerSize = 12 + 9 * 4 + 4 * 4 + 2 * 8 + levels.length * 3 * 8;
+		int dfdOffset = headerSize;
+		int kvdOffset = dfdOffset + dfd.length;
+
+		// The levels are stored smallest first, each one aligned to both the block size and 4 bytes.
+		int alignment = blockSize == 8 ? 8 : 4;
+		long[] levelOffsets = new long[levels.length];
+		long offset = kvdOffset + kvd.length;
+		for (int level = levels.length - 1; level >= 0; --level) {
+			offset = (offset + alignment - 1) / alignment * alignment;
+			levelOffsets[level] = offset;
+			offset += levels[level].length;
+		}
+
+		ByteBuffer header = ByteBuffer.allocate(headerSize).order(ByteOrder.LITTLE_ENDIAN);
+		header.put(KTX2_IDENTIFIER);
+		if (format == FORMAT.R8) header.putInt(VK_FORMAT_R8_UNORM);
+		else if (format == FORMAT.R16) header.putInt(VK_FORMAT_R16_UNORM);
+		else header.putInt(VK_FORMAT_BC4_UNORM_BLOCK);
+		header.putInt(format == FORMAT.R16 ? 2 : 1); // type size
+		header.putInt(img.width);
+		header.putInt(img.height);
+		header.putInt(0); // depth
+		header.putInt(0); // layers
+		header.putInt(1); // faces
+		header.putInt(levels.length);
+		header.putInt(0); // supercompression
+
+		header.putInt(dfdOffset);
+		header.putInt(dfd.length);
+		header.putInt(kvdOffset);
+		header.putInt(kvd.length);
+		header.putLong(0); // supercompression global data
+		header.putLong(0);
+
+		for (int level = 0; level < levels.length; ++level) {
+			header.putLong(levelOffsets[level]);
+			header.putLong(levels[level].length);
+			header.putLong(levels[level].length);
+		}
+
+		try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file))) {
+			out.write(header.array());
+			out.write(dfd);
+			out.write(kvd);
+			long position = kvdOffset + kvd.length;
+			for (int level = levels.length - 1; level >= 0; --level) {
+				for (; position < levelOffsets[level]; ++position)
+					out.write(0);
+				out.write(levels[level]);
+				position += levels[level].length;
+			}
+		}
+	}
+
+	/**
+	 * Creates the Khronos data format descriptor for the format, with a single basic descriptor block.
+	 * 
+	 * @param format
+	 * @return
+	 */
+	private static byte[] createDataFormatDescriptor(FORMAT format) {
+		int blockSize = 24 + 16;
+		ByteBuffer dfd = ByteBuffer.allocate(4 + blockSize).order(ByteOrder.LITTLE_ENDIAN);
+		dfd.putInt(4 + blockSize);
+		dfd.putInt(0); // vendor Khronos, basic descriptor type
+		dfd.putInt(2 | (blockSize << 16)); // version 2
+
+		boolean compressed = format == FORMAT.BC4;
+		int colorModel = compressed ? KHR_DF_MODEL_BC4 : KHR_DF_MODEL_RGBSDA;
+		int primaries = 1; // BT709
+		int transfer = 1; // linear
+		dfd.putInt(colorModel | (primaries << 8) | (transfer << 16));
+		dfd.putInt(compressed ? (3 | (3 << 8)) : 0); // block dimensions minus one
+		dfd.putInt(getBlockSize(format)); // bytes in plane 0
+		dfd.putInt(0);
+
+		// The only sample, which is the red channel or the BC4 data.
+		int bitLength = getBlockSize(format) * 8;
+		dfd.putInt(0 | ((bitLength - 1) << 16));
+		dfd.putInt(0); // sample position
+		dfd.putInt(0); // lower
+		dfd.putInt(compressed ? 0xFFFFFFFF : (1 << bitLength) - 1); // upper
+		return dfd.array();
+	}
+
+	private static byte[] createKeyValue(String key, String value) {
+		byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+		byte[] valueBytes = value.getBytes(StandardCharsets.UTF_8);
+		int length = keyBytes.length + 1 + valueBytes.length + 1;
+		ByteBuffer kvd = ByteBuffer.allocate(4 + (length + 3) / 4 * 4).order(ByteOrder.LITTLE_ENDIAN);
+		kvd.putInt(length);
+		kvd.put(keyBytes);
+		kvd.put((byte) 0);
+		kvd.put(valueBytes);
+		kvd.put((byte) 0);
+		return kvd.array();
+	}
+
+}
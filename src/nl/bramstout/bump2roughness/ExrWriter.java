@@ -0,0 +1,156 @@
+/*
+BSD 3-Clause License
+
+Copyright (c) 2020, Bram Stout
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+3. Neither the name of the copyright holder nor the names of its
+   contributors may be used to endorse or promote products derived from
+   this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+
+
+package nl.bramstout.bump2roughness;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes an ImageBuffer as a scanline OpenEXR file, so that the roughness keeps its precision
+ * instead of getting quantised to 8 bits.
+ * 
+ * Only a single "Y" channel is written, since the roughness is the same in all three channels.
+ * The rows are written straight from the ImageBuffer without compression.
+ */
+public class ExrWriter {
+
+	private static final int MAGIC = 20000630;
+
+	private static final int PIXELTYPE_HALF = 1;
+	private static final int PIXELTYPE_FLOAT = 2;
+
+	/**
+	 * @param buffer
+	 * @param file
+	 * @param halfFloat Whether to store the texels as half floats or as floats.
+	 * @throws IOException
+	 */
+	public static void write(ImageBuffer buffer, File file, boolean halfFloat) throws IOException {
+		int bytesPerTexel = halfFloat ? 2 : 4;
+		byte[] header = createHeader(buffer.width, buffer.height, halfFloat ? PIXELTYPE_HALF : PIXELTYPE_FLOAT);
+
+		// Every row is its own chunk: the y coordinate, the size of the data and then the texels.
+		int chunkSize = 4 + 4 + buffer.width * bytesPerTexel;
+		long firstChunk = header.length + 8L * buffer.height;
+
+		try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file), 1 << 16)) {
+			out.write(header);
+
+			ByteBuffer offsets = ByteBuffer.allocate(8 * buffer.height).order(ByteOrder.LITTLE_ENDIAN);
+			for (int y = 0; y < buffer.height; ++y)
+				offsets.putLong(firstChunk + ((long) y) * chunkSize);
+			out.write(offsets.array());
+
+			ByteBuffer row = ByteBuffer.allocate(chunkSize).order(ByteOrder.LITTLE_ENDIAN);
+			for (int y = 0; y < buffer.height; ++y) {
+				row.clear();
+				row.putInt(y);
+				row.putInt(buffer.width * bytesPerTexel);
+				int dataIndex = buffer.getIndex(0, y);
+				for (int x = 0; x < buffer.width; ++x, dataIndex += 3) {
+					if (halfFloat) row.putShort(HalfFloat.fromFloat(buffer.data[dataIndex]));
+					else row.putFloat(buffer.data[dataIndex]);
+				}
+				out.write(row.array());
+			}
+		}
+	}
+
+	private static byte[] createHeader(int width, int height, int pixelType) {
+		ByteBuffer header = ByteBuffer.allocate(512).order(ByteOrder.LITTLE_ENDIAN);
+		header.putInt(MAGIC);
+		header.putInt(2); // version 2, single part scanline file
+
+		// A single channel: name, pixel type, pLinear and three reserved bytes, x and y sampling.
+		putAttribute(header, "channels", "chlist", 2 + 16 + 1);
+		putString(header, "Y");
+		header.putInt(pixelType);
+		header.putInt(0);
+		header.putInt(1);
+		header.putInt(1);
+		header.put((byte) 0);
+
+		putAttribute(header, "compression", "compression", 1);
+		header.put((byte) 0); // NO_COMPRESSION
+
+		putAttribute(header, "dataWindow", "box2i", 16);
+		putBox(header, width, height);
+		putAttribute(header, "displayWindow", "box2i", 16);
+		putBox(header, width, height);
+
+		putAttribute(header, "lineOrder", "lineOrder", 1);
+		header.put((byte) 0); // INCREASING_Y
+
+		putAttribute(header, "pixelAspectRatio", "float", 4);
+		header.putFloat(1.0f);
+		putAttribute(header, "screenWindowCenter", "v2f", 8);
+		header.putFloat(0.0f);
+		header.putFloat(0.0f);
+		putAttribute(header, "screenWindowWidth", "float", 4);
+		header.putFloat(1.0f);
+
+		header.put((byte) 0); // end of the header
+
+		byte[] bytes = new byte[header.position()];
+		header.flip();
+		header.get(bytes);
+		return bytes;
+	}
+
+	private static void putAttribute(ByteBuffer header, String name, String type, int size) {
+		putString(header, name);
+		putString(header, type);
+		header.putInt(size);
+	}
+
+	private static void putString(ByteBuffer header, String value) {
+		header.put(value.getBytes(StandardCharsets.US_ASCII));
+		header.put((byte) 0);
+	}
+
+	private static void putBox(ByteBuffer header, int width, int height) {
+		header.putInt(0);
+		header.putInt(0);
+		header.putInt(width - 1);
+		header.putInt(height - 1);
+	}
+
+}
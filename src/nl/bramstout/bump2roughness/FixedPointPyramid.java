@@ -0,0 +1,277 @@
+/*
+BSD 3-Clause License
+
+Copyright (c) 2020, Bram Stout
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+3. Neither the name of the copyright holder nor the names of its
+   contributors may be used to endorse or promote products derived from
+   this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+
+
+package nl.bramstout.bump2roughness;
+
+import nl.bramstout.bump2roughness.Threading.Task;
+
+/**
+ * Calculates the roughness of 8-bit bump and displacement maps with integer sums, one mipmap level at a time.
+ * 
+ * The heights are turned into integers in steps of 1/65535, which keeps 8-bit values exact, so the slopes
+ * of level 0 are integer height differences times a constant. For every texel of the current level, the
+ * sum of its level 0 heights, the sums of the height differences and the sums of their squares are kept
+ * in longs. Every level is made by adding up the sums of the level before it, so the sums are exact and
+ * don't depend on the order that they are added up in. Only when the squared roughness of a texel is
+ * asked for are they turned into a float, using
+ * 
+ *   sum((s - m)^2) = c^2 * sum(d^2) - 2 * m * c * sum(d) + n * m^2
+ * 
+ * where s = c * d is the slope of a level 0 texel and m is the slope of the texel in this level.
+ * Slopes that get clamped to -1 or 1 are counted separately, since they aren't a multiple of c.
+ */
+public class FixedPointPyramid {
+
+	static final int ONE = 65535;
+
+	private byte[] values;
+	private int[] lut;
+	private int width;
+	private int height;
+
+	private float strength;
+	private float unitSize;
+	private float divisor;
+	private boolean clamp;
+	// The slope of a height difference of 1 between neighbouring level 0 texels.
+	private double scaleX;
+	private double scaleY;
+	// The largest height difference that doesn't get its slope clamped.
+	private long limitX;
+	private long limitY;
+
+	int level = 0;
+	int levelWidth;
+	int levelHeight;
+	// The sums for every texel of the current level.
+	private long[] heightSums;
+	private long[] differenceSumsX;
+	private long[] differenceSumsY;
+	private long[] squaredSumsX;
+	private long[] squaredSumsY;
+	// For the clamped slopes: how many were clamped to 1 minus how many to -1, and how many there are in total.
+	// Null when nothing gets clamped.
+	private int[] clampedSumsX;
+	private int[] clampedSumsY;
+	private int[] clampedCounts;
+
+	/**
+	 * @param img An image that was read in as bytes.
+	 * @param strength The normalisation factor of the map.
+	 * @param unitSize
+	 * @param divisor What to divide the slopes by (1.0 to leave them as is).
+	 * @param clamp Whether the slopes are clamped to -1 and 1.
+	 */
+	public FixedPointPyramid(ImageContainer img, float strength, float unitSize, float divisor, boolean clamp) {
+		values = img.bytes;
+		width = img.width;
+		height = img.height;
+		this.strength = strength;
+		this.unitSize = unitSize;
+		this.divisor = divisor;
+		this.clamp = clamp;
+
+		float[] floatLUT = Resampler.createLUT(img.greyscale);
+		lut = new int[floatLUT.length];
+		for (int i = 0; i < lut.length; ++i)
+			lut[i] = Math.round(floatLUT[i] * ONE);
+
+		scaleX = getSlope(1.0, width);
+		scaleY = getSlope(1.0, height);
+		limitX = getLimit(scaleX);
+		limitY = getLimit(scaleY);
+
+		levelWidth = width;
+		levelHeight = height;
+	}
+
+	/**
+	 * Returns the slope of a height difference (in steps of 1/65535) between two texels of a level that is size texels wide.
+	 * 
+	 * @param difference
+	 * @param size
+	 * @return
+	 */
+	private double getSlope(double difference, int size) {
+		return difference / ONE * strength / (unitSize / size) / divisor;
+	}
+
+	private long getLimit(double scale) {
+		if (!clamp || scale <= 0.0) return Long.MAX_VALUE;
+		long limit = (long) (1.0 / scale);
+		// Make sure that rounding didn't put it off by one.
+		while ((limit + 1) * scale <= 1.0)
+			limit++;
+		while (limit > 0 && limit * scale > 1.0)
+			limit--;
+		return limit;
+	}
+
+	/**
+	 * Replaces the sums with those of the next mipmap level.
+	 */
+	public void nextLevel() {
+		final int childWidth = levelWidth;
+		final int childHeight = levelHeight;
+		final int countX = childWidth > 1 ? 2 : 1;
+		final int countY = childHeight > 1 ? 2 : 1;
+		final int newWidth = childWidth / countX;
+		final int newHeight = childHeight / countY;
+		final boolean fromValues = level == 0;
+
+		final long[] newHeightSums = new long[newWidth * newHeight];
+		final long[] newDifferenceSumsX = new long[newWidth * newHeight];
+		final long[] newDifferenceSumsY = new long[newWidth * newHeight];
+		final long[] newSquaredSumsX = new long[newWidth * newHeight];
+		final long[] newSquaredSumsY = new long[newWidth * newHeight];
+		final boolean clamped = limitX != Long.MAX_VALUE || limitY != Long.MAX_VALUE;
+		final int[] newClampedSumsX = clamped ? new int[newWidth * newHeight] : null;
+		final int[] newClampedSumsY = clamped ? new int[newWidth * newHeight] : null;
+		final int[] newClampedCounts = clamped ? new int[newWidth * newHeight] : null;
+
+		final int threads = Resampler.getThreadCount(newHeight);
+		Threading.runParallel(threads, new Task() {
+
+			@Override
+			public void run(int thread) {
+				for (int j = thread * newHeight / threads; j < (thread + 1) * newHeight / threads; ++j) {
+					for (int i = 0; i < newWidth; ++i) {
+						int index = j * newWidth + i;
+						for (int y = j * countY; y < (j + 1) * countY; ++y) {
+							for (int x = i * countX; x < (i + 1) * countX; ++x) {
+								if (fromValues) {
+									addTexel(x, y, index, newHeightSums, newDifferenceSumsX, newDifferenceSumsY, newSquaredSumsX,
+											newSquaredSumsY, newClampedSumsX, newClampedSumsY, newClampedCounts);
+									continue;
+								}
+								int child = y * childWidth + x;
+								newHeightSums[index] += heightSums[child];
+								newDifferenceSumsX[index] += differenceSumsX[child];
+								newDifferenceSumsY[index] += differenceSumsY[child];
+								newSquaredSumsX[index] += squaredSumsX[child];
+								newSquaredSumsY[index] += squaredSumsY[child];
+								if (clampedCounts != null) {
+									newClampedSumsX[index] += clampedSumsX[child];
+									newClampedSumsY[index] += clampedSumsY[child];
+									newClampedCounts[index] += clampedCounts[child];
+								}
+							}
+						}
+					}
+				}
+			}
+
+		});
+
+		heightSums = newHeightSums;
+		differenceSumsX = newDifferenceSumsX;
+		differenceSumsY = newDifferenceSumsY;
+		squaredSumsX = newSquaredSumsX;
+		squaredSumsY = newSquaredSumsY;
+		clampedSumsX = newClampedSumsX;
+		clampedSumsY = newClampedSumsY;
+		clampedCounts = newClampedCounts;
+		levelWidth = newWidth;
+		levelHeight = newHeight;
+		level++;
+	}
+
+	private int getHeight(int x, int y) {
+		// Wrap around, just like ImageBuffer does.
+		if (x == width) x = 0;
+		if (y == height) y = 0;
+		return lut[values[y * width + x] & 0xFF];
+	}
+
+	private void addTexel(int x, int y, int index, long[] heightSums, long[] differenceSumsX, long[] differenceSumsY, long[] squaredSumsX,
+			long[] squaredSumsY, int[] clampedSumsX, int[] clampedSumsY, int[] clampedCounts) {
+		int h = getHeight(x, y);
+		long dx = getHeight(x + 1, y) - h;
+		long dy = getHeight(x, y + 1) - h;
+		heightSums[index] += h;
+
+		if (Math.abs(dx) > limitX) {
+			clampedSumsX[index] += dx > 0 ? 1 : -1;
+			clampedCounts[index]++;
+		} else {
+			differenceSumsX[index] += dx;
+			squaredSumsX[index] += dx * dx;
+		}
+
+		if (Math.abs(dy) > limitY) {
+			clampedSumsY[index] += dy > 0 ? 1 : -1;
+			clampedCounts[index]++;
+		} else {
+			differenceSumsY[index] += dy;
+			squaredSumsY[index] += dy * dy;
+		}
+	}
+
+	/**
+	 * Returns the squared roughness of texel (i, j) in the current level, the same as Bump2Roughness.calculateDeviation().
+	 * 
+	 * @param i
+	 * @param j
+	 * @return
+	 */
+	public float getDeviation(int i, int j) {
+		int index = j * levelWidth + i;
+		int right = j * levelWidth + (i + 1 == levelWidth ? 0 : i + 1);
+		int down = (j + 1 == levelHeight ? 0 : j + 1) * levelWidth + i;
+		double count = ((double) (width / levelWidth)) * ((double) (height / levelHeight));
+
+		// The slope of this texel, from the average heights of it and its neighbours.
+		double meanX = getSlope((heightSums[right] - heightSums[index]) / count, levelWidth);
+		double meanY = getSlope((heightSums[down] - heightSums[index]) / count, levelHeight);
+		if (clamp) {
+			meanX = Math.max(-1.0, Math.min(1.0, meanX));
+			meanY = Math.max(-1.0, Math.min(1.0, meanY));
+		}
+
+		double sumX = scaleX * differenceSumsX[index];
+		double sumY = scaleY * differenceSumsY[index];
+		double squaredSum = scaleX * scaleX * squaredSumsX[index] + scaleY * scaleY * squaredSumsY[index];
+		if (clampedCounts != null) {
+			sumX += clampedSumsX[index];
+			sumY += clampedSumsY[index];
+			squaredSum += clampedCounts[index];
+		}
+
+		double deviation = squaredSum - 2.0 * (meanX * sumX + meanY * sumY) + count * (meanX * meanX + meanY * meanY);
+		// Rounding can make a deviation of 0 very slightly negative.
+		deviation = Math.max(0.0, deviation);
+		return (float) (deviation / count * 2.0);
+	}
+
+}
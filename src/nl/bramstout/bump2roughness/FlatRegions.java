@@ -0,0 +1,167 @@
+/*
+BSD 3-Clause License
+
+Copyright (c) 2020, Bram Stout
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+3. Neither the name of the copyright holder nor the names of its
+   contributors may be used to endorse or promote products derived from
+   this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+
+package nl.bramstout.bump2roughness;
+
+/**
+ * For every texel of every mipmap level after level 0, whether all of the level 0 slopes in its
+ * footprint are the same, and if so, what that slope is.
+ * 
+ * Flat parts of a map, like masked out areas or the empty parts of a trim sheet, have the same
+ * slope everywhere. The squared roughness of a texel whose footprint has a single slope c is simply
+ * 2 * |c - m|^2, where m is the slope of the texel itself, so there is no need to go through the
+ * whole footprint. Each level is built from the level before it, just like a mipmap.
+ */
+public class FlatRegions {
+
+	int mipmapLevels;
+	int[] widths;
+	int[] heights;
+	// Per level, with level 0 left out. NaN if the slopes in the footprint aren't all the same.
+	float[][] slopeX;
+	float[][] slopeY;
+
+	public FlatRegions(int width, int height, int mipmapLevels) {
+		this.mipmapLevels = mipmapLevels;
+		widths = new int[mipmapLevels];
+		heights = new int[mipmapLevels];
+		slopeX = new float[mipmapLevels][];
+		slopeY = new float[mipmapLevels][];
+		for (int level = 0; level < mipmapLevels; ++level) {
+			widths[level] = ImageContainer.getLevelSize(width, level);
+			heights[level] = ImageContainer.getLevelSize(height, level);
+			if (level == 0) continue;
+			slopeX[level] = new float[widths[level] * heights[level]];
+			slopeY[level] = new float[widths[level] * heights[level]];
+		}
+	}
+
+	/**
+	 * Adds a whole row of level 0 slopes into level 1. The rows of each texel of level 1 have to be added in order,
+	 * by a single thread.
+	 * 
+	 * @param row The row in level 0.
+	 * @param srcX
+	 * @param srcY
+	 */
+	public void addRow(int row, float[] srcX, float[] srcY) {
+		if (mipmapLevels < 2) return;
+		int scaleX = widths[0] / widths[1];
+		int scaleY = heights[0] / heights[1];
+		boolean firstRow = row % scaleY == 0;
+		int offset = (row / scaleY) * widths[1];
+		float[] dstX = slopeX[1];
+		float[] dstY = slopeY[1];
+		for (int i = 0; i < widths[0]; ++i) {
+			int index = offset + i / scaleX;
+			if (firstRow && i % scaleX == 0) {
+				dstX[index] = srcX[i];
+				dstY[index] = srcY[i];
+			} else if (dstX[index] != srcX[i] || dstY[index] != srcY[i]) {
+				// Once it's NaN, this is always true, so it stays NaN.
+				dstX[index] = Float.NaN;
+				dstY[index] = Float.NaN;
+			}
+		}
+	}
+
+	/**
+	 * Fills in level 2 and up from level 1.
+	 */
+	public void generateLevels() {
+		for (int level = 2; level < mipmapLevels; ++level) {
+			int width = widths[level];
+			int height = heights[level];
+			int srcWidth = widths[level - 1];
+			int countX = srcWidth > width ? 2 : 1;
+			int countY = heights[level - 1] > height ? 2 : 1;
+			float[] srcX = slopeX[level - 1];
+			float[] srcY = slopeY[level - 1];
+
+			for (int j = 0; j < height; ++j) {
+				for (int i = 0; i < width; ++i) {
+					int first = (j * countY) * srcWidth + i * countX;
+					float x = srcX[first];
+					float y = srcY[first];
+					for (int jj = j * countY; jj < (j + 1) * countY; ++jj) {
+						for (int ii = i * countX; ii < (i + 1) * countX; ++ii) {
+							int src = jj * srcWidth + ii;
+							if (srcX[src] != x || srcY[src] != y) {
+								x = Float.NaN;
+								y = Float.NaN;
+							}
+						}
+					}
+					slopeX[level][j * width + i] = x;
+					slopeY[level][j * width + i] = y;
+				}
+			}
+		}
+	}
+
+	public boolean isFlat(int level, int i, int j) {
+		return !Float.isNaN(slopeX[level][j * widths[level] + i]);
+	}
+
+	/**
+	 * Returns the squared roughness of a texel for which isFlat() is true.
+	 * 
+	 * @param level
+	 * @param i
+	 * @param j
+	 * @param meanSlopeX The slope of the texel itself.
+	 * @param meanSlopeY
+	 * @return
+	 */
+	public float getDeviation(int level, int i, int j, float meanSlopeX, float meanSlopeY) {
+		return getSquaredDifference(level, i, j, meanSlopeX, meanSlopeY) * 2.0f;
+	}
+
+	/**
+	 * Returns |c - m|^2 for a texel for which isFlat() is true, where c is the slope in its footprint.
+	 * 
+	 * @param level
+	 * @param i
+	 * @param j
+	 * @param meanSlopeX
+	 * @param meanSlopeY
+	 * @return
+	 */
+	public float getSquaredDifference(int level, int i, int j, float meanSlopeX, float meanSlopeY) {
+		int index = j * widths[level] + i;
+		float dx = slopeX[level][index] - meanSlopeX;
+		float dy = slopeY[level][index] - meanSlopeY;
+		return dx * dx + dy * dy;
+	}
+
+}
@@ -0,0 +1,109 @@
+/*
+BSD 3-Clause License
+
+Copyright (c) 2020, Bram Stout
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+3. Neither the name of the copyright holder nor the names of its
+   contributors may be used to endorse or promote products derived from
+   this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+
+package nl.bramstout.bump2roughness;
+
+/**
+ * Converts between floats and 16-bit half floats (IEEE 754 binary16), which are stored in shorts.
+ */
+public class HalfFloat {
+
+	// Every half float turned into a float, so that reading them back is a single lookup.
+	private static final float[] TO_FLOAT = new float[65536];
+
+	static {
+		for (int i = 0; i < 65536; ++i)
+			TO_FLOAT[i] = convertToFloat(i);
+	}
+
+	public static float toFloat(short half) {
+		return TO_FLOAT[half & 0xFFFF];
+	}
+
+	private static float convertToFloat(int half) {
+		int sign = (half & 0x8000) << 16;
+		int exponent = (half >>> 10) & 0x1F;
+		int mantissa = half & 0x3FF;
+
+		if (exponent == 0) {
+			// Zero or a subnormal number, which is mantissa * 2^-24.
+			float value = mantissa / 16777216.0f;
+			return sign != 0 ? -value : value;
+		}
+		if (exponent == 31) {
+			// Infinity or NaN
+			return Float.intBitsToFloat(sign | 0x7F800000 | (mantissa << 13));
+		}
+		return Float.intBitsToFloat(sign | ((exponent + 112) << 23) | (mantissa << 13));
+	}
+
+	/**
+	 * Returns the nearest half float, rounding ties to even. Values that are too large become infinity.
+	 * 
+	 * @param value
+	 * @return
+	 */
+	public static short fromFloat(float value) {
+		int bits = Float.floatToRawIntBits(value);
+		int sign = (bits >>> 16) & 0x8000;
+		int magnitude = bits & 0x7FFFFFFF;
+
+		if (magnitude >= 0x7F800000) {
+			// Infinity or NaN, keep NaNs NaN.
+			return (short) (sign | 0x7C00 | (magnitude > 0x7F800000 ? 0x200 : 0));
+		}
+		// 65520 and up round to infinity.
+		if (magnitude >= 0x477FF000) return (short) (sign | 0x7C00);
+
+		if (magnitude < 0x38800000) {
+			// Smaller than the smallest normal half float, so it becomes a subnormal number or zero.
+			if (magnitude < 0x33000000) return (short) sign;
+			int exponent = magnitude >>> 23;
+			int mantissa = (magnitude & 0x7FFFFF) | 0x800000;
+			int shift = 126 - exponent;
+			int half = mantissa >>> shift;
+			int remainder = mantissa & ((1 << shift) - 1);
+			int halfway = 1 << (shift - 1);
+			if (remainder > halfway || (remainder == halfway && (half & 1) != 0)) half++;
+			return (short) (sign | half);
+		}
+
+		// Change the exponent bias from 127 to 15 and drop the lowest 13 bits of the mantissa.
+		// If rounding up overflows the mantissa, it carries into the exponent, which is what we want.
+		int half = (magnitude - 0x38000000) >>> 13;
+		int remainder = magnitude & 0x1FFF;
+		if (remainder > 0x1000 || (remainder == 0x1000 && (half & 1) != 0)) half++;
+		return (short) (sign | half);
+	}
+
+}
@@ -33,8 +33,6 @@ OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
 
 package nl.bramstout.bump2roughness;
 
-import java.util.Arrays;
-
 public class ImageBuffer {
 	
 	int width;
@@ -44,8 +42,7 @@ public class ImageBuffer {
 	public ImageBuffer(int width, int height) {
 		this.width = width;
 		this.height = height;
-		this.data = new float[width * height * 3];
-		Arrays.fill(data, 0.0f);
+		this.data = BufferArena.allocate(width * height * 3, true);
 	}
 	
 	public ImageBuffer(int width, int height, float[] data) {
@@ -54,26 +51,85 @@ public class ImageBuffer {
 		this.data = data;
 	}
 	
+	public ImageBuffer(ImageBuffer other) {
+		this.width = other.width;
+		this.height = other.height;
+		this.data = BufferArena.allocate(other.data.length, false);
+		System.arraycopy(other.data, 0, data, 0, data.length);
+	}
+
+	/**
+	 * Gives the memory of this buffer back to the BufferArena. The buffer can't be used afterwards.
+	 */
+	public void release() {
+		BufferArena.release(data);
+		data = null;
+	}
+	
+	public int wrapX(int x) {
+		// Most coordinates are already inside of the image, so only do the modulo when needed.
+		if (x >= 0 && x < width) return x;
+		return x >= 0 ? x % width : (x % width + width) % width;
+	}
+	
+	public int wrapY(int y) {
+		if (y >= 0 && y < height) return y;
+		return y >= 0 ? y % height : (y % height + height) % height;
+	}
+	
+	/**
+	 * Returns the index into data of the first channel of texel (x, y).
+	 * Unlike getPixel(), this does not wrap around, so (x, y) has to be inside of the image.
+	 * 
+	 * @param x
+	 * @param y
+	 * @return
+	 */
+	public int getIndex(int x, int y) {
+		return (y * width + x) * 3;
+	}
+	
 	public RGB getPixel(int x, int y) {
-		x = x >= 0 ? x % width : x % width + width;
-		y = y >= 0 ? y % height : y % height + height;
-		
-		int index = (y * width + x) * 3;
+		int index = getIndex(wrapX(x), wrapY(y));
 		
 		return new RGB(data[index], data[index + 1], data[index + 2]);
 	}
 	
 	public void setPixel(int x, int y, RGB value) {
-		x = x >= 0 ? x % width : x % width + width;
-		y = y >= 0 ? y % height : y % height + height;
-		
-		int index = (y * width + x) * 3;
+		int index = getIndex(wrapX(x), wrapY(y));
 		
 		data[index] = value.r;
 		data[index + 1] = value.g;
 		data[index + 2] = value.b;
 	}
 	
+	/**
+	 * Copies n values of the given channel, starting at (x0, y), into dst. Just like getPixel(),
+	 * it wraps around at the edges, but the texels inside of the row are copied without any wrapping logic.
+	 * 
+	 * @param channel
+	 * @param x0
+	 * @param y
+	 * @param n
+	 * @param dst
+	 */
+	public void readRow(int channel, int x0, int y, int n, float[] dst) {
+		y = wrapY(y);
+		x0 = wrapX(x0);
+		
+		int rowOffset = y * width;
+		int k = 0;
+		int x = x0;
+		while (k < n) {
+			// Copy until we hit the edge, then continue at the start of the row.
+			int end = Math.min(n, k + width - x);
+			int index = (rowOffset + x) * 3 + channel;
+			for (; k < end; ++k, index += 3)
+				dst[k] = data[index];
+			x = 0;
+		}
+	}
+	
 	public static class RGB{
 		public float r;
 		public float g;
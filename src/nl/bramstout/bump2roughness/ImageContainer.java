@@ -33,12 +33,17 @@ OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
 
 package nl.bramstout.bump2roughness;
 
-import java.awt.Color;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Iterator;
 
 import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
 
 import nl.bramstout.bump2roughness.ImageBuffer.RGB;
 import nl.bramstout.bump2roughness.Threading.Task;
@@ -51,6 +56,19 @@ public class ImageContainer {
 	ImageBuffer[] buffers; // One buffer for each mip map level
 	boolean read = false;
 	File imgFile = null;
+	// How to resize images that aren't a power of 2.
+	Resampler.FILTER filter = Resampler.FILTER.BILINEAR;
+	// When true, free() keeps the image in memory, since other texture sets still need it.
+	// Reading and freeing are synchronized, so that texture sets on different threads can share it.
+	boolean keepResident = false;
+	// When true, the decoded pyramid is read from and written to a PyramidSidecar next to the image file.
+	boolean useSidecar = false;
+	// When true and the image doesn't need to be resized, only the first channel of level 0 is kept,
+	// as 8-bit values in bytes, for the FixedPointPyramid. buffers then stays empty.
+	boolean eightBit = false;
+	byte[] bytes = null;
+	// Whether bytes still needs the greyscale gamma undone, see Resampler.createLUT().
+	boolean greyscale = false;
 
 	public ImageContainer(int width, int height) {
 		this.width = width;
@@ -67,172 +85,292 @@ public class ImageContainer {
 		buffers = new ImageBuffer[mipmapLevels];
 
 		for (int i = 0; i < mipmapLevels; ++i) {
-			int scaleFactor = (int) Math.pow(2.0, (double) i);
-			buffers[i] = new ImageBuffer(width / scaleFactor, height / scaleFactor);
+			buffers[i] = new ImageBuffer(getLevelSize(width, i), getLevelSize(height, i));
 		}
 	}
 
+	/**
+	 * Returns the size of an axis at the given mipmap level. Every level halves it,
+	 * until it is a single texel.
+	 * 
+	 * @param size The size at level 0.
+	 * @param level
+	 * @return
+	 */
+	public static int getLevelSize(int size, int level) {
+		return Math.max(1, size >> level);
+	}
+
+	/**
+	 * Returns how many mipmap levels a power of 2 image has, going down until both axes are a single texel.
+	 * 
+	 * @param width
+	 * @param height
+	 * @return
+	 */
+	public static int getMipmapLevels(int width, int height) {
+		return 32 - Integer.numberOfLeadingZeros(Math.max(width, height));
+	}
+
 	public ImageContainer(File imgFile) throws IOException {
 		this.imgFile = imgFile;
 		
-		BufferedImage img = ImageIO.read(imgFile);
-		width = img.getWidth();
-		height = img.getHeight();
-
-		// We want every image to be a square power of 2 image.
-		// So, calculate the closest power of 2 resolution.
-		
-		int res = Math.max(width, height);
+		// Only read the header here. The pixels are read in read(), when they are actually needed.
+		ImageInputStream stream = ImageIO.createImageInputStream(imgFile);
+		if (stream == null) throw new IOException("Cannot open " + imgFile);
+		try {
+			Iterator<ImageReader> readers = ImageIO.getImageReaders(stream);
+			if (!readers.hasNext()) throw new IOException("Unsupported image format: " + imgFile);
+			ImageReader reader = readers.next();
+			try {
+				reader.setInput(stream);
+				width = reader.getWidth(0);
+				height = reader.getHeight(0);
+			} finally {
+				reader.dispose();
+			}
+		} finally {
+			stream.close();
+		}
 
-		double resLog = Math.floor(Math.log10(res) / Math.log10(2.0));
-		double outRes = (double) Math.pow(2.0, resLog);
-		
-		width = (int) outRes;
-		height = (int) outRes;
-		mipmapLevels = (int) resLog;
-		
-		//int smallestSize = Math.min(width, height);
-		//mipmapLevels = (int) Math.floor(Math.log10(smallestSize) / Math.log10(2.0));
+		// We want every image to be a power of 2 image. Each axis is rounded down
+		// to a power of 2 on its own, so that non-square images stay non-square
+		// instead of being scaled up to a square.
+		width = Integer.highestOneBit(width);
+		height = Integer.highestOneBit(height);
+		mipmapLevels = getMipmapLevels(width, height);
 
 		buffers = new ImageBuffer[mipmapLevels];
 	}
 
-	private RGB sampleBufferedImage(BufferedImage img, int i, int j) {
-		i = i % img.getWidth();
-		if(i < 0)
-			i += img.getWidth();
-		j = j % img.getHeight();
-		if(j < 0)
-			j += img.getHeight();
-		
-		Color col = new Color(img.getRGB(i, j));
-		RGB rgb = new RGB(((float) col.getRed()) / 255.0f, ((float) col.getGreen()) / 255.0f, ((float) col.getBlue()) / 255.0f);
-		
-		if(img.getType() == BufferedImage.TYPE_BYTE_GRAY || img.getType() == BufferedImage.TYPE_USHORT_GRAY) {
-			// Single channel greyscale images apparently get a gamma applied on them, so undo it.
-			
-			rgb.r = (float) Math.pow(rgb.r, 2.2);
-			rgb.g = (float) Math.pow(rgb.g, 2.2);
-			rgb.b = (float) Math.pow(rgb.b, 2.2);
-		}
-		
-		return rgb;
-	}
-	
-	private float lerp(float a, float b, double t) {
-		return (float) (a * (1.0 - t) + b * t);
-	}
-	
-	private RGB lerp(RGB a, RGB b, double t) {
-		return new RGB(lerp(a.r, b.r, t), lerp(a.g, b.g, t), lerp(a.b, b.b, t));
-	}
-	
-	private RGB bilinear(BufferedImage img, double u, double v) {
-		double i = u * ((double) img.getWidth());
-		double j = v * ((double) img.getHeight());
-		
-		double i0 = Math.floor(i);
-		double i1 = Math.ceil(i);
-		double j0 = Math.floor(j);
-		double j1 = Math.ceil(j);
-		
-		double it = i - i0;
-		double jt = j - j0;
-		
-		RGB c00 = sampleBufferedImage(img, (int) i0, (int) j0);
-		RGB c10 = sampleBufferedImage(img, (int) i1, (int) j0);
-		RGB c01 = sampleBufferedImage(img, (int) i0, (int) j1);
-		RGB c11 = sampleBufferedImage(img, (int) i1, (int) j1);
-		
-		return lerp(lerp(c00, c10, it), lerp(c01, c11, it), jt);
-	}
-	
-	public void read() {
+	public synchronized void read() {
 		if (read) return;
 
 		try {
+			if (readSidecar()) return;
 
 			System.out.println("Reading file: " + imgFile);
 
-			BufferedImage img = ImageIO.read(imgFile);
+			if (useSidecar) decode(Files.readAllBytes(imgFile.toPath()));
+			else read(ImageIO.read(imgFile));
+		} catch (Exception ex) {
+			ex.printStackTrace();
+		}
+	}
 
-			System.out.println("Resolution: " + width + "x" + height + "  MipMap Levels: " + mipmapLevels);
+	/**
+	 * Decodes the image from the contents of its file, for when the file has already been read into memory.
+	 * 
+	 * @param fileData
+	 * @throws IOException
+	 */
+	public synchronized void read(byte[] fileData) throws IOException {
+		if (read) return;
+		if (readSidecar()) return;
+		decode(fileData);
+	}
 
-			buffers[0] = new ImageBuffer(width, height);
-			
-			if(img.getWidth() != width || img.getHeight() != height) {
-				// The resolution doesn't match, so we use bilinear interpolation to fill in the pixels.
-				for (int i = 0; i < width; ++i) {
-					for (int j = 0; j < height; ++j) {
-						double u = ((double) i) / ((double) width);
-						double v = ((double) j) / ((double) height);
-						buffers[0].setPixel(i, j, bilinear(img, u, v));
-					}
-				}
-			}else {
-				for (int i = 0; i < width; ++i) {
-					for (int j = 0; j < height; ++j) {
-						buffers[0].setPixel(i, j, sampleBufferedImage(img, i, j));
-					}
-				}
+	private void decode(byte[] fileData) throws IOException {
+		BufferedImage img = ImageIO.read(new ByteArrayInputStream(fileData));
+		if (img == null) throw new IOException("Unsupported image format: " + imgFile);
+		read(img);
+
+		if (useSidecar && bytes == null && fileData.length == imgFile.length()) {
+			try {
+				PyramidSidecar.write(this, PyramidSidecar.hash(fileData), fileData.length, imgFile.lastModified());
+			} catch (IOException ex) {
+				// The folder might be read only, which just means that we decode it again next time.
+				System.out.println("Could not write " + PyramidSidecar.getFile(imgFile) + ": " + ex.getMessage());
 			}
+		}
+	}
 
-			for (int i = 1; i < mipmapLevels; ++i) {
-				System.out.println("Generating MipMap level " + i);
-
-				int scaleFactor = (int) Math.pow(2.0, (double) i);
-				buffers[i] = new ImageBuffer(width / scaleFactor, height / scaleFactor);
-				for (int j = 0; j < buffers[i].width; ++j) {
-					for (int k = 0; k < buffers[i].height; ++k) {
-						RGB c00 = buffers[i - 1].getPixel(j * 2, k * 2);
-						RGB c10 = buffers[i - 1].getPixel(j * 2 + 1, k * 2);
-						RGB c01 = buffers[i - 1].getPixel(j * 2, k * 2 + 1);
-						RGB c11 = buffers[i - 1].getPixel(j * 2 + 1, k * 2 + 1);
-						RGB c = new RGB((c00.r + c10.r + c01.r + c11.r) / 4.0f, (c00.g + c10.g + c01.g + c11.g) / 4.0f, (c00.b + c10.b + c01.b + c11.b) / 4.0f);
-						buffers[i].setPixel(j, k, c);
-					}
-				}
-			}
-			
+	/**
+	 * Reads the image from its sidecar, if it has one that is still up to date.
+	 * 
+	 * @return True if the image is read in.
+	 */
+	public synchronized boolean readSidecar() {
+		if (read) return true;
+		if (!useSidecar || eightBit || imgFile == null) return false;
+
+		try {
+			ImageBuffer[] levels = PyramidSidecar.read(this);
+			if (levels == null) return false;
+			System.out.println("Reading sidecar: " + PyramidSidecar.getFile(imgFile));
+			buffers = levels;
 			read = true;
-		} catch (Exception ex) {
+			return true;
+		} catch (IOException | RuntimeException ex) {
+			// Anything wrong with the sidecar just means that we decode the image instead.
 			ex.printStackTrace();
+			return false;
+		}
+	}
+
+	/**
+	 * Turns an already decoded image into level 0 and generates the other mipmap levels.
+	 * 
+	 * @param img
+	 */
+	public synchronized void read(BufferedImage img) {
+		if (read) return;
+
+		System.out.println("Resolution: " + width + "x" + height + "  MipMap Levels: " + mipmapLevels);
+
+		if (eightBit && img.getWidth() == width && img.getHeight() == height) {
+			// The mipmap levels come from the FixedPointPyramid instead.
+			bytes = new byte[width * height];
+			greyscale = Resampler.isGreyscale(img);
+			Resampler.decodeChannel(img, bytes);
+			read = true;
+			return;
+		}
+
+		// Every texel gets written, so there's no need to clear the memory.
+		buffers[0] = new ImageBuffer(width, height, BufferArena.allocate(width * height * 3, false));
+		
+		if(img.getWidth() != width || img.getHeight() != height) {
+			// The resolution doesn't match, so we resample it.
+			Resampler.resample(img, buffers[0], filter);
+		}else {
+			Resampler.decode(img, buffers[0]);
 		}
+
+		generateMipmaps();
+		
+		read = true;
+	}
+	
+	/**
+	 * Fills in every mipmap level after level 0 by averaging the level above it.
+	 */
+	public void generateMipmaps() {
+		for (int i = 1; i < mipmapLevels; ++i) {
+			System.out.println("Generating MipMap level " + i);
+
+			ImageBuffer src = buffers[i - 1];
+			int dstWidth = getLevelSize(width, i);
+			int dstHeight = getLevelSize(height, i);
+			ImageBuffer dst = new ImageBuffer(dstWidth, dstHeight, BufferArena.allocate(dstWidth * dstHeight * 3, false));
+			buffers[i] = dst;
+			
+			// Within these, both texels that get averaged are inside of src.
+			// Only when src is a single texel wide or high do we need to wrap around.
+			int interiorWidth = Math.min(dst.width, src.width / 2);
+			int interiorHeight = Math.min(dst.height, src.height / 2);
+			
+			for (int k = 0; k < dst.height; ++k) {
+				int y0 = k * 2;
+				int y1 = k < interiorHeight ? y0 + 1 : src.wrapY(y0 + 1);
+				
+				for (int j = 0; j < interiorWidth; ++j)
+					averageTexels(src, j * 2, j * 2 + 1, y0, y1, dst.data, dst.getIndex(j, k));
+				for (int j = interiorWidth; j < dst.width; ++j)
+					averageTexels(src, src.wrapX(j * 2), src.wrapX(j * 2 + 1), src.wrapY(y0), src.wrapY(y1), dst.data, dst.getIndex(j, k));
+			}
+		}
+	}
+	
+	private static void averageTexels(ImageBuffer src, int x0, int x1, int y0, int y1, float[] dst, int dstIndex) {
+		int i00 = src.getIndex(x0, y0);
+		int i10 = src.getIndex(x1, y0);
+		int i01 = src.getIndex(x0, y1);
+		int i11 = src.getIndex(x1, y1);
+		float[] data = src.data;
+		dst[dstIndex] = (data[i00] + data[i10] + data[i01] + data[i11]) / 4.0f;
+		dst[dstIndex + 1] = (data[i00 + 1] + data[i10 + 1] + data[i01 + 1] + data[i11 + 1]) / 4.0f;
+		dst[dstIndex + 2] = (data[i00 + 2] + data[i10 + 2] + data[i01 + 2] + data[i11 + 2]) / 4.0f;
 	}
 	
-	public void free() {
+	public synchronized void free() {
+		if (keepResident) return;
 		if(read) {
-			for(int i = 0; i < buffers.length; ++i) {
+			release();
+			read = false;
+		}
+	}
+
+	/**
+	 * Gives the memory of every level back to the BufferArena, so that the next image can reuse it.
+	 * The levels can't be used afterwards, unless the image is read in again.
+	 */
+	public void release() {
+		bytes = null;
+		for (int i = 0; i < buffers.length; ++i) {
+			if (buffers[i] != null) {
+				buffers[i].release();
 				buffers[i] = null;
-				// Java's garbage collection will see this and actually
-				// free the memory.
 			}
-			read = false;
-			
-			// Tell the JVM that it can free memory if it wants to.
-			System.gc();
 		}
 	}
 
+	/**
+	 * Turns the float values into an 8-bit image, the same way that java.awt.Color does.
+	 * 
+	 * @param buffer
+	 * @return
+	 */
+	private static BufferedImage toBufferedImage(final ImageBuffer buffer) {
+		BufferedImage img = new BufferedImage(buffer.width, buffer.height, BufferedImage.TYPE_INT_ARGB);
+		// Write straight into the pixels of the image, instead of going through setRGB().
+		final int[] pixels = ((DataBufferInt) img.getRaster().getDataBuffer()).getData();
+		final int threads = Resampler.getThreadCount(buffer.height);
+		Threading.runParallel(threads, new Task() {
+
+			@Override
+			public void run(int thread) {
+				for (int j = thread * buffer.height / threads; j < (thread + 1) * buffer.height / threads; ++j) {
+					int dataIndex = buffer.getIndex(0, j);
+					int pixelIndex = j * buffer.width;
+					for (int i = 0; i < buffer.width; ++i, dataIndex += 3, ++pixelIndex) {
+						pixels[pixelIndex] = 0xFF000000 | (quantise(buffer.data[dataIndex]) << 16) | (quantise(buffer.data[dataIndex + 1]) << 8)
+								| quantise(buffer.data[dataIndex + 2]);
+					}
+				}
+			}
+
+		});
+		return img;
+	}
+	
+	private static int quantise(float value) {
+		return (int) (Math.min(Math.max(value, 0.0f), 1.0f) * 255.0f + 0.5f);
+	}
+
+	/**
+	 * Writes a single level to a file. EXR files are written by ExrWriter with full precision,
+	 * anything else goes through ImageIO as 8 bits.
+	 * 
+	 * @param buffer
+	 * @param extension
+	 * @param file
+	 * @param halfFloat Only used for EXR files.
+	 * @throws IOException
+	 */
+	private static void writeLevel(ImageBuffer buffer, String extension, File file, boolean halfFloat) throws IOException {
+		if (extension.equalsIgnoreCase("exr")) {
+			ExrWriter.write(buffer, file, halfFloat);
+			return;
+		}
+		ImageIO.write(toBufferedImage(buffer), extension, file);
+	}
+
 	public String[] write(File filename) throws IOException {
+		return write(filename, true);
+	}
+
+	public String[] write(File filename, final boolean halfFloat) throws IOException {
 		System.out.println("Saving to file " + filename.toString());
 
 		if (mipmapLevels == 1) {
-			BufferedImage img = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
-			for (int i = 0; i < width; ++i) {
-				for (int j = 0; j < height; ++j) {
-					RGB rgb = buffers[0].getPixel(i, j);
-					Color col = new Color(rgb.r, rgb.g, rgb.b);
-					img.setRGB(i, j, col.getRGB());
-				}
-			}
 			String extension = "";
 
 			int i = filename.getName().lastIndexOf('.');
 			if (i > 0) {
 				extension = filename.getName().substring(i + 1);
 			}
-			ImageIO.write(img, extension, filename);
+			writeLevel(buffers[0], extension, filename, halfFloat);
 			
 			return new String[] { filename.getPath() };
 		} else {
@@ -267,20 +405,12 @@ public class ImageContainer {
 
 				@Override
 				public void run(int level) {
-					BufferedImage img = new BufferedImage(buffers[level].width, buffers[level].height, BufferedImage.TYPE_INT_ARGB);
-					for (int i = 0; i < buffers[level].width; ++i) {
-						for (int j = 0; j < buffers[level].height; ++j) {
-							RGB rgb = buffers[level].getPixel(i, j);
-							Color col = new Color(rgb.r, rgb.g, rgb.b);
-							img.setRGB(i, j, col.getRGB());
-						}
-					}
 					String path = basepath + "_" + level + "." + ext;
 
 					System.out.println("Mip Map File: " + path);
 
 					try {
-						ImageIO.write(img, ext, new File(path));
+						writeLevel(buffers[level], ext, new File(path), halfFloat);
 					} catch (IOException e) {
 						e.printStackTrace();
 					}
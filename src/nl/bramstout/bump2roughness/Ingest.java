@@ -0,0 +1,224 @@
+/*
+BSD 3-Clause License
+
+Copyright (c) 2020, Bram Stout
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+3. Neither the name of the copyright holder nor the names of its
+   contributors may be used to endorse or promote products derived from
+   this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+
+
+package nl.bramstout.bump2roughness;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Reads many input images at the same time.
+ * 
+ * Reading an image is split in two: reading the file into memory, which mostly waits on the
+ * disk or network, and decoding it and generating the mip maps, which keeps a core busy. The
+ * files are read on a pool without a limit, so that as many files can be read at the same time
+ * as the storage allows. The decoding happens on a pool with a thread per core, so that it
+ * doesn't oversubscribe the CPU. The images are handed back in the order that they finish in.
+ */
+public class Ingest {
+
+	public static interface Listener {
+		/**
+		 * Called on the thread that called Ingest.read(), once the image has been read.
+		 * 
+		 * @param index The index of the image in the list given to Ingest.read().
+		 * @throws Exception
+		 */
+		public void onRead(int index) throws Exception;
+	}
+
+	private static class DaemonThreadFactory implements ThreadFactory {
+
+		String name;
+		int count = 0;
+
+		public DaemonThreadFactory(String name) {
+			this.name = name;
+		}
+
+		@Override
+		public synchronized Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, name + "-" + (count++));
+			// Don't keep the application running just for these pools.
+			thread.setDaemon(true);
+			return thread;
+		}
+
+	}
+
+	private static final ExecutorService ioPool = Executors.newCachedThreadPool(new DaemonThreadFactory("ingest-io"));
+	private static final ExecutorService decodePool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(),
+			new DaemonThreadFactory("ingest-decode"));
+
+	/**
+	 * Reads all of the images and calls listener for each of them as soon as it has been read.
+	 * While the listener is busy with an image, at most readAhead other images are being read
+	 * or waiting to be handed over, which limits how much memory is used.
+	 * 
+	 * If anything fails, the images that have been read, but not handed over, are freed again
+	 * and the exception is thrown once all of the images that were being read are done.
+	 * 
+	 * @param imgs
+	 * @param readAhead
+	 * @param listener
+	 * @throws IOException
+	 */
+	public static void read(List<ImageContainer> imgs, int readAhead, Listener listener) throws IOException {
+		ExecutorCompletionService<Integer> completion = new ExecutorCompletionService<Integer>(decodePool);
+		readAhead = Math.max(1, readAhead);
+
+		int next = 0;
+		int inFlight = 0;
+		Exception failure = null;
+		while (true) {
+			// Keep reading the next images, also while the listener is busy.
+			while (failure == null && next < imgs.size() && inFlight < readAhead) {
+				submit(imgs.get(next), next, completion);
+				next += 1;
+				inFlight += 1;
+			}
+			if (inFlight == 0) break;
+
+			int index = -1;
+			try {
+				Future<Integer> future = completion.take();
+				inFlight -= 1;
+				index = future.get();
+			} catch (ExecutionException ex) {
+				if (failure == null) failure = ex.getCause() instanceof Exception ? (Exception) ex.getCause() : ex;
+			} catch (InterruptedException ex) {
+				if (failure == null) failure = ex;
+			}
+
+			if (index < 0) continue;
+			if (failure != null) {
+				imgs.get(index).free();
+				continue;
+			}
+
+			if (next < imgs.size()) {
+				submit(imgs.get(next), next, completion);
+				next += 1;
+				inFlight += 1;
+			}
+
+			try {
+				listener.onRead(index);
+			} catch (Exception ex) {
+				failure = ex;
+			}
+		}
+
+		if (failure != null) {
+			if (failure instanceof IOException) throw (IOException) failure;
+			if (failure instanceof RuntimeException) throw (RuntimeException) failure;
+			throw new IOException(failure);
+		}
+	}
+
+	/**
+	 * Reads and decodes the image, with the index of the image coming out of completion once it's done.
+	 * 
+	 * @param img
+	 * @param index
+	 * @param completion
+	 */
+	private static void submit(final ImageContainer img, final int index, final ExecutorCompletionService<Integer> completion) {
+		if (img.read || img.imgFile == null) {
+			// Nothing to read, so just hand it over.
+			completion.submit(new Callable<Integer>() {
+
+				@Override
+				public Integer call() throws Exception {
+					return index;
+				}
+
+			});
+			return;
+		}
+
+		if (img.useSidecar && PyramidSidecar.getFile(img.imgFile).exists()) {
+			// Mapping in the sidecar is mostly converting values, so it goes straight to the decode pool.
+			completion.submit(new Callable<Integer>() {
+
+				@Override
+				public Integer call() throws Exception {
+					if (!img.readSidecar()) img.read(Files.readAllBytes(img.imgFile.toPath()));
+					return index;
+				}
+
+			});
+			return;
+		}
+
+		ioPool.submit(new Runnable() {
+
+			@Override
+			public void run() {
+				System.out.println("Reading file: " + img.imgFile);
+				byte[] data = null;
+				IOException exception = null;
+				try {
+					data = Files.readAllBytes(img.imgFile.toPath());
+				} catch (IOException ex) {
+					exception = ex;
+				}
+
+				final byte[] fileData = data;
+				final IOException readException = exception;
+				// Also go through the decode pool when reading failed, so that the failure comes out of completion.
+				completion.submit(new Callable<Integer>() {
+
+					@Override
+					public Integer call() throws Exception {
+						if (readException != null) throw readException;
+						img.read(fileData);
+						return index;
+					}
+
+				});
+			}
+
+		});
+	}
+
+}
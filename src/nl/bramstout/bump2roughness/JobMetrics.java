@@ -0,0 +1,119 @@
+/*
+BSD 3-Clause License
+
+Copyright (c) 2020, Bram Stout
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+3. Neither the name of the copyright holder nor the names of its
+   contributors may be used to endorse or promote products derived from
+   this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+
+package nl.bramstout.bump2roughness;
+
+/**
+ * Statistics about how the roughness of a job was calculated, per mipmap level.
+ */
+public class JobMetrics {
+
+	/**
+	 * The statistics of one level, while it is being calculated. Each thread fills in its own
+	 * and adds it to the JobMetrics once it's done, so that they don't need to be synchronised.
+	 */
+	public static class LevelCounter {
+		// How many texels were calculated
+		long texels = 0;
+		// How many of those were estimated from a subset of their footprint
+		long approximateTexels = 0;
+		// How many of those had a footprint with a single slope, so that the footprint could be skipped
+		long flatTexels = 0;
+		// How many level 0 slopes were looked at
+		long samples = 0;
+		// How many level 0 slopes didn't need to be looked at, since they were in a flat region
+		long skippedSamples = 0;
+		// The sum of the squared roughness of the texels
+		double deviationSum = 0.0;
+		// The sum of the estimated variance of the squared roughness of the estimated texels
+		double varianceSum = 0.0;
+
+		public void add(LevelCounter other) {
+			texels += other.texels;
+			approximateTexels += other.approximateTexels;
+			flatTexels += other.flatTexels;
+			samples += other.samples;
+			skippedSamples += other.skippedSamples;
+			deviationSum += other.deviationSum;
+			varianceSum += other.varianceSum;
+		}
+	}
+
+	LevelCounter[] levels;
+
+	public JobMetrics(int mipmapLevels) {
+		levels = new LevelCounter[mipmapLevels];
+		for (int i = 0; i < mipmapLevels; ++i)
+			levels[i] = new LevelCounter();
+	}
+
+	public synchronized void add(int level, LevelCounter counter) {
+		levels[level].add(counter);
+	}
+
+	/**
+	 * Returns the estimated error of the squared roughness in the given level, as the root mean square
+	 * of the standard errors of the texels, relative to the mean squared roughness. This is 0 for levels
+	 * that were calculated exactly.
+	 * 
+	 * @param level
+	 * @return
+	 */
+	public synchronized double getEstimatedError(int level) {
+		LevelCounter counter = levels[level];
+		if (counter.texels == 0 || counter.deviationSum <= 0.0) return 0.0;
+		double meanDeviation = counter.deviationSum / counter.texels;
+		return Math.sqrt(counter.varianceSum / counter.texels) / meanDeviation;
+	}
+
+	public synchronized boolean isApproximate() {
+		for (LevelCounter counter : levels)
+			if (counter.approximateTexels > 0) return true;
+		return false;
+	}
+
+	public synchronized void print() {
+		for (int level = 1; level < levels.length; ++level) {
+			LevelCounter counter = levels[level];
+			if (counter.texels == 0) continue;
+			String line = "Level " + level + ": " + counter.texels + " texels, " + counter.samples + " samples";
+			if (counter.flatTexels > 0) line += String.format(", %d%% flat", counter.flatTexels * 100 / counter.texels);
+			if (counter.skippedSamples > 0) line += String.format(", %d%% of the samples skipped",
+					counter.skippedSamples * 100 / (counter.samples + counter.skippedSamples));
+			if (counter.approximateTexels > 0) line += String.format(", %d%% estimated, estimated error %.2f%%",
+					counter.approximateTexels * 100 / counter.texels, getEstimatedError(level) * 100.0);
+			System.out.println(line);
+		}
+	}
+
+}
@@ -0,0 +1,211 @@
+/*
+BSD 3-Clause License
+
+Copyright (c) 2020, Bram Stout
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+3. Neither the name of the copyright holder nor the names of its
+   contributors may be used to endorse or promote products derived from
+   this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+
+
+package nl.bramstout.bump2roughness;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A small JSON parser, which is all that is needed to read batch manifests.
+ *
+ * Objects become a Map<String, Object> (keeping the order of the keys), arrays a List<Object>,
+ * numbers a Double, and true, false and null a Boolean or null.
+ */
+public class Json {
+
+	private String text;
+	private int pos = 0;
+
+	private Json(String text) {
+		this.text = text;
+	}
+
+	public static Object parse(String text) throws IOException {
+		Json json = new Json(text);
+		Object value = json.parseValue();
+		json.skipWhitespace();
+		if (json.pos < text.length()) throw json.error("Unexpected text after the value");
+		return value;
+	}
+
+	private IOException error(String message) {
+		// Give the line number, since that's what people look at in their editor.
+		int line = 1;
+		for (int i = 0; i < pos && i < text.length(); ++i)
+			if (text.charAt(i) == '\n') line += 1;
+		return new IOException("Invalid JSON on line " + line + ": " + message);
+	}
+
+	private void skipWhitespace() {
+		while (pos < text.length() && Character.isWhitespace(text.charAt(pos)))
+			pos += 1;
+	}
+
+	private char peek() throws IOException {
+		skipWhitespace();
+		if (pos >= text.length()) throw error("Unexpected end");
+		return text.charAt(pos);
+	}
+
+	private void expect(char c) throws IOException {
+		if (peek() != c) throw error("Expected '" + c + "'");
+		pos += 1;
+	}
+
+	private Object parseValue() throws IOException {
+		char c = peek();
+		if (c == '{') return parseObject();
+		if (c == '[') return parseArray();
+		if (c == '"') return parseString();
+		if (text.startsWith("true", pos)) {
+			pos += 4;
+			return Boolean.TRUE;
+		}
+		if (text.startsWith("false", pos)) {
+			pos += 5;
+			return Boolean.FALSE;
+		}
+		if (text.startsWith("null", pos)) {
+			pos += 4;
+			return null;
+		}
+		if (c == '-' || (c >= '0' && c <= '9')) return parseNumber();
+		throw error("Unexpected '" + c + "'");
+	}
+
+	private Map<String, Object> parseObject() throws IOException {
+		Map<String, Object> object = new LinkedHashMap<String, Object>();
+		expect('{');
+		if (peek() == '}') {
+			pos += 1;
+			return object;
+		}
+		while (true) {
+			if (peek() != '"') throw error("Expected a key");
+			String key = parseString();
+			expect(':');
+			object.put(key, parseValue());
+			if (peek() == ',') {
+				pos += 1;
+				continue;
+			}
+			expect('}');
+			return object;
+		}
+	}
+
+	private List<Object> parseArray() throws IOException {
+		List<Object> array = new ArrayList<Object>();
+		expect('[');
+		if (peek() == ']') {
+			pos += 1;
+			return array;
+		}
+		while (true) {
+			array.add(parseValue());
+			if (peek() == ',') {
+				pos += 1;
+				continue;
+			}
+			expect(']');
+			return array;
+		}
+	}
+
+	private String parseString() throws IOException {
+		expect('"');
+		StringBuilder builder = new StringBuilder();
+		while (true) {
+			if (pos >= text.length()) throw error("Unterminated string");
+			char c = text.charAt(pos++);
+			if (c == '"') return builder.toString();
+			if (c != '\\') {
+				builder.append(c);
+				continue;
+			}
+
+			if (pos >= text.length()) throw error("Unterminated string");
+			char escape = text.charAt(pos++);
+			switch (escape) {
+			case '"':
+			case '\\':
+			case '/':
+				builder.append(escape);
+				break;
+			case 'b':
+				builder.append('\b');
+				break;
+			case 'f':
+				builder.append('\f');
+				break;
+			case 'n':
+				builder.append('\n');
+				break;
+			case 'r':
+				builder.append('\r');
+				break;
+			case 't':
+				builder.append('\t');
+				break;
+			case 'u':
+				if (pos + 4 > text.length()) throw error("Invalid unicode escape");
+				try {
+					builder.append((char) Integer.parseInt(text.substring(pos, pos + 4), 16));
+				} catch (NumberFormatException ex) {
+					throw error("Invalid unicode escape");
+				}
+				pos += 4;
+				break;
+			default:
+				throw error("Invalid escape '\\" + escape + "'");
+			}
+		}
+	}
+
+	private Double parseNumber() throws IOException {
+		int start = pos;
+		while (pos < text.length() && "+-0123456789.eE".indexOf(text.charAt(pos)) >= 0)
+			pos += 1;
+		try {
+			return Double.parseDouble(text.substring(start, pos));
+		} catch (NumberFormatException ex) {
+			throw error("Invalid number");
+		}
+	}
+
+}
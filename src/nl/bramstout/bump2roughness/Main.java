@@ -33,11 +33,42 @@ OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
 
 package nl.bramstout.bump2roughness;
 
+import java.util.Arrays;
+
 import javafx.application.Application;
 
 public class Main {
 
-	public static void main(String[] args) {
+	public static void main(String[] args) throws Exception {
+		// Without a command we just start the UI.
+		if (args.length > 0) {
+			String[] commandArgs = Arrays.copyOfRange(args, 1, args.length);
+			if (args[0].equalsIgnoreCase("worker")) {
+				TileWorker.main(commandArgs);
+				return;
+			}
+			if (args[0].equalsIgnoreCase("udim")) {
+				TileCoordinator.main(commandArgs);
+				return;
+			}
+			if (args[0].equalsIgnoreCase("batch")) {
+				Pipeline.main(commandArgs);
+				return;
+			}
+			if (args[0].equalsIgnoreCase("watch")) {
+				WatchMode.main(commandArgs);
+				return;
+			}
+			if (args[0].equalsIgnoreCase("benchmark")) {
+				Benchmark.main(commandArgs);
+				return;
+			}
+			if (args[0].equalsIgnoreCase("corpus")) {
+				BenchmarkCorpus.main(commandArgs);
+				return;
+			}
+		}
+
 		Application.launch(MainWindow.class, args);
 	}
 
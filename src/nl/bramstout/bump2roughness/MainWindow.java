@@ -35,6 +35,7 @@ package nl.bramstout.bump2roughness;
 
 import java.io.File;
 import java.text.DecimalFormat;
+import java.util.concurrent.CancellationException;
 
 import javafx.application.Application;
 import javafx.application.Platform;
@@ -58,6 +59,9 @@ import javafx.scene.control.ScrollPane.ScrollBarPolicy;
 import javafx.scene.control.Separator;
 import javafx.scene.control.TextField;
 import javafx.scene.control.Tooltip;
+import javafx.scene.image.ImageView;
+import javafx.scene.image.PixelFormat;
+import javafx.scene.image.WritableImage;
 import javafx.scene.layout.Border;
 import javafx.scene.layout.BorderStroke;
 import javafx.scene.layout.BorderStrokeStyle;
@@ -77,6 +81,8 @@ import javafx.stage.Stage;
 import javafx.stage.StageStyle;
 import nl.bramstout.bump2roughness.Bump2Roughness.MAPTYPE;
 import nl.bramstout.bump2roughness.Bump2Roughness.OUTPUTMODE;
+import nl.bramstout.bump2roughness.Bump2Roughness.OUTPUTPRECISION;
+import nl.bramstout.bump2roughness.Bump2Roughness.PreviewCallback;
 import nl.bramstout.bump2roughness.Bump2Roughness.ProgressCallback;
 import nl.bramstout.bump2roughness.Bump2Roughness.RENDERER;
 import nl.bramstout.bump2roughness.Bump2Roughness.Settings;
@@ -85,7 +91,8 @@ public class MainWindow extends Application {
 
 	private static final String DOC_RENDERER = "Which render engine you want to generate the textures for.\n\nEach render engine implements things in slightly different ways, so in order to get correct results, this tool needs to know which render engine you are using.";
 	private static final String DOC_MAKETX_PATH = "The path to either Arnold's maketx, OpenImageIO's maketx or Renderman's txmake. maketx and txmake are utilities that generate TX or TEX textures. OpenImageIO's maketx is recommended. Arnold's maketx is not fully supported and could crash. OpenImageIO's maketx can easily be created on Windows using vcpkg and by installing \"OpenImageIO[tools]\"";
-	private static final String DOC_OUTPUTMODE = "How the roughness textures should be exported.\n\nTX/TEX: Export a TX or TEX texture file containing the roughness texture.\n\nIndividual MIPMAP levels: Export a PNG image with the roughness texture for each mipmap level. This is useful if you want to combine it into a single texture file yourself or use it in a game engine where you specify the mip map levels individually.";
+	private static final String DOC_OUTPUTPRECISION = "How precise the mipmap levels are written out, both when making a TX/TEX file and when exporting the individual mipmap levels.\n\n8-bit: PNG images, which can show banding for low roughness values.\n\nHalf float/Float: EXR images, which keep the full precision of the roughness. maketx and txmake are told to keep that precision as well.";
+	private static final String DOC_OUTPUTMODE = "How the roughness textures should be exported.\n\nTX/TEX: Export a TX or TEX texture file containing the roughness texture.\n\nIndividual MIPMAP levels: Export a PNG image with the roughness texture for each mipmap level. This is useful if you want to combine it into a single texture file yourself or use it in a game engine where you specify the mip map levels individually.\n\nDDS/KTX2: Export a single DDS or KTX2 file with all of the mipmap levels in it, for game engines. BC4 is compressed, R8 and R16 store 8 or 16 bits per texel.";
 	private static final String DOC_UNITSIZE = "The size of the UV space compared in world units. Basically, how big is the texture in world coordinates. If you have a texture that goes from 0.0 to 1.0 in UV space, but spans a 3.0 meter range in the world space and a world unit is 1 meter, then the UV Unit World Size should be 3.0";
 	private static final String DOC_GENERATE_DIFFUSE = "Whether or not it should generate a rougness texture for the diffuse lobe in the material. It is more accurate to do this, but isn't always done.";
 	private static final String DOC_DIFFUSE_VALUE = "The base diffuse roughness value. The roughness values generated from the bump, normal and displacement maps are added on top of this. The value could either be a number that equals the material's diffuse roughness value or be a file path to a file that contains the diffuse roughness texture.";
@@ -103,6 +110,7 @@ public class MainWindow extends Application {
 	private ChoiceBox<String> rendererControl;
 	private TextField maketxPathControl;
 	private ChoiceBox<String> outputModeControl;
+	private ChoiceBox<String> outputPrecisionControl;
 	private TextField unitSizeControl;
 	private CheckBox generateDiffuseControl;
 	private TextField diffuseBaseValueControl;
@@ -125,51 +133,14 @@ public class MainWindow extends Application {
 	}
 
 	public boolean executableExists(String path) {
-		try {
-			Process process = Runtime.getRuntime().exec(path);
-			process.waitFor();
-
-			// It was able to run the executable without causing an exception,
-			// so we can assume it exists.
-			return true;
-		} catch (Exception ex) {
-			ex.printStackTrace();
-		}
-		return false;
+		return ToolRegistry.getTool(path) != null;
 	}
 
 	public String findMakeTX() {
-		// Try to find the maketx or txmake file
-
-		// First check if it's right next to the jar or if maketx or txmake
-		// is in %PATH%
-		if (executableExists("maketx")) return "maketx";
-		if (executableExists("txmake")) return "txmake";
-		if (executableExists("maketx.exe")) return "maketx.exe";
-		if (executableExists("txmake.exe")) return "txmake.exe";
-
-		if (executableExists("./maketx")) return "./maketx";
-		if (executableExists("./txmake")) return "./txmake";
-		if (executableExists("./maketx.exe")) return "./maketx.exe";
-		if (executableExists("./txmake.exe")) return "./txmake.exe";
-
-		String RMAN_PREFIX = "C:\\Program Files\\Pixar\\RenderManProServer-";
-		String RMAN_SUFFIX = "\\bin\\txmake.exe";
-		for (int v1 = 20; v1 < 40; ++v1) {
-			for (int v2 = 0; v2 < 10; ++v2) {
-				String RMAN_PATH = RMAN_PREFIX + v1 + "." + v2 + RMAN_SUFFIX;
-				if (new File(RMAN_PATH).exists()) return RMAN_PATH;
-			}
-		}
-
-		String ARNOLD_PREFIX = "C:\\Program Files\\Autodesk\\Arnold\\maya";
-		String ARNOLD_SUFFIX = "\\bin\\maketx.exe";
-		for (int v1 = 2016; v1 < 2040; ++v1) {
-			String ARNOLD_PATH = ARNOLD_PREFIX + v1 + ARNOLD_SUFFIX;
-			if (new File(ARNOLD_PATH).exists()) return ARNOLD_PATH;
-		}
-
-		return "";
+		// The one that was used last, so that we don't have to search for it every time we start.
+		String path = ToolRegistry.getCachedMakeTXPath();
+		if (!path.isEmpty()) return path;
+		return ToolRegistry.findMakeTX();
 	}
 
 	public File getFileChooserDirectory() {
@@ -233,6 +204,7 @@ public class MainWindow extends Application {
 				fchooser.getExtensionFilters().add(new ExtensionFilter("Texture files", "*.tx", "*.tex"));
 				fchooser.getExtensionFilters().add(new ExtensionFilter("Arnold/OIIO texture", "*.tx"));
 				fchooser.getExtensionFilters().add(new ExtensionFilter("Renderman texture", "*.tex"));
+				fchooser.getExtensionFilters().add(new ExtensionFilter("Game engine texture", "*.dds", "*.ktx2"));
 				fchooser.getExtensionFilters().add(new ExtensionFilter("All files", "*.*"));
 
 				if (rendererControl.getValue().equalsIgnoreCase("Arnold")) {
@@ -340,9 +312,14 @@ public class MainWindow extends Application {
 		addController("MakeTX/TXmake path:", addFileInput(maketxPathControl, false, "MakeTX/TXmake path", FileChooserType.EXECUTABLE, DOC_MAKETX_PATH), root,
 				DOC_MAKETX_PATH);
 
-		outputModeControl = new ChoiceBox<String>(FXCollections.observableArrayList("TX/TEX", "Individual MIPMAP levels"));
+		outputModeControl = new ChoiceBox<String>(FXCollections.observableArrayList("TX/TEX", "Individual MIPMAP levels", "DDS (BC4)", "DDS (R8)",
+				"DDS (R16)", "KTX2 (BC4)", "KTX2 (R8)", "KTX2 (R16)"));
 		outputModeControl.setValue("TX/TEX");
 		addController("Output Mode:", outputModeControl, root, DOC_OUTPUTMODE);
+
+		outputPrecisionControl = new ChoiceBox<String>(FXCollections.observableArrayList("8-bit", "Half float", "Float"));
+		outputPrecisionControl.setValue("8-bit");
+		addController("Output Precision:", outputPrecisionControl, root, DOC_OUTPUTPRECISION);
 	}
 
 	public void addTextureInputBox() {
@@ -489,6 +466,10 @@ public class MainWindow extends Application {
 
 						settings.outputMode = OUTPUTMODE.INDIVIDUAL_LEVELS;
 
+						settings.outputPrecision = OUTPUTPRECISION.BYTE;
+						if (outputPrecisionControl.getValue().equalsIgnoreCase("Half float")) settings.outputPrecision = OUTPUTPRECISION.HALF;
+						if (outputPrecisionControl.getValue().equalsIgnoreCase("Float")) settings.outputPrecision = OUTPUTPRECISION.FLOAT;
+
 						if (outputModeControl.getValue().equalsIgnoreCase("TX/TEX")) {
 							settings.outputMode = OUTPUTMODE.TEXTURE;
 
@@ -497,6 +478,12 @@ public class MainWindow extends Application {
 								return;
 							}
 							settings.maketxPath = maketxPathControl.getText();
+						} else if (outputModeControl.getValue().startsWith("DDS") || outputModeControl.getValue().startsWith("KTX2")) {
+							// Values look like "DDS (BC4)"
+							String value = outputModeControl.getValue();
+							settings.outputMode = value.startsWith("DDS") ? OUTPUTMODE.DDS : OUTPUTMODE.KTX2;
+							settings.engineFormat = EngineTextureWriter.FORMAT
+									.valueOf(value.substring(value.indexOf('(') + 1, value.indexOf(')')));
 						}
 
 						try {
@@ -553,6 +540,15 @@ public class MainWindow extends Application {
 							return;
 						}
 
+						settings.previewCallback = new PreviewCallback() {
+
+							@Override
+							public void onPreview(int level, ImageBuffer roughness) {
+								showPreview(level, roughness);
+							}
+
+						};
+
 						settings.callback = new ProgressCallback() {
 
 							@Override
@@ -665,16 +661,23 @@ public class MainWindow extends Application {
 							settings.roughnessValue = diffuseValue;
 							settings.outputPath = diffuseOutputPath;
 
+							Bump2Roughness solver = null;
 							try {
-								Bump2Roughness solver = new Bump2Roughness(settings);
+								solver = new Bump2Roughness(settings);
+								startSolver(solver);
 
 								solver.calculateRoughness();
 
 								solver.writeOutput();
+							} catch (CancellationException ex) {
+								closeProgressDialog();
+								return;
 							} catch (Exception ex) {
 								ex.printStackTrace();
 								showError("Could not generate diffuse roughness texture");
 								return;
+							} finally {
+								stopSolver(solver);
 							}
 						}
 
@@ -686,16 +689,23 @@ public class MainWindow extends Application {
 							settings.roughnessValue = specularValue;
 							settings.outputPath = specularOutputPath;
 
+							Bump2Roughness solver = null;
 							try {
-								Bump2Roughness solver = new Bump2Roughness(settings);
+								solver = new Bump2Roughness(settings);
+								startSolver(solver);
 
 								solver.calculateRoughness();
 
 								solver.writeOutput();
+							} catch (CancellationException ex) {
+								closeProgressDialog();
+								return;
 							} catch (Exception ex) {
 								ex.printStackTrace();
 								showError("Could not generate specular roughness texture");
 								return;
+							} finally {
+								stopSolver(solver);
 							}
 						}
 
@@ -719,6 +729,15 @@ public class MainWindow extends Application {
 	private Stage progressStage;
 	private Label progressLabel;
 	private ProgressBar progressBar;
+	private ImageView previewView;
+	private Label previewLabel;
+	// The solver that is currently running, so that it can be cancelled.
+	private volatile Bump2Roughness currentSolver = null;
+	private volatile boolean cancelled = false;
+
+	// Larger mipmap levels aren't shown in the preview, since they wouldn't fit anyway.
+	private static final int PREVIEW_MAX_SIZE = 1024;
+	private static final double PREVIEW_SIZE = 256.0;
 
 	public void setupProgressDialog() {
 		progressStage = new Stage();
@@ -735,13 +754,30 @@ public class MainWindow extends Application {
 		progressBar.setProgress(-1.0);
 		progressBar.setPrefWidth(10000.0);
 
+		previewView = new ImageView();
+		previewView.setFitWidth(PREVIEW_SIZE);
+		previewView.setFitHeight(PREVIEW_SIZE);
+		previewView.setPreserveRatio(true);
+		// Show the texels of the small levels as blocks instead of blurring them.
+		previewView.setSmooth(false);
+
+		previewLabel = new Label("Preview");
+
+		Button cancelButton = new Button("Cancel");
+		cancelButton.setOnAction((ActionEvent e) -> {
+			cancelled = true;
+			Bump2Roughness solver = currentSolver;
+			if (solver != null) solver.cancel();
+			progressLabel.setText("Cancelling...");
+		});
+
 		VBox layout = new VBox();
 		layout.setAlignment(Pos.CENTER);
 		layout.setPadding(new Insets(10.0));
 		layout.setSpacing(10.0);
-		layout.getChildren().addAll(progressLabel, progressBar);
+		layout.getChildren().addAll(progressLabel, progressBar, previewView, previewLabel, cancelButton);
 
-		Scene scene = new Scene(layout, 400, 80);
+		Scene scene = new Scene(layout, 400, 420);
 
 		progressStage.setScene(scene);
 	}
@@ -759,10 +795,50 @@ public class MainWindow extends Application {
 		});
 	}
 
+	public void startSolver(Bump2Roughness solver) {
+		currentSolver = solver;
+		// Cancel was clicked before this solver started.
+		if (cancelled) solver.cancel();
+	}
+
+	public void stopSolver(Bump2Roughness solver) {
+		currentSolver = null;
+		if (solver != null) solver.free();
+	}
+
+	/**
+	 * Shows the preview of a mipmap level in the progress dialog.
+	 * 
+	 * @param level
+	 * @param roughness
+	 */
+	public void showPreview(int level, ImageBuffer roughness) {
+		final int width = roughness.width;
+		final int height = roughness.height;
+		if (width > PREVIEW_MAX_SIZE || height > PREVIEW_MAX_SIZE) return;
+
+		// The buffer is only valid during the callback, so convert it here.
+		final int[] argb = new int[width * height];
+		for (int i = 0; i < argb.length; ++i) {
+			int value = (int) (roughness.data[i * 3] * 255.0f + 0.5f);
+			argb[i] = 0xFF000000 | (value << 16) | (value << 8) | value;
+		}
+
+		Platform.runLater(() -> {
+			WritableImage image = new WritableImage(width, height);
+			image.getPixelWriter().setPixels(0, 0, width, height, PixelFormat.getIntArgbInstance(), argb, 0, width);
+			previewView.setImage(image);
+			previewLabel.setText("Preview of mipmap level " + level + " (" + width + "x" + height + ")");
+		});
+	}
+
 	public void showProgressDialog() {
+		cancelled = false;
 		Platform.runLater(() -> {
 			progressBar.setProgress(-1);
 			progressLabel.setText("Generating textures...");
+			previewView.setImage(null);
+			previewLabel.setText("Preview");
 			
 			stage.getScene().getRoot().setDisable(true);
 			progressStage.show();
@@ -0,0 +1,152 @@
+/*
+BSD 3-Clause License
+
+Copyright (c) 2020, Bram Stout
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+3. Neither the name of the copyright holder nor the names of its
+   contributors may be used to endorse or promote products derived from
+   this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+
+package nl.bramstout.bump2roughness;
+
+/**
+ * For every texel of every mipmap level after level 0, the sums of the level 0 slopes in its
+ * footprint and of their squared lengths.
+ * 
+ * The squared roughness of a texel is the average of |s - m|^2 over its footprint, where m is
+ * the slope of the texel itself. That can be written as (sum |s|^2 - 2 m . sum s + n |m|^2) / n,
+ * so with these sums every texel takes the same amount of work, no matter how big its footprint is.
+ * Each level is built from the level before it, just like a mipmap. The sums are kept in doubles,
+ * since subtracting large sums from each other loses precision.
+ */
+public class MomentPyramid {
+
+	int mipmapLevels;
+	int[] widths;
+	int[] heights;
+	// Per level, with level 0 left out. Index (y * width + x).
+	double[][] sumX;
+	double[][] sumY;
+	double[][] sumSquared;
+
+	public MomentPyramid(int width, int height, int mipmapLevels) {
+		this.mipmapLevels = mipmapLevels;
+		widths = new int[mipmapLevels];
+		heights = new int[mipmapLevels];
+		sumX = new double[mipmapLevels][];
+		sumY = new double[mipmapLevels][];
+		sumSquared = new double[mipmapLevels][];
+		for (int level = 0; level < mipmapLevels; ++level) {
+			widths[level] = ImageContainer.getLevelSize(width, level);
+			heights[level] = ImageContainer.getLevelSize(height, level);
+			if (level == 0) continue;
+			sumX[level] = new double[widths[level] * heights[level]];
+			sumY[level] = new double[widths[level] * heights[level]];
+			sumSquared[level] = new double[widths[level] * heights[level]];
+		}
+	}
+
+	/**
+	 * Adds a whole row of level 0 slopes into level 1.
+	 * Every row of level 1 has to be added to by a single thread.
+	 * 
+	 * @param row The row in level 0.
+	 * @param slopeX
+	 * @param slopeY
+	 */
+	public void addRow(int row, float[] slopeX, float[] slopeY) {
+		if (mipmapLevels < 2) return;
+		int scaleX = widths[0] / widths[1];
+		int offset = (row / (heights[0] / heights[1])) * widths[1];
+		double[] dstX = sumX[1];
+		double[] dstY = sumY[1];
+		double[] dstSquared = sumSquared[1];
+		for (int i = 0; i < widths[0]; ++i) {
+			int index = offset + i / scaleX;
+			double x = slopeX[i];
+			double y = slopeY[i];
+			dstX[index] += x;
+			dstY[index] += y;
+			dstSquared[index] += x * x + y * y;
+		}
+	}
+
+	/**
+	 * Fills in level 2 and up from level 1.
+	 */
+	public void generateLevels() {
+		for (int level = 2; level < mipmapLevels; ++level) {
+			int width = widths[level];
+			int height = heights[level];
+			int srcWidth = widths[level - 1];
+			// Once an axis is a single texel, it doesn't get any smaller, so there's only one texel to add along it.
+			int countX = srcWidth > width ? 2 : 1;
+			int countY = heights[level - 1] > height ? 2 : 1;
+
+			for (int j = 0; j < height; ++j) {
+				for (int i = 0; i < width; ++i) {
+					double x = 0.0;
+					double y = 0.0;
+					double squared = 0.0;
+					for (int jj = j * countY; jj < (j + 1) * countY; ++jj) {
+						for (int ii = i * countX; ii < (i + 1) * countX; ++ii) {
+							int src = jj * srcWidth + ii;
+							x += sumX[level - 1][src];
+							y += sumY[level - 1][src];
+							squared += sumSquared[level - 1][src];
+						}
+					}
+					int dst = j * width + i;
+					sumX[level][dst] = x;
+					sumY[level][dst] = y;
+					sumSquared[level][dst] = squared;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns the squared roughness of texel (i, j) in the given level, the same as
+	 * Bump2Roughness.calculateDeviation() apart from rounding.
+	 * 
+	 * @param level
+	 * @param i
+	 * @param j
+	 * @param meanSlopeX The slope of the texel itself.
+	 * @param meanSlopeY
+	 * @param count The number of level 0 texels in the footprint.
+	 * @return
+	 */
+	public float getDeviation(int level, int i, int j, float meanSlopeX, float meanSlopeY, int count) {
+		int index = j * widths[level] + i;
+		double deviation = sumSquared[level][index] - 2.0 * (meanSlopeX * sumX[level][index] + meanSlopeY * sumY[level][index])
+				+ count * (((double) meanSlopeX) * meanSlopeX + ((double) meanSlopeY) * meanSlopeY);
+		// Rounding can make it go slightly negative.
+		return (float) (Math.max(0.0, deviation / count) * 2.0);
+	}
+
+}
@@ -0,0 +1,298 @@
+/*
+BSD 3-Clause License
+
+Copyright (c) 2020, Bram Stout
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+3. Neither the name of the copyright holder nor the names of its
+   contributors may be used to endorse or promote products derived from
+   this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+
+
+package nl.bramstout.bump2roughness;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import nl.bramstout.bump2roughness.Bump2Roughness.ConsoleProgressCallback;
+import nl.bramstout.bump2roughness.TileCoordinator.TileResult;
+
+/**
+ * Runs a batch of texture sets on this machine as a pipeline of three stages:
+ * 
+ *   read:      decoding the input images and generating their mip maps
+ *   calculate: adding up the roughness of every input and finalising it
+ *   write:     encoding the levels and running maketx/txmake
+ * 
+ * Every stage has its own threads and hands texture sets over to the next stage through a
+ * small bounded queue. While one texture set is being calculated, the next one is being read
+ * in and the previous one is being written out, so the cores don't sit idle during the
+ * reading and writing. When a stage falls behind, the queue in front of it fills up and the
+ * stages before it wait, so that there are never more than
+ * readThreads + calculateThreads + writeThreads + 2 * queueSize texture sets in memory.
+ */
+public class Pipeline {
+
+	/**
+	 * A texture set going through the stages. END tells a stage that nothing comes after it.
+	 */
+	private static class Item {
+		TileResult result;
+		Bump2Roughness solver;
+		// Whether the planner has been told that this texture set doesn't need its inputs anymore.
+		boolean released = false;
+
+		public Item(TileResult result) {
+			this.result = result;
+		}
+	}
+
+	private static final Item END = new Item(null);
+
+	private static interface Stage {
+		public void run(Item item) throws Exception;
+	}
+
+	int readThreads = 2;
+	// The calculation already uses every core, so more than one at a time mostly just takes up memory.
+	int calculateThreads = 1;
+	// maketx and txmake mostly run on a single core, so a few of them can run at the same time.
+	int writeThreads = 2;
+	int queueSize = 1;
+	// Shares the inputs between the texture sets, when running a batch manifest.
+	BatchPlanner planner = null;
+
+	/**
+	 * Usage: batch <job file or manifest.json> [--read threads] [--calculate threads] [--write threads] [--queue size] [--cache megabytes]
+	 * 
+	 * @param args
+	 * @throws Exception
+	 */
+	public static void main(String[] args) throws Exception {
+		if (args.length < 1) throw new Exception("No job file given");
+
+		Pipeline pipeline = new Pipeline();
+		for (int i = 1; i < args.length; i += 2) {
+			if (i + 1 >= args.length) throw new Exception("Missing value for " + args[i]);
+			if (args[i].equalsIgnoreCase("--read")) {
+				pipeline.readThreads = Integer.parseInt(args[i + 1]);
+			} else if (args[i].equalsIgnoreCase("--calculate")) {
+				pipeline.calculateThreads = Integer.parseInt(args[i + 1]);
+			} else if (args[i].equalsIgnoreCase("--write")) {
+				pipeline.writeThreads = Integer.parseInt(args[i + 1]);
+			} else if (args[i].equalsIgnoreCase("--queue")) {
+				pipeline.queueSize = Integer.parseInt(args[i + 1]);
+			} else if (args[i].equalsIgnoreCase("--cache")) {
+				PyramidCache.setCapacity(Long.parseLong(args[i + 1]) * 1024 * 1024);
+			} else {
+				throw new Exception("Unknown argument: " + args[i]);
+			}
+		}
+
+		List<TileResult> results;
+		if (args[0].toLowerCase().endsWith(".json")) {
+			pipeline.planner = new BatchPlanner();
+			results = pipeline.runTiles(pipeline.planner.plan(BatchPlanner.readManifest(new File(args[0]))));
+		} else {
+			results = pipeline.run(TextureSetJob.readAll(new File(args[0])));
+		}
+
+		System.out.println(PyramidCache.getStats());
+
+		boolean success = true;
+		for (TileResult result : results)
+			success = success && result.isSuccess();
+
+		if (!success) System.exit(1);
+	}
+
+	/**
+	 * Runs all of the jobs and waits for them to finish. Jobs with UDIM inputs are split up into one job per tile.
+	 * 
+	 * @param jobs
+	 * @return The result for each tile.
+	 */
+	public List<TileResult> run(List<TextureSetJob> jobs) {
+		return runTiles(expandTiles(jobs));
+	}
+
+	/**
+	 * Splits jobs with UDIM inputs up into one job per tile.
+	 * 
+	 * @param jobs
+	 * @return
+	 */
+	public static List<TileResult> expandTiles(List<TextureSetJob> jobs) {
+		List<TileResult> results = new ArrayList<TileResult>();
+		for (TextureSetJob job : jobs) {
+			List<Integer> tiles = UDIM.findTiles(job);
+			if (tiles.isEmpty()) {
+				results.add(new TileResult(job, 0));
+			} else {
+				System.out.println("Found " + tiles.size() + " tiles for " + job.outputPath);
+				for (int tile : tiles)
+					results.add(new TileResult(UDIM.forTile(job, tile), tile));
+			}
+		}
+		return results;
+	}
+
+	/**
+	 * Runs the tiles in the given order and waits for them to finish.
+	 * 
+	 * @param results
+	 * @return
+	 */
+	public List<TileResult> runTiles(List<TileResult> results) {
+		final BlockingQueue<Item> readQueue = new LinkedBlockingQueue<Item>();
+		final BlockingQueue<Item> calculateQueue = new ArrayBlockingQueue<Item>(queueSize);
+		final BlockingQueue<Item> writeQueue = new ArrayBlockingQueue<Item>(queueSize);
+		for (TileResult result : results)
+			readQueue.add(new Item(result));
+		readQueue.add(END);
+
+		final AtomicInteger activeReaders = new AtomicInteger(readThreads);
+		final AtomicInteger activeCalculators = new AtomicInteger(calculateThreads);
+		final AtomicInteger activeWriters = new AtomicInteger(writeThreads);
+
+		final Stage read = new Stage() {
+
+			@Override
+			public void run(Item item) throws Exception {
+				item.result.attempts += 1;
+				item.solver = new Bump2Roughness(item.result.job.createSettings(
+						new ConsoleProgressCallback(item.result.tile == 0 ? "" : "Tile " + item.result.tile + " "),
+						planner != null ? planner : PyramidCache.SOURCE));
+				item.solver.loadBaseRoughness();
+				item.solver.readInputs();
+			}
+
+		};
+		final Stage calculate = new Stage() {
+
+			@Override
+			public void run(Item item) throws Exception {
+				item.solver.calculateInputs();
+				// The inputs aren't needed anymore for writing it out.
+				release(item);
+			}
+
+		};
+		final Stage write = new Stage() {
+
+			@Override
+			public void run(Item item) throws Exception {
+				try {
+					item.solver.writeOutput();
+					item.result.success = true;
+				} finally {
+					item.solver.free();
+				}
+			}
+
+		};
+
+		Threading.runParallel(readThreads + calculateThreads + writeThreads, new Threading.Task() {
+
+			@Override
+			public void run(int index) {
+				if (index < readThreads)
+					runStage("read", read, readQueue, calculateQueue, activeReaders);
+				else if (index < readThreads + calculateThreads)
+					runStage("calculate", calculate, calculateQueue, writeQueue, activeCalculators);
+				else runStage("write", write, writeQueue, null, activeWriters);
+			}
+
+		});
+
+		for (TileResult result : results)
+			System.out.println(result);
+
+		return results;
+	}
+
+	private void release(Item item) {
+		if (item.solver != null) item.solver.releaseInputs();
+		if (planner == null || item.released) return;
+		item.released = true;
+		planner.release(item.result.job);
+	}
+
+	/**
+	 * Keeps taking texture sets from the input queue, runs the stage on them and passes them on
+	 * to the output queue, until it gets END. The last thread of the stage to finish passes END on.
+	 * 
+	 * @param name
+	 * @param stage
+	 * @param input
+	 * @param output
+	 * @param activeThreads
+	 */
+	private void runStage(String name, Stage stage, BlockingQueue<Item> input, BlockingQueue<Item> output, AtomicInteger activeThreads) {
+		try {
+			while (true) {
+				Item item = input.take();
+				if (item == END) {
+					// Let the other threads of this stage know as well.
+					input.put(END);
+					break;
+				}
+
+				try {
+					stage.run(item);
+				} catch (Throwable ex) {
+					ex.printStackTrace();
+					item.result.message = name + " failed: " + String.valueOf(ex.getMessage());
+					if (item.solver != null) {
+						item.solver.freeInputs();
+						item.solver.free();
+					}
+					release(item);
+					continue;
+				}
+
+				// Blocks when the next stage is behind.
+				if (output != null) output.put(item);
+			}
+		} catch (InterruptedException ex) {
+			ex.printStackTrace();
+		} finally {
+			if (activeThreads.decrementAndGet() == 0 && output != null) {
+				try {
+					output.put(END);
+				} catch (InterruptedException ex) {
+					ex.printStackTrace();
+				}
+			}
+		}
+	}
+
+}
@@ -0,0 +1,213 @@
+/*
+BSD 3-Clause License
+
+Copyright (c) 2020, Bram Stout
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+3. Neither the name of the copyright holder nor the names of its
+   contributors may be used to endorse or promote products derived from
+   this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+
+
+package nl.bramstout.bump2roughness;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Keeps the decoded pyramids of input images around after a job is done with them, so that
+ * the next job that uses the same file doesn't have to read it in and mip map it again.
+ * 
+ * Images are the same when they have the same path, modification time, size and filter,
+ * so a file that gets saved again is read in again. Every job that got an image from the
+ * cache holds a reference to it, and the image is only freed once nobody holds a reference
+ * and the cache is over its capacity, starting with the least recently used image.
+ * Jobs running at the same time get the same ImageContainer, which is fine since the
+ * calculations only read from the pyramid.
+ */
+public class PyramidCache {
+
+	private static class Entry {
+		String key;
+		ImageContainer img;
+		long bytes;
+		int references = 0;
+	}
+
+	// In access order, so the least recently used image comes first.
+	private static LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+	private static IdentityHashMap<ImageContainer, Entry> entriesByImage = new IdentityHashMap<ImageContainer, Entry>();
+	private static long cachedBytes = 0;
+	// The most memory that unreferenced images can take up. Images in use are never freed, even when over this.
+	private static long capacity = Runtime.getRuntime().maxMemory() / 4;
+
+	private static long hits = 0;
+	private static long misses = 0;
+
+	/**
+	 * Gets images from the cache. Images that shouldn't be kept resident are left out of it.
+	 * Every image must be given back with release() once the job is done with it.
+	 */
+	public static final TextureSetJob.ImageSource SOURCE = new TextureSetJob.ImageSource() {
+
+		@Override
+		public ImageContainer get(File file, Resampler.FILTER filter, boolean eightBit, boolean keepResident) throws IOException {
+			if (!keepResident) return TextureSetJob.NEW_IMAGES.get(file, filter, eightBit, false);
+			return acquire(file, filter, eightBit);
+		}
+
+		@Override
+		public void release(ImageContainer img) {
+			PyramidCache.release(img);
+		}
+
+	};
+
+	private static String getKey(File file, Resampler.FILTER filter, boolean eightBit) {
+		String path;
+		try {
+			path = file.getCanonicalPath();
+		} catch (IOException ex) {
+			path = file.getAbsolutePath();
+		}
+		return path + "|" + file.lastModified() + "|" + file.length() + "|" + filter.name() + (eightBit ? "|8" : "");
+	}
+
+	/**
+	 * Returns the image for the file, which might already have been read in.
+	 * 
+	 * @param file
+	 * @param filter
+	 * @param eightBit
+	 * @return
+	 * @throws IOException
+	 */
+	public static ImageContainer acquire(File file, Resampler.FILTER filter, boolean eightBit) throws IOException {
+		String key = getKey(file, filter, eightBit);
+		synchronized (PyramidCache.class) {
+			Entry entry = entries.get(key);
+			if (entry != null) {
+				entry.references += 1;
+				hits++;
+				return entry.img;
+			}
+		}
+
+		// Only the header gets read here, but that still shouldn't block the other threads.
+		ImageContainer img = TextureSetJob.NEW_IMAGES.get(file, filter, eightBit, true);
+
+		synchronized (PyramidCache.class) {
+			// Another thread might have added it in the mean time.
+			Entry entry = entries.get(key);
+			if (entry != null) {
+				entry.references += 1;
+				hits++;
+				return entry.img;
+			}
+
+			entry = new Entry();
+			entry.key = key;
+			entry.img = img;
+			entry.references = 1;
+			// Images read in as bytes only keep level 0, with one byte per texel.
+			if (eightBit) {
+				entry.bytes = ((long) img.width) * img.height;
+			} else {
+				for (int i = 0; i < img.mipmapLevels; ++i)
+					entry.bytes += ((long) ImageContainer.getLevelSize(img.width, i)) * ImageContainer.getLevelSize(img.height, i) * 3 * 4;
+			}
+			img.keepResident = true;
+
+			entries.put(key, entry);
+			entriesByImage.put(img, entry);
+			cachedBytes += entry.bytes;
+			misses++;
+			evict(capacity);
+			return img;
+		}
+	}
+
+	/**
+	 * Lets the cache know that a job is done with the image. Images that didn't come from the cache are freed.
+	 * 
+	 * @param img
+	 */
+	public static void release(ImageContainer img) {
+		if (img == null) return;
+		synchronized (PyramidCache.class) {
+			Entry entry = entriesByImage.get(img);
+			if (entry != null) {
+				entry.references -= 1;
+				evict(capacity);
+				return;
+			}
+		}
+		img.free();
+	}
+
+	/**
+	 * Frees unreferenced images, least recently used first, until the cache takes up at most the given amount.
+	 * 
+	 * @param bytes
+	 */
+	private static synchronized void evict(long bytes) {
+		Iterator<Entry> it = entries.values().iterator();
+		while (cachedBytes > bytes && it.hasNext()) {
+			Entry entry = it.next();
+			if (entry.references > 0) continue;
+
+			it.remove();
+			entriesByImage.remove(entry.img);
+			cachedBytes -= entry.bytes;
+			entry.img.keepResident = false;
+			entry.img.free();
+		}
+	}
+
+	/**
+	 * Frees all of the images that no job is using.
+	 */
+	public static void clear() {
+		evict(0);
+	}
+
+	public static synchronized void setCapacity(long bytes) {
+		capacity = bytes;
+		evict(capacity);
+	}
+
+	public static synchronized long getCachedBytes() {
+		return cachedBytes;
+	}
+
+	public static synchronized String getStats() {
+		return "Pyramids cached: " + entries.size() + " (" + (cachedBytes / (1024 * 1024)) + " MB)  hits: " + hits + "  misses: " + misses;
+	}
+
+}
@@ -0,0 +1,295 @@
+/*
+BSD 3-Clause License
+
+Copyright (c) 2020, Bram Stout
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+3. Neither the name of the copyright holder nor the names of its
+   contributors may be used to endorse or promote products derived from
+   this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+
+
+package nl.bramstout.bump2roughness;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+import nl.bramstout.bump2roughness.Threading.Task;
+
+/**
+ * Stores the decoded pyramid of an input image in a file next to it, so that the next run can
+ * map it in instead of decoding, resizing and mip mapping the image again.
+ * 
+ * The file is little endian:
+ *   64 byte header: "B2RPYR01", width, height, mipmap levels (ints), channels, format, filter, 0 (bytes),
+ *                   source length, source last modified, source CRC32 (longs), zeros.
+ *   Every mipmap level after that, starting at level 0, as rows of 16-bit values.
+ * 
+ * Greyscale images are stored with a single channel. The values are stored as 16-bit unsigned normalised
+ * integers, which keeps 8-bit images exact, unless the resize filter pushed them outside of 0 to 1,
+ * in which case they are stored as half floats.
+ * The sidecar is used when the image has the same length and either the same modification time or the same CRC32.
+ */
+public class PyramidSidecar {
+
+	public static final String EXTENSION = ".b2rpyr";
+
+	private static final byte[] MAGIC = "B2RPYR01".getBytes(StandardCharsets.US_ASCII);
+	private static final int HEADER_SIZE = 64;
+	// The most that gets mapped in at once.
+	private static final long MAX_MAP_SIZE = 1L << 30;
+
+	private static final int FORMAT_HALF = 0;
+	private static final int FORMAT_UNORM16 = 1;
+
+	public static File getFile(File imgFile) {
+		return new File(imgFile.getPath() + EXTENSION);
+	}
+
+	/**
+	 * Maps in the sidecar of the image and turns it into the mipmap levels of the image.
+	 * 
+	 * @param img
+	 * @return The levels, or null if there is no sidecar or it doesn't match the image anymore.
+	 * @throws IOException
+	 */
+	public static ImageBuffer[] read(ImageContainer img) throws IOException {
+		File file = getFile(img.imgFile);
+		if (!file.exists()) return null;
+
+		FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		ImageBuffer[] levels = new ImageBuffer[img.mipmapLevels];
+		boolean success = false;
+		try {
+			if (channel.size() < HEADER_SIZE) return null;
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+			while (header.hasRemaining())
+				if (channel.read(header, header.position()) < 0) return null;
+
+			for (int i = 0; i < MAGIC.length; ++i)
+				if (header.get(i) != MAGIC[i]) return null;
+			if (header.getInt(8) != img.width || header.getInt(12) != img.height || header.getInt(16) != img.mipmapLevels) return null;
+			int channels = header.get(20);
+			int format = header.get(21);
+			if (header.get(22) != img.filter.ordinal()) return null;
+			if (channels != 1 && channels != 3) return null;
+			if (format != FORMAT_HALF && format != FORMAT_UNORM16) return null;
+			if (channel.size() != HEADER_SIZE + getDataSize(img, channels)) return null;
+			if (!isUpToDate(img.imgFile, header.getLong(24), header.getLong(32), header.getLong(40))) return null;
+
+			long offset = HEADER_SIZE;
+			for (int i = 0; i < levels.length; ++i) {
+				int width = ImageContainer.getLevelSize(img.width, i);
+				int height = ImageContainer.getLevelSize(img.height, i);
+				levels[i] = readLevel(channel, offset, width, height, channels, format);
+				offset += ((long) width) * height * channels * 2;
+			}
+			success = true;
+			return levels;
+		} finally {
+			channel.close();
+			if (!success) {
+				for (ImageBuffer level : levels)
+					if (level != null) level.release();
+			}
+		}
+	}
+
+	/**
+	 * Reads a level that starts at offset in the file. A single mapping can't be larger than Integer.MAX_VALUE bytes,
+	 * so large levels are mapped in a few rows at a time.
+	 */
+	private static ImageBuffer readLevel(FileChannel channel, long offset, final int width, final int height, final int channels,
+			final int format) throws IOException {
+		final ImageBuffer level = new ImageBuffer(width, height, BufferArena.allocate(width * height * 3, false));
+		long rowSize = ((long) width) * channels * 2;
+		int rowsPerMap = (int) Math.max(1, Math.min(height, MAX_MAP_SIZE / rowSize));
+		boolean success = false;
+		try {
+			for (int first = 0; first < height; first += rowsPerMap) {
+				final int start = first;
+				final int rows = Math.min(rowsPerMap, height - first);
+				MappedByteBuffer map = channel.map(MapMode.READ_ONLY, offset + start * rowSize, rows * rowSize);
+				final ShortBuffer data = map.order(ByteOrder.LITTLE_ENDIAN).asShortBuffer();
+				final int threads = Resampler.getThreadCount(rows);
+				Threading.runParallel(threads, new Task() {
+
+					@Override
+					public void run(int thread) {
+						float[] dst = level.data;
+						for (int y = thread * rows / threads; y < (thread + 1) * rows / threads; ++y) {
+							int src = y * width * channels;
+							int index = level.getIndex(0, start + y);
+							for (int x = 0; x < width; ++x, src += channels, index += 3) {
+								if (channels == 1) {
+									float value = toFloat(data.get(src), format);
+									dst[index] = value;
+									dst[index + 1] = value;
+									dst[index + 2] = value;
+								} else {
+									dst[index] = toFloat(data.get(src), format);
+									dst[index + 1] = toFloat(data.get(src + 1), format);
+									dst[index + 2] = toFloat(data.get(src + 2), format);
+								}
+							}
+						}
+					}
+
+				});
+			}
+			success = true;
+			return level;
+		} finally {
+			if (!success) level.release();
+		}
+	}
+
+	/**
+	 * Writes the mipmap levels of the image into its sidecar.
+	 * 
+	 * @param img
+	 * @param sourceHash The CRC32 of the image file that the levels were decoded from.
+	 * @param sourceLength The length of that image file.
+	 * @param sourceLastModified
+	 * @throws IOException
+	 */
+	public static void write(ImageContainer img, long sourceHash, long sourceLength, long sourceLastModified) throws IOException {
+		// Greyscale images have the same value in every channel, and averaging them for the
+		// mipmap levels keeps them the same, so we only need to look at level 0.
+		boolean greyscale = true;
+		boolean normalised = true;
+		float[] base = img.buffers[0].data;
+		for (int i = 0; i < base.length; i += 3) {
+			if (base[i] != base[i + 1] || base[i] != base[i + 2]) greyscale = false;
+			for (int j = 0; j < 3; ++j)
+				if (!(base[i + j] >= 0.0f && base[i + j] <= 1.0f)) normalised = false;
+		}
+		int channels = greyscale ? 1 : 3;
+		int format = normalised ? FORMAT_UNORM16 : FORMAT_HALF;
+
+		File file = getFile(img.imgFile);
+		File tempFile = Bump2Roughness.getTempPath(file);
+		FileChannel channel = FileChannel.open(tempFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING);
+		boolean written = false;
+		try {
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+			header.put(MAGIC);
+			header.putInt(img.width);
+			header.putInt(img.height);
+			header.putInt(img.mipmapLevels);
+			header.put((byte) channels);
+			header.put((byte) format);
+			header.put((byte) img.filter.ordinal());
+			header.put((byte) 0);
+			header.putLong(sourceLength);
+			header.putLong(sourceLastModified);
+			header.putLong(sourceHash);
+			header.position(0);
+			writeFully(channel, header);
+
+			for (int i = 0; i < img.mipmapLevels; ++i) {
+				ImageBuffer level = img.buffers[i];
+				ByteBuffer row = ByteBuffer.allocate(level.width * channels * 2).order(ByteOrder.LITTLE_ENDIAN);
+				for (int y = 0; y < level.height; ++y) {
+					row.clear();
+					int index = level.getIndex(0, y);
+					for (int x = 0; x < level.width; ++x, index += 3)
+						for (int j = 0; j < channels; ++j)
+							row.putShort(fromFloat(level.data[index + j], format));
+					row.flip();
+					writeFully(channel, row);
+				}
+			}
+			written = true;
+		} finally {
+			channel.close();
+			if (!written) tempFile.delete();
+		}
+		Bump2Roughness.moveAtomically(tempFile, file);
+	}
+
+	private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining())
+			channel.write(buffer);
+	}
+
+	private static long getDataSize(ImageContainer img, int channels) {
+		long size = 0;
+		for (int i = 0; i < img.mipmapLevels; ++i)
+			size += ((long) ImageContainer.getLevelSize(img.width, i)) * ImageContainer.getLevelSize(img.height, i) * channels * 2;
+		return size;
+	}
+
+	private static boolean isUpToDate(File imgFile, long length, long lastModified, long hash) throws IOException {
+		if (imgFile.length() != length) return false;
+		if (imgFile.lastModified() == lastModified) return true;
+		// It might just have been copied or touched, so check the contents.
+		return hash(imgFile) == hash;
+	}
+
+	private static float toFloat(short value, int format) {
+		if (format == FORMAT_UNORM16) return ((float) (value & 0xFFFF)) / 65535.0f;
+		return HalfFloat.toFloat(value);
+	}
+
+	private static short fromFloat(float value, int format) {
+		if (format == FORMAT_UNORM16) return (short) Math.round(value * 65535.0f);
+		return HalfFloat.fromFloat(value);
+	}
+
+	public static long hash(byte[] data) {
+		CRC32 crc = new CRC32();
+		crc.update(data, 0, data.length);
+		return crc.getValue();
+	}
+
+	public static long hash(File file) throws IOException {
+		CRC32 crc = new CRC32();
+		byte[] buffer = new byte[64 * 1024];
+		InputStream stream = new FileInputStream(file);
+		try {
+			int read;
+			while ((read = stream.read(buffer)) > 0)
+				crc.update(buffer, 0, read);
+		} finally {
+			stream.close();
+		}
+		return crc.getValue();
+	}
+
+}
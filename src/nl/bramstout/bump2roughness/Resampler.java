@@ -0,0 +1,315 @@
+/*
+BSD 3-Clause License
+
+Copyright (c) 2020, Bram Stout
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+3. Neither the name of the copyright holder nor the names of its
+   contributors may be used to endorse or promote products derived from
+   this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+
+package nl.bramstout.bump2roughness;
+
+import java.awt.image.BufferedImage;
+
+import nl.bramstout.bump2roughness.Threading.Task;
+
+/**
+ * Turns a BufferedImage into an ImageBuffer, resizing it when needed.
+ *
+ * Resizing is done in two passes, first horizontally and then vertically. Which source
+ * texels each output texel uses, and with which weights, is calculated once up front
+ * into tables. Both passes are split up into bands of rows that run on multiple threads.
+ */
+public class Resampler {
+
+	public static enum FILTER {
+		// The same bilinear interpolation that was used before, which only looks at the two nearest texels.
+		BILINEAR,
+		// A Catmull-Rom filter that gets wider when making the image smaller, so that it doesn't alias.
+		CATMULL_ROM
+	}
+
+	/**
+	 * For each output texel, which source texels to use and how much each of them weighs.
+	 * The entries for output texel i are at i * taps up to (i + 1) * taps.
+	 */
+	static class Weights {
+		int taps;
+		int[] index;
+		double[] weight;
+
+		public Weights(int size, int taps) {
+			this.taps = taps;
+			index = new int[size * taps];
+			weight = new double[size * taps];
+		}
+	}
+
+	/**
+	 * Returns a table that turns an 8-bit channel value into a float.
+	 *
+	 * @param greyscale
+	 * @return
+	 */
+	static float[] createLUT(boolean greyscale) {
+		float[] lut = new float[256];
+		for (int i = 0; i < 256; ++i) {
+			lut[i] = ((float) i) / 255.0f;
+			// Single channel greyscale images apparently get a gamma applied on them, so undo it.
+			if (greyscale) lut[i] = (float) Math.pow(lut[i], 2.2);
+		}
+		return lut;
+	}
+
+	static boolean isGreyscale(BufferedImage img) {
+		return img.getType() == BufferedImage.TYPE_BYTE_GRAY || img.getType() == BufferedImage.TYPE_USHORT_GRAY;
+	}
+
+	/**
+	 * Reads row y of img into dst as three floats per texel.
+	 *
+	 * @param img
+	 * @param y
+	 * @param lut
+	 * @param argb Temporary space of at least img.getWidth() ints.
+	 * @param dst
+	 */
+	static void decodeRow(BufferedImage img, int y, float[] lut, int[] argb, float[] dst) {
+		int width = img.getWidth();
+		img.getRGB(0, y, width, 1, argb, 0, width);
+		for (int i = 0, j = 0; i < width; ++i, j += 3) {
+			int c = argb[i];
+			dst[j] = lut[(c >> 16) & 0xFF];
+			dst[j + 1] = lut[(c >> 8) & 0xFF];
+			dst[j + 2] = lut[c & 0xFF];
+		}
+	}
+
+	static int getThreadCount(int rows) {
+		return Math.max(1, Math.min(rows, Runtime.getRuntime().availableProcessors()));
+	}
+
+	/**
+	 * Copies img into dst, which has to be the same size.
+	 *
+	 * @param img
+	 * @param dst
+	 */
+	public static void decode(final BufferedImage img, final ImageBuffer dst) {
+		final float[] lut = createLUT(isGreyscale(img));
+		final int threads = getThreadCount(dst.height);
+
+		Threading.runParallel(threads, new Task() {
+
+			@Override
+			public void run(int thread) {
+				int[] argb = new int[dst.width];
+				float[] row = new float[dst.width * 3];
+				for (int y = thread * dst.height / threads; y < (thread + 1) * dst.height / threads; ++y) {
+					decodeRow(img, y, lut, argb, row);
+					System.arraycopy(row, 0, dst.data, dst.getIndex(0, y), row.length);
+				}
+			}
+
+		});
+	}
+
+	/**
+	 * Copies the first channel of img into dst as 8-bit values, one per texel, without the LUT applied.
+	 * dst has to hold img.getWidth() * img.getHeight() values.
+	 *
+	 * @param img
+	 * @param dst
+	 */
+	public static void decodeChannel(final BufferedImage img, final byte[] dst) {
+		final int width = img.getWidth();
+		final int height = img.getHeight();
+		final int threads = getThreadCount(height);
+
+		Threading.runParallel(threads, new Task() {
+
+			@Override
+			public void run(int thread) {
+				int[] argb = new int[width];
+				for (int y = thread * height / threads; y < (thread + 1) * height / threads; ++y) {
+					img.getRGB(0, y, width, 1, argb, 0, width);
+					int offset = y * width;
+					for (int x = 0; x < width; ++x)
+						dst[offset + x] = (byte) (argb[x] >> 16);
+				}
+			}
+
+		});
+	}
+
+	/**
+	 * Resizes img into dst.
+	 *
+	 * @param img
+	 * @param dst
+	 * @param filter
+	 */
+	public static void resample(final BufferedImage img, final ImageBuffer dst, FILTER filter) {
+		final int srcWidth = img.getWidth();
+		final int srcHeight = img.getHeight();
+		final Weights weightsX = createWeights(srcWidth, dst.width, filter);
+		final Weights weightsY = createWeights(srcHeight, dst.height, filter);
+		final float[] lut = createLUT(isGreyscale(img));
+
+		// The result of the horizontal pass: dst.width by srcHeight texels.
+		final float[] tmp = BufferArena.allocate(dst.width * srcHeight * 3, false);
+
+		final int threadsX = getThreadCount(srcHeight);
+		Threading.runParallel(threadsX, new Task() {
+
+			@Override
+			public void run(int thread) {
+				int[] argb = new int[srcWidth];
+				float[] row = new float[srcWidth * 3];
+				int taps = weightsX.taps;
+				for (int y = thread * srcHeight / threadsX; y < (thread + 1) * srcHeight / threadsX; ++y) {
+					decodeRow(img, y, lut, argb, row);
+
+					int dstIndex = y * dst.width * 3;
+					for (int i = 0; i < dst.width; ++i, dstIndex += 3) {
+						double r = 0.0;
+						double g = 0.0;
+						double b = 0.0;
+						for (int k = i * taps; k < (i + 1) * taps; ++k) {
+							int srcIndex = weightsX.index[k] * 3;
+							double w = weightsX.weight[k];
+							r += row[srcIndex] * w;
+							g += row[srcIndex + 1] * w;
+							b += row[srcIndex + 2] * w;
+						}
+						tmp[dstIndex] = (float) r;
+						tmp[dstIndex + 1] = (float) g;
+						tmp[dstIndex + 2] = (float) b;
+					}
+				}
+			}
+
+		});
+
+		final int threadsY = getThreadCount(dst.height);
+		Threading.runParallel(threadsY, new Task() {
+
+			@Override
+			public void run(int thread) {
+				int rowLength = dst.width * 3;
+				double[] row = new double[rowLength];
+				int taps = weightsY.taps;
+				for (int y = thread * dst.height / threadsY; y < (thread + 1) * dst.height / threadsY; ++y) {
+					// Add up whole rows at once, so that we go through tmp in order.
+					for (int i = 0; i < rowLength; ++i)
+						row[i] = 0.0;
+					for (int k = y * taps; k < (y + 1) * taps; ++k) {
+						int srcOffset = weightsY.index[k] * rowLength;
+						double w = weightsY.weight[k];
+						if (w == 0.0) continue;
+						for (int i = 0; i < rowLength; ++i)
+							row[i] += tmp[srcOffset + i] * w;
+					}
+
+					int dstOffset = dst.getIndex(0, y);
+					for (int i = 0; i < rowLength; ++i)
+						dst.data[dstOffset + i] = (float) row[i];
+				}
+			}
+
+		});
+
+		BufferArena.release(tmp);
+	}
+
+	static Weights createWeights(int srcSize, int dstSize, FILTER filter) {
+		if (filter == FILTER.CATMULL_ROM) return createCatmullRomWeights(srcSize, dstSize);
+		return createBilinearWeights(srcSize, dstSize);
+	}
+
+	/**
+	 * The same sample positions as the original bilinear resampling: output texel i
+	 * samples the source at i / dstSize * srcSize, wrapping around at the edge.
+	 *
+	 * @param srcSize
+	 * @param dstSize
+	 * @return
+	 */
+	static Weights createBilinearWeights(int srcSize, int dstSize) {
+		Weights weights = new Weights(dstSize, 2);
+		for (int i = 0; i < dstSize; ++i) {
+			double x = (((double) i) / ((double) dstSize)) * ((double) srcSize);
+			int x0 = (int) Math.floor(x);
+			int x1 = (int) Math.ceil(x);
+			double t = x - x0;
+			if (x1 >= srcSize) x1 -= srcSize;
+
+			weights.index[i * 2] = x0;
+			weights.index[i * 2 + 1] = x1;
+			weights.weight[i * 2] = 1.0 - t;
+			weights.weight[i * 2 + 1] = t;
+		}
+		return weights;
+	}
+
+	private static double catmullRom(double x) {
+		x = Math.abs(x);
+		if (x < 1.0) return 1.5 * x * x * x - 2.5 * x * x + 1.0;
+		if (x < 2.0) return -0.5 * x * x * x + 2.5 * x * x - 4.0 * x + 2.0;
+		return 0.0;
+	}
+
+	static Weights createCatmullRomWeights(int srcSize, int dstSize) {
+		// When making the image smaller, stretch the filter so that it covers every source texel.
+		double scale = Math.max(1.0, ((double) srcSize) / ((double) dstSize));
+		double radius = 2.0 * scale;
+		int taps = (int) Math.ceil(radius * 2.0) + 1;
+
+		Weights weights = new Weights(dstSize, taps);
+		for (int i = 0; i < dstSize; ++i) {
+			// Line up the centres of the texels.
+			double center = (i + 0.5) * ((double) srcSize) / ((double) dstSize) - 0.5;
+			int first = (int) Math.floor(center - radius) + 1;
+
+			double total = 0.0;
+			for (int k = 0; k < taps; ++k) {
+				int x = first + k;
+				double w = catmullRom((x - center) / scale);
+				// Wrap around, since textures repeat.
+				x = x % srcSize;
+				if (x < 0) x += srcSize;
+				weights.index[i * taps + k] = x;
+				weights.weight[i * taps + k] = w;
+				total += w;
+			}
+			for (int k = 0; k < taps; ++k)
+				weights.weight[i * taps + k] /= total;
+		}
+		return weights;
+	}
+
+}
@@ -0,0 +1,136 @@
+/*
+BSD 3-Clause License
+
+Copyright (c) 2020, Bram Stout
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+3. Neither the name of the copyright holder nor the names of its
+   contributors may be used to endorse or promote products derived from
+   this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+
+package nl.bramstout.bump2roughness;
+
+/**
+ * The slopes of every texel of level 0 of an image, in two planes.
+ * 
+ * Every mipmap level needs the slopes of all level 0 texels in its footprints. Instead of
+ * calculating those again for every level, they are calculated once into a SlopeField that
+ * all levels read from. To save memory, the slopes can be stored as half floats.
+ */
+public class SlopeField {
+
+	int width;
+	int height;
+	// Either the float planes or the half float planes are used.
+	float[] slopeX;
+	float[] slopeY;
+	short[] halfSlopeX;
+	short[] halfSlopeY;
+
+	public SlopeField(int width, int height, boolean halfFloat) {
+		this.width = width;
+		this.height = height;
+		if (halfFloat) {
+			halfSlopeX = new short[width * height];
+			halfSlopeY = new short[width * height];
+		} else {
+			// Every slope gets written, so there's no need to clear the memory.
+			slopeX = BufferArena.allocate(width * height, false);
+			slopeY = BufferArena.allocate(width * height, false);
+		}
+	}
+
+	public boolean isHalfFloat() {
+		return halfSlopeX != null;
+	}
+
+	/**
+	 * Stores the slopes of the whole row y.
+	 * 
+	 * @param y
+	 * @param srcX
+	 * @param srcY
+	 */
+	public void setRow(int y, float[] srcX, float[] srcY) {
+		int offset = y * width;
+		if (isHalfFloat()) {
+			for (int i = 0; i < width; ++i) {
+				halfSlopeX[offset + i] = HalfFloat.fromFloat(srcX[i]);
+				halfSlopeY[offset + i] = HalfFloat.fromFloat(srcY[i]);
+			}
+		} else {
+			System.arraycopy(srcX, 0, slopeX, offset, width);
+			System.arraycopy(srcY, 0, slopeY, offset, width);
+		}
+	}
+
+	public float getSlopeX(int x, int y) {
+		if (isHalfFloat()) return HalfFloat.toFloat(halfSlopeX[y * width + x]);
+		return slopeX[y * width + x];
+	}
+
+	public float getSlopeY(int x, int y) {
+		if (isHalfFloat()) return HalfFloat.toFloat(halfSlopeY[y * width + x]);
+		return slopeY[y * width + x];
+	}
+
+	/**
+	 * Copies the slopes of the n texels starting at (x0, y) into scratch.slopeX and scratch.slopeY.
+	 * The texels have to be inside of the image.
+	 * 
+	 * @param x0
+	 * @param y
+	 * @param n
+	 * @param scratch
+	 */
+	public void readRow(int x0, int y, int n, SlopeKernels.Scratch scratch) {
+		int offset = y * width + x0;
+		if (isHalfFloat()) {
+			float[] dstX = scratch.slopeX;
+			float[] dstY = scratch.slopeY;
+			for (int i = 0; i < n; ++i) {
+				dstX[i] = HalfFloat.toFloat(halfSlopeX[offset + i]);
+				dstY[i] = HalfFloat.toFloat(halfSlopeY[offset + i]);
+			}
+		} else {
+			System.arraycopy(slopeX, offset, scratch.slopeX, 0, n);
+			System.arraycopy(slopeY, offset, scratch.slopeY, 0, n);
+		}
+	}
+
+	/**
+	 * Gives the memory back. The field can't be used afterwards.
+	 */
+	public void release() {
+		BufferArena.release(slopeX);
+		BufferArena.release(slopeY);
+		slopeX = null;
+		slopeY = null;
+		halfSlopeX = null;
+		halfSlopeY = null;
+	}
+
+}
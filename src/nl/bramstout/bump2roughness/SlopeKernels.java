@@ -0,0 +1,189 @@
+/*
+BSD 3-Clause License
+
+Copyright (c) 2020, Bram Stout
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+3. Neither the name of the copyright holder nor the names of its
+   contributors may be used to endorse or promote products derived from
+   this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+
+package nl.bramstout.bump2roughness;
+
+/**
+ * Row based versions of the slope and deviation calculations in Bump2Roughness.
+ *
+ * Bump2Roughness.getSlope() works on a single texel and allocates arrays for every call.
+ * These kernels work on a whole row of texels at once and write into arrays that are
+ * reused, with simple loops over contiguous arrays. That allows the JIT to turn them into
+ * SIMD instructions. They calculate the exact same slopes as getSlope(), only the
+ * order in which the deviations are summed up is different.
+ */
+public class SlopeKernels {
+
+	/**
+	 * Arrays that the kernels write their intermediate results in.
+	 * Every thread needs its own Scratch.
+	 */
+	public static class Scratch {
+		float[] rowA;
+		float[] rowB;
+		float[] rowC;
+		float[] slopeX;
+		float[] slopeY;
+		// The slopes of a row in the mipmap level itself
+		float[] meanSlopeX;
+		float[] meanSlopeY;
+
+		/**
+		 * @param footprint The most texels that the slopes are calculated for at once.
+		 * @param rowWidth The width of the mipmap level.
+		 */
+		public Scratch(int footprint, int rowWidth) {
+			int size = Math.max(footprint, rowWidth);
+			rowA = new float[size + 1];
+			rowB = new float[size + 1];
+			rowC = new float[size + 1];
+			slopeX = new float[size];
+			slopeY = new float[size];
+			meanSlopeX = new float[rowWidth];
+			meanSlopeY = new float[rowWidth];
+		}
+	}
+
+	/**
+	 * Calculates the slopes of a bump or displacement map for the n texels starting at (x0, y).
+	 * The results are written to scratch.slopeX and scratch.slopeY.
+	 *
+	 * @param buffer
+	 * @param x0
+	 * @param y
+	 * @param n
+	 * @param strength The normalisation factor of the map.
+	 * @param du The width of a texel in world units.
+	 * @param dv The height of a texel in world units.
+	 * @param divisor What to divide the slopes by afterwards (1.0 to leave them as is).
+	 * @param scratch
+	 */
+	public static void heightSlopes(ImageBuffer buffer, int x0, int y, int n, float strength, float du, float dv, float divisor, Scratch scratch) {
+		float[] h = scratch.rowA;
+		float[] hNext = scratch.rowB;
+		float[] slopeX = scratch.slopeX;
+		float[] slopeY = scratch.slopeY;
+
+		// One extra value, since we need the texel to the right of the last one.
+		buffer.readRow(0, x0, y, n + 1, h);
+		buffer.readRow(0, x0, y + 1, n, hNext);
+
+		for (int k = 0; k < n; ++k) {
+			float dx = (h[k + 1] - h[k]) * strength;
+			float dy = (hNext[k] - h[k]) * strength;
+			slopeX[k] = dx / du;
+			slopeY[k] = dy / dv;
+		}
+
+		if (divisor != 1.0f) {
+			for (int k = 0; k < n; ++k) {
+				slopeX[k] /= divisor;
+				slopeY[k] /= divisor;
+			}
+		}
+	}
+
+	/**
+	 * Calculates the slopes of a normal map for the n texels starting at (x0, y).
+	 * The results are written to scratch.slopeX and scratch.slopeY.
+	 *
+	 * @param buffer
+	 * @param x0
+	 * @param y
+	 * @param n
+	 * @param strength
+	 * @param scratch
+	 */
+	public static void normalSlopes(ImageBuffer buffer, int x0, int y, int n, float strength, Scratch scratch) {
+		float[] r = scratch.rowA;
+		float[] g = scratch.rowB;
+		float[] b = scratch.rowC;
+		float[] slopeX = scratch.slopeX;
+		float[] slopeY = scratch.slopeY;
+
+		buffer.readRow(0, x0, y, n, r);
+		buffer.readRow(1, x0, y, n, g);
+		buffer.readRow(2, x0, y, n, b);
+
+		for (int k = 0; k < n; ++k) {
+			float z = b[k] * 2.0f - 1.0f;
+			slopeX[k] = ((r[k] * 2.0f - 1.0f) / z) * strength;
+			slopeY[k] = ((g[k] * 2.0f - 1.0f) / z) * strength;
+		}
+	}
+
+	public static void clamp(float[] values, int n, float min, float max) {
+		for (int k = 0; k < n; ++k)
+			values[k] = Math.max(min, Math.min(max, values[k]));
+	}
+
+	/**
+	 * Returns the sum of (slopeX - meanX)^2 + (slopeY - meanY)^2 over the first n slopes.
+	 *
+	 * @param slopeX
+	 * @param slopeY
+	 * @param n
+	 * @param meanX
+	 * @param meanY
+	 * @return
+	 */
+	public static float squaredDifferenceSum(float[] slopeX, float[] slopeY, int n, float meanX, float meanY) {
+		// Multiple sums, so that the additions don't all have to wait on each other.
+		float sum0 = 0.0f;
+		float sum1 = 0.0f;
+		float sum2 = 0.0f;
+		float sum3 = 0.0f;
+		int k = 0;
+		for (; k + 3 < n; k += 4) {
+			float x0 = slopeX[k] - meanX;
+			float y0 = slopeY[k] - meanY;
+			float x1 = slopeX[k + 1] - meanX;
+			float y1 = slopeY[k + 1] - meanY;
+			float x2 = slopeX[k + 2] - meanX;
+			float y2 = slopeY[k + 2] - meanY;
+			float x3 = slopeX[k + 3] - meanX;
+			float y3 = slopeY[k + 3] - meanY;
+			sum0 += x0 * x0 + y0 * y0;
+			sum1 += x1 * x1 + y1 * y1;
+			sum2 += x2 * x2 + y2 * y2;
+			sum3 += x3 * x3 + y3 * y3;
+		}
+		for (; k < n; ++k) {
+			float x = slopeX[k] - meanX;
+			float y = slopeY[k] - meanY;
+			sum0 += x * x + y * y;
+		}
+		return (sum0 + sum1) + (sum2 + sum3);
+	}
+
+}
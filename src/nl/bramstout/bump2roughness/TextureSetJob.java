@@ -0,0 +1,425 @@
+/*
+BSD 3-Clause License
+
+Copyright (c) 2020, Bram Stout
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+3. Neither the name of the copyright holder nor the names of its
+   contributors may be used to endorse or promote products derived from
+   this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+
+package nl.bramstout.bump2roughness;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import nl.bramstout.bump2roughness.Bump2Roughness.MAPTYPE;
+import nl.bramstout.bump2roughness.Bump2Roughness.OUTPUTMODE;
+import nl.bramstout.bump2roughness.Bump2Roughness.OUTPUTPRECISION;
+import nl.bramstout.bump2roughness.Bump2Roughness.ProgressCallback;
+import nl.bramstout.bump2roughness.Bump2Roughness.RENDERER;
+import nl.bramstout.bump2roughness.Bump2Roughness.Settings;
+
+/**
+ * A description of a single roughness texture to generate, using only paths and values.
+ *
+ * Settings holds the loaded ImageContainers, which makes it impossible to hand over to
+ * another process or keep around for later. A TextureSetJob can be written out as plain
+ * text and read back in again, and only turns into Settings when it's actually run.
+ *
+ * The text format is one "key=value" pair per line, with the job ending on a line with "end".
+ * Inputs are written as "input=TYPE|scale|path". Empty lines and lines starting with # are ignored.
+ */
+public class TextureSetJob {
+
+	public static class Input {
+		String path;
+		float scale;
+		MAPTYPE type;
+		// Whether a batch may keep the decoded image in memory to share it with other texture sets.
+		boolean keepResident = true;
+
+		public Input(String path, float scale, MAPTYPE type) {
+			this.path = path;
+			this.scale = scale;
+			this.type = type;
+		}
+	}
+
+	// Either a number or the path to a base roughness texture.
+	String baseRoughness = "0.0";
+	ArrayList<Input> inputs = new ArrayList<Input>();
+	float unitSize = 1.0f;
+	RENDERER renderer = RENDERER.ARNOLD;
+	OUTPUTMODE outputMode = OUTPUTMODE.TEXTURE;
+	EngineTextureWriter.FORMAT engineFormat = EngineTextureWriter.FORMAT.R8;
+	OUTPUTPRECISION outputPrecision = OUTPUTPRECISION.BYTE;
+	String outputPath = "";
+	String maketxPath = "";
+	int fusedInputs = 1;
+	Resampler.FILTER filter = Resampler.FILTER.BILINEAR;
+	boolean halfFloatSlopes = false;
+	int readAhead = 1;
+	int approximateSamples = 0;
+	boolean skipFlatRegions = true;
+	boolean sidecars = false;
+	boolean fixedPoint = false;
+	String checkpointPath = "";
+	int checkpointInterval = 300;
+
+	public TextureSetJob() {
+	}
+
+	public TextureSetJob(TextureSetJob other) {
+		baseRoughness = other.baseRoughness;
+		for (Input input : other.inputs) {
+			Input copy = new Input(input.path, input.scale, input.type);
+			copy.keepResident = input.keepResident;
+			inputs.add(copy);
+		}
+		unitSize = other.unitSize;
+		renderer = other.renderer;
+		outputMode = other.outputMode;
+		engineFormat = other.engineFormat;
+		outputPrecision = other.outputPrecision;
+		outputPath = other.outputPath;
+		maketxPath = other.maketxPath;
+		fusedInputs = other.fusedInputs;
+		filter = other.filter;
+		halfFloatSlopes = other.halfFloatSlopes;
+		readAhead = other.readAhead;
+		approximateSamples = other.approximateSamples;
+		skipFlatRegions = other.skipFlatRegions;
+		sidecars = other.sidecars;
+		fixedPoint = other.fixedPoint;
+		checkpointPath = other.checkpointPath;
+		checkpointInterval = other.checkpointInterval;
+	}
+
+	/**
+	 * Returns true if the base roughness is a texture rather than a value.
+	 *
+	 * @return
+	 */
+	public boolean hasBaseRoughnessTexture() {
+		try {
+			Float.parseFloat(baseRoughness);
+			return false;
+		} catch (Exception ex) {
+			return true;
+		}
+	}
+
+	/**
+	 * Returns whether the input should be read in as bytes for the fixed point path.
+	 * Only bump and displacement maps can be, since normal maps need all three channels.
+	 *
+	 * @param input
+	 * @return
+	 */
+	public boolean isEightBit(Input input) {
+		return fixedPoint && input.type != MAPTYPE.NORMAL;
+	}
+
+	/**
+	 * Where createSettings() gets the ImageContainers for the files from.
+	 */
+	public static interface ImageSource {
+		/**
+		 * @param file
+		 * @param filter
+		 * @param eightBit Whether the image may be read in as bytes, see ImageContainer.eightBit.
+		 * @param keepResident Whether the image may be shared with other jobs.
+		 * @return
+		 * @throws IOException
+		 */
+		public ImageContainer get(File file, Resampler.FILTER filter, boolean eightBit, boolean keepResident) throws IOException;
+
+		/**
+		 * Gives an image from get() back, once the job doesn't need it anymore.
+		 * 
+		 * @param img
+		 */
+		public void release(ImageContainer img);
+	}
+
+	/**
+	 * Gives every job its own ImageContainers.
+	 */
+	public static final ImageSource NEW_IMAGES = new ImageSource() {
+
+		@Override
+		public ImageContainer get(File file, Resampler.FILTER filter, boolean eightBit, boolean keepResident) throws IOException {
+			ImageContainer img = new ImageContainer(file);
+			img.filter = filter;
+			img.eightBit = eightBit;
+			return img;
+		}
+
+		@Override
+		public void release(ImageContainer img) {
+			img.free();
+		}
+
+	};
+
+	/**
+	 * Loads in the images and turns this job into settings for Bump2Roughness.
+	 * Images that an earlier job already read in are taken from the PyramidCache.
+	 *
+	 * @param callback
+	 * @return
+	 * @throws Exception
+	 */
+	public Settings createSettings(ProgressCallback callback) throws Exception {
+		return createSettings(callback, PyramidCache.SOURCE);
+	}
+
+	/**
+	 * Turns this job into settings for Bump2Roughness, with the images coming from source.
+	 *
+	 * @param callback
+	 * @param source
+	 * @return
+	 * @throws Exception
+	 */
+	public Settings createSettings(ProgressCallback callback, ImageSource source) throws Exception {
+		Settings settings = new Settings();
+		settings.imageSource = source;
+
+		// Check everything before getting any images, so that we don't have to give them back.
+		if (hasBaseRoughnessTexture()) {
+			if (!new File(baseRoughness).exists()) throw new Exception("Cannot find base roughness texture: " + baseRoughness);
+		} else {
+			settings.roughnessValue = Float.parseFloat(baseRoughness);
+		}
+		for (Input input : inputs) {
+			if (!new File(input.path).exists()) throw new Exception("Cannot find given texture: " + input.path);
+		}
+		if (inputs.size() == 0) throw new Exception("No textures given");
+
+		try {
+			if (hasBaseRoughnessTexture()) settings.roughnessImg = source.get(new File(baseRoughness), filter, false, true);
+
+			for (Input input : inputs) {
+				settings.imgs.add(source.get(new File(input.path), filter, isEightBit(input), input.keepResident));
+				settings.normalisationFactors.add(input.scale);
+				settings.mapType.add(input.type);
+			}
+		} catch (IOException ex) {
+			// The file might have gone missing or isn't an image, so give back what we did get.
+			for (ImageContainer img : settings.imgs)
+				source.release(img);
+			if (settings.roughnessImg != null) source.release(settings.roughnessImg);
+			throw ex;
+		}
+
+		if (sidecars) {
+			for (ImageContainer img : settings.imgs)
+				img.useSidecar = true;
+			if (settings.roughnessImg != null) settings.roughnessImg.useSidecar = true;
+		}
+
+		settings.unitSize = unitSize;
+		settings.renderer = renderer;
+		settings.outputMode = outputMode;
+		settings.engineFormat = engineFormat;
+		settings.outputPrecision = outputPrecision;
+		settings.outputPath = outputPath;
+		settings.maketxPath = maketxPath;
+		settings.fusedInputs = fusedInputs;
+		settings.halfFloatSlopes = halfFloatSlopes;
+		settings.readAhead = readAhead;
+		settings.approximateSamples = approximateSamples;
+		settings.skipFlatRegions = skipFlatRegions;
+		settings.checkpointPath = checkpointPath;
+		settings.checkpointInterval = checkpointInterval;
+		settings.fixedPoint = fixedPoint;
+		settings.callback = callback;
+
+		return settings;
+	}
+
+	/**
+	 * Generates the roughness texture described by this job.
+	 *
+	 * @param callback
+	 * @throws Exception
+	 */
+	public void run(ProgressCallback callback) throws Exception {
+		Bump2Roughness solver = new Bump2Roughness(createSettings(callback));
+
+		try {
+			solver.calculateRoughness();
+
+			solver.writeOutput();
+		} finally {
+			solver.free();
+		}
+	}
+
+	public void write(PrintWriter writer) {
+		writer.println("base=" + baseRoughness);
+		writer.println("unitSize=" + unitSize);
+		writer.println("renderer=" + renderer.name());
+		writer.println("outputMode=" + outputMode.name());
+		writer.println("engineFormat=" + engineFormat.name());
+		writer.println("outputPrecision=" + outputPrecision.name());
+		writer.println("output=" + outputPath);
+		writer.println("maketx=" + maketxPath);
+		writer.println("fusedInputs=" + fusedInputs);
+		writer.println("filter=" + filter.name());
+		writer.println("halfFloatSlopes=" + halfFloatSlopes);
+		writer.println("readAhead=" + readAhead);
+		writer.println("approximateSamples=" + approximateSamples);
+		writer.println("skipFlatRegions=" + skipFlatRegions);
+		writer.println("sidecars=" + sidecars);
+		writer.println("fixedPoint=" + fixedPoint);
+		writer.println("checkpoint=" + checkpointPath);
+		writer.println("checkpointInterval=" + checkpointInterval);
+		for (Input input : inputs)
+			writer.println("input=" + input.type.name() + "|" + input.scale + "|" + input.path);
+		writer.println("end");
+	}
+
+	/**
+	 * Reads all of the jobs in the file.
+	 *
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 */
+	public static List<TextureSetJob> readAll(File file) throws IOException {
+		List<TextureSetJob> jobs = new ArrayList<TextureSetJob>();
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8));
+		try {
+			TextureSetJob job;
+			while ((job = read(reader)) != null)
+				jobs.add(job);
+		} finally {
+			reader.close();
+		}
+		return jobs;
+	}
+
+	/**
+	 * Sets the value of one of the keys of the text format.
+	 *
+	 * @param key
+	 * @param value
+	 * @throws IOException When the key is unknown.
+	 * @throws IllegalArgumentException When the value is invalid.
+	 */
+	public void set(String key, String value) throws IOException {
+		if (key.equalsIgnoreCase("base")) {
+			baseRoughness = value;
+		} else if (key.equalsIgnoreCase("unitSize")) {
+			unitSize = Float.parseFloat(value);
+		} else if (key.equalsIgnoreCase("renderer")) {
+			renderer = RENDERER.valueOf(value.toUpperCase());
+		} else if (key.equalsIgnoreCase("outputMode")) {
+			outputMode = OUTPUTMODE.valueOf(value.toUpperCase());
+		} else if (key.equalsIgnoreCase("engineFormat")) {
+			engineFormat = EngineTextureWriter.FORMAT.valueOf(value.toUpperCase());
+		} else if (key.equalsIgnoreCase("outputPrecision")) {
+			outputPrecision = OUTPUTPRECISION.valueOf(value.toUpperCase());
+		} else if (key.equalsIgnoreCase("output")) {
+			outputPath = value;
+		} else if (key.equalsIgnoreCase("maketx")) {
+			maketxPath = value;
+		} else if (key.equalsIgnoreCase("fusedInputs")) {
+			fusedInputs = Integer.parseInt(value);
+		} else if (key.equalsIgnoreCase("filter")) {
+			filter = Resampler.FILTER.valueOf(value.toUpperCase());
+		} else if (key.equalsIgnoreCase("halfFloatSlopes")) {
+			halfFloatSlopes = Boolean.parseBoolean(value);
+		} else if (key.equalsIgnoreCase("readAhead")) {
+			readAhead = Integer.parseInt(value);
+		} else if (key.equalsIgnoreCase("approximateSamples")) {
+			approximateSamples = Integer.parseInt(value);
+		} else if (key.equalsIgnoreCase("skipFlatRegions")) {
+			skipFlatRegions = Boolean.parseBoolean(value);
+		} else if (key.equalsIgnoreCase("sidecars")) {
+			sidecars = Boolean.parseBoolean(value);
+		} else if (key.equalsIgnoreCase("fixedPoint")) {
+			fixedPoint = Boolean.parseBoolean(value);
+		} else if (key.equalsIgnoreCase("checkpoint")) {
+			checkpointPath = value;
+		} else if (key.equalsIgnoreCase("checkpointInterval")) {
+			checkpointInterval = Integer.parseInt(value);
+		} else if (key.equalsIgnoreCase("input")) {
+			String[] parts = value.split("\\|", 3);
+			if (parts.length != 3) throw new IOException("Invalid input in job: " + value);
+			inputs.add(new Input(parts[2], Float.parseFloat(parts[1]), MAPTYPE.valueOf(parts[0].toUpperCase())));
+		} else {
+			throw new IOException("Unknown key in job: " + key);
+		}
+	}
+
+	/**
+	 * Reads the next job from the reader. Returns null if there are no more jobs.
+	 *
+	 * @param reader
+	 * @return
+	 * @throws IOException
+	 */
+	public static TextureSetJob read(BufferedReader reader) throws IOException {
+		TextureSetJob job = null;
+
+		String line;
+		while ((line = reader.readLine()) != null) {
+			line = line.trim();
+			if (line.isEmpty() || line.startsWith("#")) continue;
+
+			if (job == null) job = new TextureSetJob();
+
+			if (line.equalsIgnoreCase("end")) return job;
+
+			int sep = line.indexOf('=');
+			if (sep < 0) throw new IOException("Invalid line in job: " + line);
+			String key = line.substring(0, sep).trim();
+			String value = line.substring(sep + 1).trim();
+
+			try {
+				job.set(key, value);
+			} catch (IllegalArgumentException ex) {
+				throw new IOException("Invalid value in job: " + line, ex);
+			}
+		}
+
+		if (job != null) throw new IOException("Unexpected end of job, missing \"end\"");
+
+		return null;
+	}
+
+}
@@ -0,0 +1,338 @@
+/*
+BSD 3-Clause License
+
+Copyright (c) 2020, Bram Stout
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+3. Neither the name of the copyright holder nor the names of its
+   contributors may be used to endorse or promote products derived from
+   this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+
+package nl.bramstout.bump2roughness;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Splits texture set jobs up into UDIM tiles and hands them out to TileWorkers.
+ *
+ * Every worker gets its own thread, which keeps taking tiles from a shared queue,
+ * so faster workers automatically end up doing more tiles. Tiles that fail are
+ * put back into the queue until they've been tried maxAttempts times.
+ */
+public class TileCoordinator {
+
+	public static class TileResult {
+		TextureSetJob job;
+		int tile;
+		int attempts = 0;
+		boolean success = false;
+		String message = "";
+		String worker = "";
+
+		public TileResult(TextureSetJob job, int tile) {
+			this.job = job;
+			this.tile = tile;
+		}
+
+		public boolean isSuccess() {
+			return success;
+		}
+
+		@Override
+		public String toString() {
+			return "Tile " + tile + " -> " + job.outputPath + ": " + (success ? "done" : "FAILED (" + message + ")") + " after " + attempts
+					+ " attempt(s)" + (worker.isEmpty() ? "" : " on " + worker);
+		}
+	}
+
+	List<InetSocketAddress> workers;
+	int maxAttempts = 3;
+	// How many times a worker thread tries to reconnect before giving up on that worker.
+	int maxReconnects = 3;
+	// How long to wait for a worker to answer, in milliseconds, before seeing the attempt as failed.
+	// Tiles can take a long time, so this is generous. 0 waits forever.
+	int timeout = 60 * 60 * 1000;
+
+	private LinkedBlockingQueue<TileResult> queue = new LinkedBlockingQueue<TileResult>();
+	private AtomicInteger remaining = new AtomicInteger();
+	private AtomicInteger activeWorkers = new AtomicInteger();
+
+	public TileCoordinator(List<InetSocketAddress> workers, int maxAttempts) {
+		this.workers = workers;
+		this.maxAttempts = maxAttempts;
+	}
+
+	/**
+	 * Usage: udim <job file> [--workers host:port,host:port,...] [--local count] [--port basePort] [--attempts count] [--timeout minutes]
+	 *
+	 * The job file contains one or more TextureSetJobs. With --local it starts that many workers on this machine.
+	 * A worker that doesn't answer within the timeout (60 minutes by default, 0 to wait forever) is seen as failed.
+	 *
+	 * @param args
+	 * @throws Exception
+	 */
+	public static void main(String[] args) throws Exception {
+		if (args.length < 1) throw new Exception("No job file given");
+
+		List<InetSocketAddress> workers = new ArrayList<InetSocketAddress>();
+		int localWorkers = 0;
+		int basePort = 4873;
+		int maxAttempts = 3;
+		int timeout = 60;
+		for (int i = 1; i < args.length; i += 2) {
+			if (i + 1 >= args.length) throw new Exception("Missing value for " + args[i]);
+			if (args[i].equalsIgnoreCase("--workers")) {
+				for (String worker : args[i + 1].split(",")) {
+					int sep = worker.lastIndexOf(':');
+					if (sep < 0) throw new Exception("Worker is not host:port: " + worker);
+					workers.add(new InetSocketAddress(worker.substring(0, sep), Integer.parseInt(worker.substring(sep + 1))));
+				}
+			} else if (args[i].equalsIgnoreCase("--local")) {
+				localWorkers = Integer.parseInt(args[i + 1]);
+			} else if (args[i].equalsIgnoreCase("--port")) {
+				basePort = Integer.parseInt(args[i + 1]);
+			} else if (args[i].equalsIgnoreCase("--attempts")) {
+				maxAttempts = Integer.parseInt(args[i + 1]);
+			} else if (args[i].equalsIgnoreCase("--timeout")) {
+				timeout = Integer.parseInt(args[i + 1]);
+				if (timeout < 0) throw new Exception("The timeout can't be negative: " + timeout);
+			} else {
+				throw new Exception("Unknown argument: " + args[i]);
+			}
+		}
+
+		List<TextureSetJob> jobs = TextureSetJob.readAll(new File(args[0]));
+
+		List<Process> processes = new ArrayList<Process>();
+		if (localWorkers > 0) {
+			processes = launchLocalWorkers(localWorkers, basePort);
+			for (int i = 0; i < localWorkers; ++i)
+				workers.add(new InetSocketAddress("localhost", basePort + i));
+		}
+
+		boolean success = true;
+		try {
+			TileCoordinator coordinator = new TileCoordinator(workers, maxAttempts);
+			coordinator.timeout = (int) Math.min(Integer.MAX_VALUE, timeout * 60000L);
+			for (TileResult result : coordinator.run(jobs))
+				success = success && result.isSuccess();
+		} finally {
+			for (Process process : processes)
+				process.destroy();
+		}
+
+		if (!success) System.exit(1);
+	}
+
+	/**
+	 * Runs all of the jobs on the workers and waits for them to finish.
+	 * Jobs with UDIM inputs are split up into one job per tile.
+	 *
+	 * @param jobs
+	 * @return The result for each tile.
+	 * @throws Exception
+	 */
+	public List<TileResult> run(List<TextureSetJob> jobs) throws Exception {
+		if (workers.isEmpty()) throw new Exception("No workers given");
+
+		final List<TileResult> results = new ArrayList<TileResult>();
+		for (TextureSetJob job : jobs) {
+			List<Integer> tiles = UDIM.findTiles(job);
+			if (tiles.isEmpty()) {
+				results.add(new TileResult(job, 0));
+			} else {
+				System.out.println("Found " + tiles.size() + " tiles for " + job.outputPath);
+				for (int tile : tiles)
+					results.add(new TileResult(UDIM.forTile(job, tile), tile));
+			}
+		}
+
+		queue.addAll(results);
+		remaining.set(results.size());
+		activeWorkers.set(workers.size());
+
+		Threading.runParallel(workers.size(), new Threading.Task() {
+
+			@Override
+			public void run(int index) {
+				runWorker(workers.get(index));
+			}
+
+		});
+
+		for (TileResult result : results)
+			System.out.println(result);
+
+		return results;
+	}
+
+	private void runWorker(InetSocketAddress address) {
+		int reconnects = 0;
+		try {
+			while (remaining.get() > 0) {
+				Socket socket = null;
+				TileResult current = null;
+				try {
+					socket = new Socket();
+					socket.connect(address, 10000);
+					// A worker that hangs or can't be reached anymore would otherwise block this thread forever.
+					socket.setSoTimeout(timeout);
+					BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+					PrintWriter writer = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), true);
+
+					String version = reader.readLine();
+					if (!TileWorker.VERSION.equals(version)) throw new Exception("Unknown worker version: " + version);
+					reconnects = 0;
+
+					while (remaining.get() > 0) {
+						current = queue.poll(100, TimeUnit.MILLISECONDS);
+						// Another worker might still have the last tiles. If they fail, we might need to pick them up.
+						if (current == null) continue;
+
+						current.attempts += 1;
+						current.worker = address.toString();
+
+						writer.println("JOB " + current.tile);
+						current.job.write(writer);
+
+						String response;
+						try {
+							response = reader.readLine();
+						} catch (SocketTimeoutException ex) {
+							throw new Exception("No answer from the worker within " + (timeout / 1000) + " seconds");
+						}
+						if (response == null) throw new Exception("Worker closed the connection");
+
+						if (response.startsWith("DONE")) {
+							current.success = true;
+							current.message = "";
+							finish(current);
+						} else {
+							String[] parts = response.split(" ", 3);
+							current.message = parts.length > 2 ? parts[2] : response;
+							retryOrFail(current);
+						}
+						current = null;
+					}
+
+					writer.println("QUIT");
+				} catch (Exception ex) {
+					System.out.println("Worker " + address + " failed: " + ex.getMessage());
+					if (current != null) {
+						current.message = String.valueOf(ex.getMessage());
+						retryOrFail(current);
+					}
+
+					reconnects += 1;
+					if (reconnects > maxReconnects) {
+						System.out.println("Giving up on worker " + address);
+						return;
+					}
+					Thread.sleep(1000L * reconnects);
+				} finally {
+					if (socket != null) socket.close();
+				}
+			}
+		} catch (Exception ex) {
+			ex.printStackTrace();
+		} finally {
+			// If this was the last worker, then nobody can pick up the tiles still in the queue.
+			if (activeWorkers.decrementAndGet() <= 0) {
+				TileResult result;
+				while ((result = queue.poll()) != null) {
+					if (result.message.isEmpty()) result.message = "No workers left";
+					finish(result);
+				}
+			}
+		}
+	}
+
+	private void retryOrFail(TileResult result) {
+		if (result.attempts < maxAttempts) {
+			System.out.println("Retrying tile " + result.tile + ": " + result.message);
+			queue.add(result);
+		} else {
+			finish(result);
+		}
+	}
+
+	private void finish(TileResult result) {
+		remaining.decrementAndGet();
+	}
+
+	/**
+	 * Starts worker processes on this machine, using the same Java installation and class path as this process.
+	 * It waits until each of them accepts connections.
+	 *
+	 * @param count
+	 * @param basePort The port of the first worker, the others get the ports after it.
+	 * @return
+	 * @throws Exception
+	 */
+	public static List<Process> launchLocalWorkers(int count, int basePort) throws Exception {
+		String java = new File(new File(System.getProperty("java.home"), "bin"), "java").getPath();
+		String classPath = System.getProperty("java.class.path");
+
+		List<Process> processes = new ArrayList<Process>();
+		for (int i = 0; i < count; ++i) {
+			ProcessBuilder builder = new ProcessBuilder(java, "-cp", classPath, "nl.bramstout.bump2roughness.Main", "worker", Integer.toString(basePort + i));
+			builder.inheritIO();
+			processes.add(builder.start());
+		}
+
+		for (int i = 0; i < count; ++i) {
+			InetSocketAddress address = new InetSocketAddress("localhost", basePort + i);
+			for (int attempt = 0;; ++attempt) {
+				try {
+					Socket socket = new Socket();
+					socket.setSoTimeout(1000);
+					socket.connect(address, 1000);
+					socket.close();
+					break;
+				} catch (Exception ex) {
+					if (attempt > 100 || !processes.get(i).isAlive()) throw new Exception("Worker on port " + (basePort + i) + " did not start");
+					Thread.sleep(100);
+				}
+			}
+		}
+
+		return processes;
+	}
+
+}
@@ -0,0 +1,185 @@
+/*
+BSD 3-Clause License
+
+Copyright (c) 2020, Bram Stout
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+3. Neither the name of the copyright holder nor the names of its
+   contributors may be used to endorse or promote products derived from
+   this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+
+package nl.bramstout.bump2roughness;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+import nl.bramstout.bump2roughness.Bump2Roughness.ConsoleProgressCallback;
+
+/**
+ * A worker process that generates roughness textures for a TileCoordinator.
+ *
+ * The protocol is line based text over a socket:
+ *   coordinator: "JOB <tile>", followed by the TextureSetJob lines (ending with "end")
+ *   worker:      "DONE <tile>" or "FAILED <tile> <message>"
+ *   coordinator: "QUIT" to close the connection.
+ *
+ * A worker handles one job per connection at a time, but multiple coordinators can connect to it.
+ */
+public class TileWorker {
+
+	public static final String VERSION = "B2R-WORKER 1";
+
+	int port;
+
+	public TileWorker(int port) {
+		this.port = port;
+	}
+
+	/**
+	 * Usage: worker [port] [--cache megabytes]
+	 *
+	 * The port is the first argument when it's given, 4873 otherwise. The options come after it.
+	 *
+	 * @param args
+	 * @throws Exception
+	 */
+	public static void main(String[] args) throws Exception {
+		int port = 4873;
+		int first = 0;
+		if (args.length > 0 && !args[0].startsWith("--")) {
+			port = Integer.parseInt(args[0]);
+			first = 1;
+		}
+		for (int i = first; i < args.length; i += 2) {
+			if (i + 1 >= args.length) throw new Exception("Missing value for " + args[i]);
+			if (args[i].equalsIgnoreCase("--cache")) {
+				PyramidCache.setCapacity(Long.parseLong(args[i + 1]) * 1024 * 1024);
+			} else {
+				throw new Exception("Unknown argument: " + args[i]);
+			}
+		}
+		new TileWorker(port).run();
+	}
+
+	public void run() throws Exception {
+		ServerSocket server = new ServerSocket(port);
+		System.out.println("Worker listening on port " + server.getLocalPort());
+
+		try {
+			while (true) {
+				final Socket socket = server.accept();
+				new Thread(new Runnable() {
+
+					@Override
+					public void run() {
+						handleConnection(socket);
+					}
+
+				}).start();
+			}
+		} finally {
+			server.close();
+		}
+	}
+
+	/**
+	 * Reads up to and including the "end" of a job that couldn't be read in.
+	 * 
+	 * @param reader
+	 * @throws IOException
+	 */
+	private static void skipJob(BufferedReader reader) throws IOException {
+		String line;
+		while ((line = reader.readLine()) != null)
+			if (line.trim().equalsIgnoreCase("end")) return;
+	}
+
+	private static String toSingleLine(String message) {
+		// Keep the message on a single line, so that it doesn't break the protocol.
+		return String.valueOf(message).replace('\n', ' ').replace('\r', ' ');
+	}
+
+	private void handleConnection(Socket socket) {
+		try {
+			BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+			PrintWriter writer = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), true);
+
+			writer.println(VERSION);
+
+			String line;
+			while ((line = reader.readLine()) != null) {
+				line = line.trim();
+				if (line.isEmpty()) continue;
+				if (line.equalsIgnoreCase("QUIT")) break;
+
+				if (!line.startsWith("JOB ")) {
+					writer.println("FAILED 0 Unknown command: " + line);
+					continue;
+				}
+
+				String tile = line.substring(4).trim();
+				TextureSetJob job;
+				try {
+					job = TextureSetJob.read(reader);
+				} catch (Exception ex) {
+					ex.printStackTrace();
+					// The rest of the job is still coming, which we shouldn't see as commands.
+					// The coordinator expects a single answer for every job.
+					skipJob(reader);
+					writer.println("FAILED " + tile + " " + toSingleLine(ex.getMessage()));
+					continue;
+				}
+				if (job == null) break;
+
+				try {
+					System.out.println("Running tile " + tile + " -> " + job.outputPath);
+					job.run(new ConsoleProgressCallback("Tile " + tile + " "));
+					System.out.println(BufferArena.getStats());
+					System.out.println(PyramidCache.getStats());
+
+					writer.println("DONE " + tile);
+				} catch (Exception ex) {
+					ex.printStackTrace();
+					writer.println("FAILED " + tile + " " + toSingleLine(ex.getMessage()));
+				}
+			}
+		} catch (Exception ex) {
+			ex.printStackTrace();
+		} finally {
+			try {
+				socket.close();
+			} catch (Exception ex) {
+			}
+		}
+	}
+
+}
@@ -0,0 +1,291 @@
+/*
+BSD 3-Clause License
+
+Copyright (c) 2020, Bram Stout
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+3. Neither the name of the copyright holder nor the names of its
+   contributors may be used to endorse or promote products derived from
+   this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+
+
+package nl.bramstout.bump2roughness;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Finds maketx and txmake and remembers what it found.
+ * 
+ * Finding them only looks at files, nothing gets launched. Only once a tool is actually
+ * needed is it launched once to figure out which tool it is and which version, and that
+ * gets stored in ~/.bump2roughness/tools.properties together with the size and modification
+ * time of the executable. After that, checking whether the tool is still valid is just
+ * looking at the file again, until the tool gets updated or removed.
+ */
+public class ToolRegistry {
+
+	public static enum KIND {
+		OIIO_MAKETX, ARNOLD_MAKETX, TXMAKE
+	}
+
+	public static class Tool {
+		String path;
+		KIND kind;
+		String version = "";
+		long lastModified;
+		long length;
+
+		/**
+		 * Returns true if the executable is still the same file as when it was identified.
+		 * 
+		 * @return
+		 */
+		public boolean isValid() {
+			File file = new File(path);
+			return file.isFile() && file.lastModified() == lastModified && file.length() == length;
+		}
+
+		public boolean isTXMake() {
+			return kind == KIND.TXMAKE;
+		}
+
+		@Override
+		public String toString() {
+			return kind + " " + version + " (" + path + ")";
+		}
+	}
+
+	private static final Pattern VERSION_PATTERN = Pattern.compile("\\d+\\.\\d+(\\.\\d+)*");
+
+	private static Properties properties = null;
+
+	private static File getConfigFile() {
+		return new File(new File(System.getProperty("user.home"), ".bump2roughness"), "tools.properties");
+	}
+
+	private static synchronized Properties getProperties() {
+		if (properties == null) {
+			properties = new Properties();
+			File file = getConfigFile();
+			if (file.isFile()) {
+				try (InputStream in = new FileInputStream(file)) {
+					properties.load(in);
+				} catch (IOException ex) {
+					ex.printStackTrace();
+				}
+			}
+		}
+		return properties;
+	}
+
+	private static synchronized void saveProperties() {
+		File file = getConfigFile();
+		file.getParentFile().mkdirs();
+		try (OutputStream out = new FileOutputStream(file)) {
+			getProperties().store(out, "Tools found by Bump2Roughness");
+		} catch (IOException ex) {
+			// Not being able to remember it only means that we have to look again next time.
+			ex.printStackTrace();
+		}
+	}
+
+	/**
+	 * Returns the path of the maketx or txmake that was used last, without checking it.
+	 * This is meant for filling in the UI, which shouldn't have to wait on anything.
+	 * 
+	 * @return The path or an empty string.
+	 */
+	public static String getCachedMakeTXPath() {
+		return getProperties().getProperty("maketx.path", "");
+	}
+
+	/**
+	 * Returns the default maketx or txmake. The one used last is used again, if it's still there.
+	 * Otherwise it's searched for again.
+	 * 
+	 * @return The tool or null if none could be found.
+	 */
+	public static synchronized Tool getMakeTX() {
+		String path = getCachedMakeTXPath();
+		if (!path.isEmpty()) {
+			Tool tool = getTool(path);
+			if (tool != null) return tool;
+		}
+
+		path = findMakeTX();
+		if (path.isEmpty()) return null;
+		return getTool(path);
+	}
+
+	/**
+	 * Returns the tool at the given path, identifying it if it hasn't been before or if it changed.
+	 * The path can also be just the name of an executable on the PATH.
+	 * 
+	 * @param path
+	 * @return The tool or null if the path isn't an executable.
+	 */
+	public static synchronized Tool getTool(String path) {
+		File file = resolve(path);
+		if (file == null) return null;
+
+		Properties props = getProperties();
+		String key = "tool." + file.getAbsolutePath();
+		Tool tool = new Tool();
+		tool.path = file.getAbsolutePath();
+		try {
+			tool.kind = KIND.valueOf(props.getProperty(key + ".kind", ""));
+			tool.version = props.getProperty(key + ".version", "");
+			tool.lastModified = Long.parseLong(props.getProperty(key + ".lastModified", "0"));
+			tool.length = Long.parseLong(props.getProperty(key + ".length", "0"));
+		} catch (Exception ex) {
+			tool.kind = null;
+		}
+
+		boolean changed = false;
+		if (tool.kind == null || !tool.isValid()) {
+			changed = true;
+			identify(tool);
+			props.setProperty(key + ".kind", tool.kind.name());
+			props.setProperty(key + ".version", tool.version);
+			props.setProperty(key + ".lastModified", Long.toString(tool.lastModified));
+			props.setProperty(key + ".length", Long.toString(tool.length));
+			System.out.println("Found " + tool);
+		}
+
+		if (!tool.path.equals(props.getProperty("maketx.path"))) {
+			changed = true;
+			props.setProperty("maketx.path", tool.path);
+		}
+		if (changed) saveProperties();
+		return tool;
+	}
+
+	/**
+	 * Launches the tool once to see what it says about itself.
+	 * 
+	 * @param tool
+	 */
+	private static void identify(Tool tool) {
+		File file = new File(tool.path);
+		tool.lastModified = file.lastModified();
+		tool.length = file.length();
+
+		String output = "";
+		try {
+			Process process = new ProcessBuilder(tool.path, "--help").redirectErrorStream(true).start();
+			StringBuilder builder = new StringBuilder();
+			try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
+				String line;
+				while ((line = reader.readLine()) != null && builder.length() < 16384)
+					builder.append(line).append('\n');
+			}
+			if (!process.waitFor(10, TimeUnit.SECONDS)) process.destroy();
+			output = builder.toString();
+		} catch (Exception ex) {
+			ex.printStackTrace();
+		}
+
+		if (file.getName().toLowerCase().contains("txmake"))
+			tool.kind = KIND.TXMAKE;
+		else if (output.contains("Arnold") || tool.path.contains("Arnold"))
+			tool.kind = KIND.ARNOLD_MAKETX;
+		else tool.kind = KIND.OIIO_MAKETX;
+
+		Matcher matcher = VERSION_PATTERN.matcher(output);
+		tool.version = matcher.find() ? matcher.group() : "";
+	}
+
+	/**
+	 * Turns the path into an existing executable file, looking through the PATH if it's just a name.
+	 * 
+	 * @param path
+	 * @return The file or null if it couldn't be found.
+	 */
+	static File resolve(String path) {
+		if (path == null || path.isEmpty()) return null;
+
+		File file = new File(path);
+		if (file.isFile() && file.canExecute()) return file.getAbsoluteFile();
+		if (file.getParent() != null) return null;
+
+		String pathEnv = System.getenv("PATH");
+		if (pathEnv == null) return null;
+		for (String dir : pathEnv.split(File.pathSeparator)) {
+			if (dir.isEmpty()) continue;
+			file = new File(dir, path);
+			if (file.isFile() && file.canExecute()) return file.getAbsoluteFile();
+		}
+		return null;
+	}
+
+	/**
+	 * Searches for maketx or txmake: on the PATH, right next to the application and in the
+	 * default install locations of Renderman and Arnold. Only looks at files.
+	 * 
+	 * @return The path or an empty string if nothing was found.
+	 */
+	public static String findMakeTX() {
+		List<String> candidates = new ArrayList<String>();
+		for (String name : new String[] { "maketx", "txmake", "maketx.exe", "txmake.exe" })
+			candidates.add(name);
+		for (String name : new String[] { "maketx", "txmake", "maketx.exe", "txmake.exe" })
+			candidates.add("./" + name);
+
+		String RMAN_PREFIX = "C:\\Program Files\\Pixar\\RenderManProServer-";
+		String RMAN_SUFFIX = "\\bin\\txmake.exe";
+		for (int v1 = 20; v1 < 40; ++v1) {
+			for (int v2 = 0; v2 < 10; ++v2) {
+				candidates.add(RMAN_PREFIX + v1 + "." + v2 + RMAN_SUFFIX);
+			}
+		}
+
+		String ARNOLD_PREFIX = "C:\\Program Files\\Autodesk\\Arnold\\maya";
+		String ARNOLD_SUFFIX = "\\bin\\maketx.exe";
+		for (int v1 = 2016; v1 < 2040; ++v1) {
+			candidates.add(ARNOLD_PREFIX + v1 + ARNOLD_SUFFIX);
+		}
+
+		for (String candidate : candidates) {
+			File file = resolve(candidate);
+			if (file != null) return file.getPath();
+		}
+		return "";
+	}
+
+}
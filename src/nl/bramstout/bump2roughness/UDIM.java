@@ -0,0 +1,205 @@
+/*
+BSD 3-Clause License
+
+Copyright (c) 2020, Bram Stout
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+3. Neither the name of the copyright holder nor the names of its
+   contributors may be used to endorse or promote products derived from
+   this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+
+package nl.bramstout.bump2roughness;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import nl.bramstout.bump2roughness.TextureSetJob.Input;
+
+/**
+ * Helper functions for UDIM texture sets.
+ *
+ * A path is seen as a UDIM path if it either contains the <UDIM> token
+ * or if its file name ends in a four digit tile number between 1001 and 1999
+ * between two dots right before the extension, like "bump.1001.png".
+ * Other numbers, like the resolution in "detail_1024.png", are left alone.
+ */
+public class UDIM {
+
+	public static final String TOKEN = "<UDIM>";
+
+	// Four digits between 1000 and 1999 between two dots, right before the extension.
+	private static final Pattern TILE_NUMBER = Pattern.compile("(?<=\\.)1[0-9]{3}(?=\\.[^.]+$)");
+
+	/**
+	 * Returns the path with the tile number replaced by the <UDIM> token,
+	 * or null if it isn't a UDIM path.
+	 *
+	 * @param path
+	 * @return
+	 */
+	public static String toTemplate(String path) {
+		if (path.contains(TOKEN)) return path;
+
+		File file = new File(path);
+		String name = file.getName();
+
+		Matcher matcher = TILE_NUMBER.matcher(name);
+		if (!matcher.find() || Integer.parseInt(matcher.group()) <= 1000) return null;
+		int start = matcher.start();
+
+		name = name.substring(0, start) + TOKEN + name.substring(start + 4);
+		if (file.getParent() == null) return name;
+		return new File(file.getParent(), name).getPath();
+	}
+
+	public static boolean isUDIM(String path) {
+		return toTemplate(path) != null;
+	}
+
+	/**
+	 * Replaces the tile in the path by the given tile.
+	 * If the path isn't a UDIM path, it's returned as is.
+	 *
+	 * @param path
+	 * @param tile
+	 * @return
+	 */
+	public static String resolve(String path, int tile) {
+		String template = toTemplate(path);
+		if (template == null) return path;
+		return template.replace(TOKEN, Integer.toString(tile));
+	}
+
+	/**
+	 * Returns every tile that exists on disk for the given UDIM path, sorted.
+	 *
+	 * @param path
+	 * @return
+	 */
+	public static List<Integer> findTiles(String path) {
+		List<Integer> tiles = new ArrayList<Integer>();
+
+		String template = toTemplate(path);
+		if (template == null) return tiles;
+
+		File file = new File(template);
+		File dir = file.getParentFile();
+		if (dir == null) dir = new File(".");
+
+		String name = file.getName();
+		int tokenIndex = name.indexOf(TOKEN);
+		Pattern pattern = Pattern.compile(Pattern.quote(name.substring(0, tokenIndex)) + "(1[0-9]{3})"
+				+ Pattern.quote(name.substring(tokenIndex + TOKEN.length())));
+
+		String[] names = dir.list();
+		if (names == null) return tiles;
+
+		for (String candidate : names) {
+			Matcher matcher = pattern.matcher(candidate);
+			if (matcher.matches()) {
+				int tile = Integer.parseInt(matcher.group(1));
+				if (tile > 1000) tiles.add(tile);
+			}
+		}
+
+		Collections.sort(tiles);
+		return tiles;
+	}
+
+	/**
+	 * Returns the tiles that the job can be run for. Inputs that aren't UDIM are used for every tile.
+	 * A tile is only returned when every UDIM input has it. If nothing in the job is UDIM, it returns an empty list.
+	 *
+	 * @param job
+	 * @return
+	 */
+	public static List<Integer> findTiles(TextureSetJob job) {
+		TreeSet<Integer> tiles = null;
+
+		List<String> paths = new ArrayList<String>();
+		for (Input input : job.inputs)
+			paths.add(input.path);
+		if (job.hasBaseRoughnessTexture()) paths.add(job.baseRoughness);
+
+		for (String path : paths) {
+			if (!isUDIM(path)) continue;
+
+			List<Integer> pathTiles = findTiles(path);
+			if (tiles == null) {
+				tiles = new TreeSet<Integer>(pathTiles);
+			} else {
+				for (Integer tile : tiles) {
+					if (!pathTiles.contains(tile)) System.out.println("WARNING: Tile " + tile + " is missing for " + path + ", skipping it");
+				}
+				tiles.retainAll(pathTiles);
+			}
+		}
+
+		if (tiles == null) return new ArrayList<Integer>();
+		return new ArrayList<Integer>(tiles);
+	}
+
+	/**
+	 * Creates a copy of the job with every UDIM path resolved to the given tile.
+	 *
+	 * If the output or checkpoint path has no tile in it, the tile number is put in front of the extension,
+	 * so that tiles don't overwrite each other.
+	 *
+	 * @param job
+	 * @param tile
+	 * @return
+	 */
+	public static TextureSetJob forTile(TextureSetJob job, int tile) {
+		TextureSetJob tileJob = new TextureSetJob(job);
+
+		for (Input input : tileJob.inputs)
+			input.path = resolve(input.path, tile);
+		if (tileJob.hasBaseRoughnessTexture()) tileJob.baseRoughness = resolve(tileJob.baseRoughness, tile);
+
+		tileJob.outputPath = resolveOrAddTile(tileJob.outputPath, tile);
+		if (!tileJob.checkpointPath.isEmpty()) tileJob.checkpointPath = resolveOrAddTile(tileJob.checkpointPath, tile);
+
+		return tileJob;
+	}
+
+	private static String resolveOrAddTile(String path, int tile) {
+		if (isUDIM(path)) return resolve(path, tile);
+
+		File file = new File(path);
+		String name = file.getName();
+		int index = name.lastIndexOf('.');
+		if (index > 0)
+			name = name.substring(0, index) + "." + tile + name.substring(index);
+		else name = name + "." + tile;
+		return file.getParent() == null ? name : new File(file.getParent(), name).getPath();
+	}
+
+}
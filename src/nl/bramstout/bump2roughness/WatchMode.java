@@ -0,0 +1,286 @@
+/*
+BSD 3-Clause License
+
+Copyright (c) 2020, Bram Stout
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+3. Neither the name of the copyright holder nor the names of its
+   contributors may be used to endorse or promote products derived from
+   this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+
+package nl.bramstout.bump2roughness;
+
+import java.io.File;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import nl.bramstout.bump2roughness.Bump2Roughness.ConsoleProgressCallback;
+import nl.bramstout.bump2roughness.Bump2Roughness.Settings;
+
+/**
+ * Watches the inputs of texture sets and regenerates a texture set as soon as one of its inputs changes.
+ *
+ * For each input, the roughness it adds is kept in memory. When an input changes, only
+ * that input is recalculated and the others are taken from memory. This does mean that
+ * it needs to keep a full mipmapped image in memory for every input.
+ */
+public class WatchMode {
+
+	private static class CachedContribution {
+		File file;
+		long lastModified;
+		long length;
+		ImageContainer contribution;
+		// A copy of level 0 of the image that the contribution was calculated for.
+		// This is compared against the new image, so that only the changed parts get recalculated.
+		ImageBuffer input;
+
+		public CachedContribution(File file, long lastModified, long length, ImageContainer contribution) {
+			this.file = file;
+			this.lastModified = lastModified;
+			this.length = length;
+			this.contribution = contribution;
+		}
+
+		public void release() {
+			contribution.release();
+			if (input != null) input.release();
+			input = null;
+		}
+
+		public boolean isSameResolution(ImageContainer outputImg) {
+			return contribution.width == outputImg.width && contribution.height == outputImg.height
+					&& contribution.mipmapLevels == outputImg.mipmapLevels;
+		}
+
+		public boolean isValid(File file, ImageContainer outputImg) {
+			return this.file.equals(file) && file.lastModified() == lastModified && file.length() == length && isSameResolution(outputImg);
+		}
+	}
+
+	private static class WatchedSet {
+		TextureSetJob job;
+		CachedContribution base = null;
+		CachedContribution[] inputs;
+		boolean dirty = true;
+		long lastChange = 0;
+
+		public WatchedSet(TextureSetJob job) {
+			this.job = job;
+			// Only the changed tiles get recalculated, which needs level 0 of the inputs as floats.
+			job.fixedPoint = false;
+			inputs = new CachedContribution[job.inputs.size()];
+		}
+	}
+
+	// How long to wait after the last change before regenerating, in milliseconds.
+	// Programs often write a file in multiple steps, so we don't want to pick up a half written file.
+	long debounce = 500;
+
+	private WatchService watcher;
+	private List<WatchedSet> sets = new ArrayList<WatchedSet>();
+	private HashSet<Path> watchedDirs = new HashSet<Path>();
+	private HashMap<Path, List<WatchedSet>> setsByFile = new HashMap<Path, List<WatchedSet>>();
+
+	public WatchMode(long debounce) throws Exception {
+		this.debounce = debounce;
+		watcher = FileSystems.getDefault().newWatchService();
+	}
+
+	/**
+	 * Usage: watch <job file> [--debounce milliseconds]
+	 *
+	 * @param args
+	 * @throws Exception
+	 */
+	public static void main(String[] args) throws Exception {
+		if (args.length < 1) throw new Exception("No job file given");
+
+		long debounce = 500;
+		for (int i = 1; i < args.length; i += 2) {
+			if (i + 1 >= args.length) throw new Exception("Missing value for " + args[i]);
+			if (args[i].equalsIgnoreCase("--debounce")) {
+				debounce = Long.parseLong(args[i + 1]);
+			} else {
+				throw new Exception("Unknown argument: " + args[i]);
+			}
+		}
+
+		WatchMode watchMode = new WatchMode(debounce);
+		for (TextureSetJob job : TextureSetJob.readAll(new File(args[0])))
+			watchMode.register(job);
+		watchMode.run();
+	}
+
+	public void register(TextureSetJob job) throws Exception {
+		WatchedSet set = new WatchedSet(job);
+		sets.add(set);
+
+		List<String> paths = new ArrayList<String>();
+		for (TextureSetJob.Input input : job.inputs)
+			paths.add(input.path);
+		if (job.hasBaseRoughnessTexture()) paths.add(job.baseRoughness);
+
+		for (String path : paths) {
+			Path file = new File(path).getAbsoluteFile().toPath().normalize();
+			Path dir = file.getParent();
+			if (watchedDirs.add(dir)) {
+				dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+				System.out.println("Watching " + dir);
+			}
+
+			List<WatchedSet> fileSets = setsByFile.get(file);
+			if (fileSets == null) {
+				fileSets = new ArrayList<WatchedSet>();
+				setsByFile.put(file, fileSets);
+			}
+			fileSets.add(set);
+		}
+	}
+
+	/**
+	 * Generates every set once and then keeps regenerating sets when their inputs change. This never returns.
+	 *
+	 * @throws Exception
+	 */
+	public void run() throws Exception {
+		while (true) {
+			WatchKey key = watcher.poll(Math.max(debounce / 4, 10), TimeUnit.MILLISECONDS);
+			long now = System.currentTimeMillis();
+
+			while (key != null) {
+				Path dir = (Path) key.watchable();
+				for (WatchEvent<?> event : key.pollEvents()) {
+					if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+						// We missed events, so we don't know what changed anymore.
+						for (WatchedSet set : sets)
+							markDirty(set, now);
+						continue;
+					}
+
+					List<WatchedSet> fileSets = setsByFile.get(dir.resolve((Path) event.context()));
+					if (fileSets == null) continue;
+					for (WatchedSet set : fileSets)
+						markDirty(set, now);
+				}
+				key.reset();
+
+				key = watcher.poll();
+			}
+
+			for (WatchedSet set : sets) {
+				if (set.dirty && now - set.lastChange >= debounce) {
+					set.dirty = false;
+					regenerate(set);
+				}
+			}
+		}
+	}
+
+	private void markDirty(WatchedSet set, long now) {
+		set.dirty = true;
+		set.lastChange = now;
+	}
+
+	private void regenerate(WatchedSet set) {
+		System.out.println("Regenerating " + set.job.outputPath);
+		long startTime = System.currentTimeMillis();
+
+		Bump2Roughness solver = null;
+		try {
+			Settings settings = set.job.createSettings(new ConsoleProgressCallback(""));
+			solver = new Bump2Roughness(settings);
+
+			if (settings.roughnessImg == null) {
+				solver.fillOutputWithBaseRoughness();
+			} else {
+				File file = settings.roughnessImg.imgFile;
+				if (set.base == null || !set.base.isValid(file, solver.outputImg)) {
+					// Get the file info before reading it in, so that changes while we read it get picked up.
+					long lastModified = file.lastModified();
+					long length = file.length();
+					if (set.base != null) set.base.release();
+					set.base = new CachedContribution(file, lastModified, length, solver.calculateBaseContribution());
+				} else {
+					System.out.println("Reusing base roughness");
+				}
+				solver.addContribution(set.base.contribution);
+			}
+
+			for (int i = 0; i < settings.imgs.size(); ++i) {
+				ImageContainer img = settings.imgs.get(i);
+				File file = img.imgFile;
+				CachedContribution cached = set.inputs[i];
+				if (cached == null || !cached.isValid(file, solver.outputImg)) {
+					long lastModified = file.lastModified();
+					long length = file.length();
+
+					img.read();
+					ImageBuffer input = new ImageBuffer(img.buffers[0]);
+
+					if (cached != null && cached.input != null && cached.file.equals(file) && cached.isSameResolution(solver.outputImg)) {
+						// Only recalculate the parts that changed.
+						solver.updateContribution(i, cached.contribution, cached.input);
+						cached.lastModified = lastModified;
+						cached.length = length;
+					} else {
+						if (cached != null) cached.release();
+						cached = new CachedContribution(file, lastModified, length, solver.calculateContribution(i));
+						set.inputs[i] = cached;
+					}
+					if (cached.input != null) cached.input.release();
+					cached.input = input;
+				} else {
+					System.out.println("Reusing img " + i);
+				}
+				solver.addContribution(set.inputs[i].contribution);
+			}
+
+			solver.finaliseOutput();
+			solver.writeOutput();
+
+			System.out.println("Regenerated " + set.job.outputPath + " in " + (System.currentTimeMillis() - startTime) + " ms");
+			System.out.println(BufferArena.getStats());
+			System.out.println(PyramidCache.getStats());
+		} catch (Exception ex) {
+			// The file might still be in the middle of being written. We'll try again on the next change.
+			ex.printStackTrace();
+			System.out.println("ERROR: Could not regenerate " + set.job.outputPath);
+		} finally {
+			if (solver != null) solver.free();
+		}
+	}
+
+}